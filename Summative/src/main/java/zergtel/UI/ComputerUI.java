@@ -10,8 +10,11 @@ import zergtel.core.Main;
 import zergtel.core.converter.Converter;
 import zergtel.core.converter.Merge;
 import zergtel.core.downloader.Downloader;
+import zergtel.core.downloader.DownloadSession;
 import zergtel.core.downloader.EzHttp;
 import zergtel.core.io.FileChooser;
+import zergtel.core.queue.Job;
+import zergtel.core.queue.JobQueue;
 import zergtel.core.searcher.Searcher;
 
 import javax.imageio.ImageIO;
@@ -39,6 +42,8 @@ import java.util.Map;
  *     and the calling of the ComputerUI class (see zergtel.core.Main) had to be attached to a static variable in order for the
  *     worker classes to be able to access certain variables of the ComputerUI object. More info on this throughout this class and
  *     in zergtel.core.Main
+ *   - Downloads go through the download queue (see zergtel.core.queue.JobQueue and watch), so that they carry on after
+ *     the program is closed and opened again. The download workers below are only used if the queue couldn't be opened.
  *   - Somewhat related to this, there exist two seperate DownloadThread classes with *almost* identical code -
  *     one for each download button in the gui. The primary reason for this is cancelling ambiguity; back when we had one
  *     class for the both, cancelling from one of the buttons would cancel both threads, and vice versa. Also, when buttons
@@ -126,6 +131,7 @@ public class ComputerUI extends JFrame implements ActionListener{
     public JButton downloadLink = new JButton("Download from URL");
     public JButton downloadSelectedCancel = new JButton("Cancel");
     public JButton downloadLinkCancel = new JButton("Cancel");
+    public JCheckBox pipelined = new JCheckBox("Convert while downloading"); //see EzHttp.setPipelined
     public JButton converter = new JButton("      Convert Files      ");
     public JButton converterCancel = new JButton("Cancel");
     public JButton merge = new JButton("Merge");
@@ -149,6 +155,9 @@ public class ComputerUI extends JFrame implements ActionListener{
     private Merge m = new Merge();
     private DownloadSelectedWorker downloadSelectedWorker;
     private DownloadLinkWorker downloadLinkWorker;
+    //queue jobs of the two download buttons, -1 while they have none
+    private long downloadSelectedJob = -1;
+    private long downloadLinkJob = -1;
     private ConvertWorker convertWorker;
     private MergeWorker mergeWorker;
 
@@ -208,6 +217,7 @@ public class ComputerUI extends JFrame implements ActionListener{
         download.add(downloadSelectedCancel);
         download.add(downloadLink);
         download.add(downloadLinkCancel);
+        download.add(pipelined);
         convert.add(converter);
         convert.add(converterCancel);
         convert.add(merge);
@@ -288,20 +298,23 @@ public class ComputerUI extends JFrame implements ActionListener{
         .addComponent(convert, 0, GroupLayout.DEFAULT_SIZE, Short.MAX_VALUE))
         .addComponent(search));
 
-        downloadLayout.setHorizontalGroup(downloadLayout.createSequentialGroup()
+        downloadLayout.setHorizontalGroup(downloadLayout.createParallelGroup(GroupLayout.Alignment.LEADING)
+        .addGroup(downloadLayout.createSequentialGroup()
         .addGroup(downloadLayout.createParallelGroup(GroupLayout.Alignment.LEADING)
         .addComponent(downloadSelected, 0, GroupLayout.DEFAULT_SIZE, Short.MAX_VALUE)
         .addComponent(downloadLink, 0 ,GroupLayout.DEFAULT_SIZE, Short.MAX_VALUE))
         .addGroup(downloadLayout.createParallelGroup(GroupLayout.Alignment.LEADING)
         .addComponent(downloadSelectedCancel, 0, GroupLayout.DEFAULT_SIZE, Short.MAX_VALUE)
-        .addComponent(downloadLinkCancel, 0, GroupLayout.DEFAULT_SIZE, Short.MAX_VALUE)));
+        .addComponent(downloadLinkCancel, 0, GroupLayout.DEFAULT_SIZE, Short.MAX_VALUE)))
+        .addComponent(pipelined));
         downloadLayout.setVerticalGroup(downloadLayout.createSequentialGroup()
         .addGroup(downloadLayout.createParallelGroup(GroupLayout.Alignment.CENTER)
         .addComponent(downloadSelected, 0, GroupLayout.DEFAULT_SIZE, Short.MAX_VALUE)
         .addComponent(downloadSelectedCancel, 0, GroupLayout.DEFAULT_SIZE, Short.MAX_VALUE))
         .addGroup(downloadLayout.createParallelGroup(GroupLayout.Alignment.CENTER)
         .addComponent(downloadLink, 0, GroupLayout.DEFAULT_SIZE, Short.MAX_VALUE)
-        .addComponent(downloadLinkCancel, 0, GroupLayout.DEFAULT_SIZE, Short.MAX_VALUE)));
+        .addComponent(downloadLinkCancel, 0, GroupLayout.DEFAULT_SIZE, Short.MAX_VALUE))
+        .addComponent(pipelined));
 
         convertLayout.setHorizontalGroup(convertLayout.createSequentialGroup()
         .addGroup(convertLayout.createParallelGroup(GroupLayout.Alignment.LEADING)
@@ -338,6 +351,7 @@ public class ComputerUI extends JFrame implements ActionListener{
         downloadSelectedCancel.addActionListener(this);
         downloadLink.addActionListener(this);
         downloadLinkCancel.addActionListener(this);
+        pipelined.addActionListener(this);
         converter.addActionListener(this);
         converterCancel.addActionListener(this);
         merge.addActionListener(this);
@@ -362,19 +376,29 @@ public class ComputerUI extends JFrame implements ActionListener{
         if (e.getSource() == downloadSelected) {
             directory = chooser.choose("Choose where to save the downloaded file", JFileChooser.DIRECTORIES_ONLY).getAbsolutePath() + "\\";
             if (!directory.equals(null)) {
-                EzHttp.setDownloadLocation(directory);
                 url = urlStorage[buttonNo];
-                downloadSelectedWorker = new DownloadSelectedWorker(url);
+                if (Main.queue != null) {
+                    downloadSelectedJob = enqueue(url, directory);
+                    if (downloadSelectedJob < 0) {
+                        return;
+                    }
+                } else {
+                    downloadSelectedWorker = new DownloadSelectedWorker(url, new DownloadSession(directory));
+                    downloadSelectedWorker.execute();
+                }
                 JOptionPane.showMessageDialog(null, "Downloading has begun - we'll alert you when it's done.");
-                downloadSelectedWorker.execute();
                 downloadSelectedCancel.setEnabled(true);
                 downloadSelected.setEnabled(false);
             }
         }
+        //applies to downloads started from now on, queued ones included
+        if (e.getSource() == pipelined) {
+            EzHttp.setPipelined(pipelined.isSelected());
+        }
         //cancels download for selected search result
         if (e.getSource() == downloadSelectedCancel) {
             isDownloadSelectedCancelled = 1;
-            downloadSelectedWorker.cancel(true);
+            cancel(downloadSelectedJob, downloadSelectedWorker);
             downloadSelectedCancel.setEnabled(false);
             downloadSelected.setEnabled(true);
             new File(directory + name).delete();
@@ -388,10 +412,16 @@ public class ComputerUI extends JFrame implements ActionListener{
                 directory = chooser.choose("Choose where to save the downloaded file", JFileChooser.DIRECTORIES_ONLY).getAbsolutePath() + "\\";
 
                 if (!directory.equals(null)) {
-                    EzHttp.setDownloadLocation(directory);
-                    downloadLinkWorker = new DownloadLinkWorker(url);
+                    if (Main.queue != null) {
+                        downloadLinkJob = enqueue(url, directory);
+                        if (downloadLinkJob < 0) {
+                            return;
+                        }
+                    } else {
+                        downloadLinkWorker = new DownloadLinkWorker(url, new DownloadSession(directory));
+                        downloadLinkWorker.execute();
+                    }
                     JOptionPane.showMessageDialog(null, "Downloading has begun - we'll alert you when it's done.");
-                    downloadLinkWorker.execute();
                     downloadLinkCancel.setEnabled(true);
                     downloadLink.setEnabled(false);
                 }
@@ -400,7 +430,7 @@ public class ComputerUI extends JFrame implements ActionListener{
         //cancels download from url
         if (e.getSource() == downloadLinkCancel) {
             isDownloadLinkCancelled = 1;
-            downloadLinkWorker.cancel(true);
+            cancel(downloadLinkJob, downloadLinkWorker);
             downloadLinkCancel.setEnabled(false);
             downloadLink.setEnabled(true);
             new File(directory + name).delete();
@@ -527,6 +557,7 @@ public class ComputerUI extends JFrame implements ActionListener{
             if(e.getSource() == preview[i])
             {
                 buttonNo = i;
+                Downloader.prefetch(urlStorage[i]); //so that downloading it can start right away
                 JOptionPane.showMessageDialog(null, "You may now use the appropriate button on the left to preview or download.", "Video selected!", 1);
                 downloadSelected.setEnabled(true);
                 previewURL.setEnabled(true);
@@ -535,6 +566,72 @@ public class ComputerUI extends JFrame implements ActionListener{
 
     }
 
+    /**
+     * Has the ui follow the jobs of the download queue, which is where both download buttons send their downloads
+     * Jobs are finished on the queue's threads, so the buttons and dialogs are updated back on swing's thread.
+     *
+     * @param queue - The download queue (see zergtel.core.Main)
+     */
+    public void watch(JobQueue queue) {
+        queue.addListener(job -> {
+            if (job.getState() == Job.State.DONE || job.getState() == Job.State.FAILED) {
+                SwingUtilities.invokeLater(() -> finished(job));
+            }
+        });
+    }
+
+    /**
+     * Ungreys the buttons of a finished job, and tells the user how it went. Jobs left over from the last time the
+     * program ran belong to neither button, but are reported all the same
+     */
+    private void finished(Job job) {
+        if (job.getId() == downloadSelectedJob) {
+            downloadSelectedJob = -1;
+            downloadSelectedCancel.setEnabled(false);
+            downloadSelected.setEnabled(true);
+        } else if (job.getId() == downloadLinkJob) {
+            downloadLinkJob = -1;
+            downloadLinkCancel.setEnabled(false);
+            downloadLink.setEnabled(true);
+        }
+
+        if (job.getState() == Job.State.DONE) {
+            JOptionPane.showMessageDialog(null, "Downloading has finished for " + job.getResult());
+        } else if (job.getResult().equals("Cancelled")) {
+            JOptionPane.showMessageDialog(null, "Downloading has been cancelled!");
+        } else {
+            JOptionPane.showMessageDialog(null, "Downloading has stopped! " + job.getResult(), "Oh no!", JOptionPane.ERROR_MESSAGE);
+        }
+    }
+
+    /**
+     * @return - Id of the new job, or -1 if it couldn't be queued (the user has been told)
+     */
+    private long enqueue(String url, String directory) {
+        try {
+            return Main.queue.add(url, directory, 0).getId();
+        } catch (IOException ex) {
+            ex.printStackTrace();
+            JOptionPane.showMessageDialog(null, "Could not queue the download! " + ex.getMessage(), "Oh no!", JOptionPane.ERROR_MESSAGE);
+            return -1;
+        }
+    }
+
+    /**
+     * Cancels a download, whether it went through the queue or (if the queue couldn't be opened) its own worker
+     */
+    private void cancel(long job, SwingWorker<String, Void> worker) {
+        if (job >= 0 && Main.queue != null) {
+            try {
+                Main.queue.cancel(job);
+            } catch (IOException ex) {
+                ex.printStackTrace();
+            }
+        } else if (worker != null) {
+            worker.cancel(true);
+        }
+    }
+
     /**
      * Method that calls our preview feature (playback feature)
      * Webview is very finicky - try not to adjust too much unless you know what you're doing (which we still really don't)
@@ -581,16 +678,18 @@ public class ComputerUI extends JFrame implements ActionListener{
 
 class DownloadSelectedWorker extends SwingWorker<String, Void> {
     String url;
+    DownloadSession session;
 
-    DownloadSelectedWorker(String downUrl) {
+    DownloadSelectedWorker(String downUrl, DownloadSession downSession) {
         url = downUrl;
+        session = downSession;
     }
 
     @Override
     public String doInBackground() {
         String output = "";
         try {
-            output = Downloader.get(url);
+            output = Downloader.get(url, session);
             JOptionPane.showMessageDialog(null, "Downloading has finished for " + output);
         } catch (DownloadInterruptedError ex){
             JOptionPane.showMessageDialog(null, "Downloading has been cancelled!");
@@ -611,16 +710,18 @@ class DownloadSelectedWorker extends SwingWorker<String, Void> {
 
 class DownloadLinkWorker extends SwingWorker<String, Void> {
     String url;
+    DownloadSession session;
 
-    DownloadLinkWorker(String downUrl) {
+    DownloadLinkWorker(String downUrl, DownloadSession downSession) {
         url = downUrl;
+        session = downSession;
     }
 
     @Override
     public String doInBackground() {
         String output = "";
         try {
-            output = Downloader.get(url);
+            output = Downloader.get(url, session);
             JOptionPane.showMessageDialog(null, "Downloading has finished for " + output);
         } catch (DownloadInterruptedError ex){
             JOptionPane.showMessageDialog(null, "Downloading has been cancelled!");
@@ -666,7 +767,9 @@ class ConvertWorker extends SwingWorker<String, Void> {
         } catch (Exception ex) {
             ex.printStackTrace();
             if (Main.ui.isConverterCancelled != 1) {
-                JOptionPane.showMessageDialog(null, "Conversion has stopped!", "Oh no!", JOptionPane.ERROR_MESSAGE);
+                JOptionPane.showMessageDialog(null, "Conversion has stopped! " + ex.getMessage(), "Oh no!", JOptionPane.ERROR_MESSAGE);
+            } else {
+                JOptionPane.showMessageDialog(null, "Conversion was cancelled for " + name);
             }
             Main.ui.isConverterCancelled = 0;
         }
@@ -704,7 +807,9 @@ class MergeWorker extends SwingWorker<String, Void> {
         } catch (Exception ex) {
             ex.printStackTrace();
             if (Main.ui.isMergeCancelled != 1) {
-                JOptionPane.showMessageDialog(null, "Oh no! Something goofed!", "Error", JOptionPane.ERROR_MESSAGE);
+                JOptionPane.showMessageDialog(null, "Oh no! Something goofed! " + ex.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+            } else {
+                JOptionPane.showMessageDialog(null, "Merging was cancelled for " + name);
             }
             Main.ui.isMergeCancelled = 0;
         }
@@ -19,6 +19,9 @@ import java.util.regex.Pattern;
  *
  * This implementation attempts to do it's own math on completion based on expected file size, but ultimately that didn't
  * pan out very well.
+ *
+ * Downloads have since gotten a proper way to report progress (see zergtel.core.downloader.ProgressListener), but
+ * conversions still don't.
  */
 //Displays progress of a convert method being ran.
 public class ConverterProgressBar extends JPanel implements Runnable {
@@ -31,7 +34,13 @@ public class ConverterProgressBar extends JPanel implements Runnable {
         f = fi;
         d = di;
         n = na;
-        c.convert(f, d, n);
+        try {
+            c.convert(f, d, n);
+        } catch (Exception e) {
+            e.printStackTrace();
+            progress.setText(e.getMessage());
+            return;
+        }
 
         Scanner read = new Scanner(c.app.getErrorStream()); //reads ffmpeg input from an error stream gotten from app
         Pattern lengthPatt = Pattern.compile("(?<=Duration: )[^,]*");
@@ -65,7 +74,13 @@ class MergeProgressBar extends JPanel implements Runnable {
         f2 = fi2;
         d = di;
         n = na;
-        m.merge(f1, f2, d, n);
+        try {
+            m.merge(f1, f2, d, n);
+        } catch (Exception e) {
+            e.printStackTrace();
+            progress.setText(e.getMessage());
+            return;
+        }
 
         Scanner read = new Scanner(m.app.getErrorStream());
         Pattern lengthPatt = Pattern.compile("(?<=Duration: )[^,]*");
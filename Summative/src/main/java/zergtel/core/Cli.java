@@ -0,0 +1,306 @@
+package zergtel.core;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import zergtel.core.converter.Converter;
+import zergtel.core.downloader.BandcampSync;
+import zergtel.core.downloader.DownloadSession;
+import zergtel.core.downloader.Downloader;
+import zergtel.core.downloader.EzHttp;
+import zergtel.core.downloader.Workspace;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Runs ZTVDC without any ui, for batches of downloads and conversions on machines without a screen
+ * Nothing in here (or in the parts of zergtel.core it uses) touches Swing, so it starts in a fraction of the time the ui
+ * does, and works on headless jdks.
+ *
+ * Every input becomes one job: a url is downloaded, a file is read as a list of urls (one per line, # for comments),
+ * "-" reads that list from stdin, and a directory has every file in it converted. With --sync, urls are bandcamp artists
+ * to bring up to date instead (see BandcampSync). Jobs run several at once, and as each one finishes a single line of
+ * json describing it is written to stdout, e.g.
+ *   {"input":"http://...","status":"done","outputs":["/music/song.mp3"],"ms":5120}
+ *   {"input":"http://...","status":"failed","error":"java.io.IOException: ...","ms":310}
+ * Everything else the downloader and converter print goes to stderr, so stdout can be piped straight into another
+ * program. The exit code is 0 if every job succeeded, 1 if any failed, and 2 if the arguments were wrong.
+ */
+public class Cli {
+	private static final String USAGE = String.join(System.lineSeparator(),
+			"Usage: Cli [options] <url | file of urls | directory | ->...",
+			"  -o <directory>   Where to put the outputs (default: current directory)",
+			"  -f <extension>   Convert every download, or every file of a directory, to this format (e.g. mp3).",
+			"                   For audio formats, only the audio of videos is downloaded",
+			"  -j <jobs>        Jobs to run at once (default: 4)",
+			"  --ffmpeg <file>  ffmpeg executable (default: " + Converter.FILE_FFMPEG + ")",
+			"  --sync           Treat urls as bandcamp artists, and only download what's new since the last sync",
+			"  --pipe           Download videos straight into ffmpeg where possible, converting while downloading");
+
+	private File output = new File(".");
+	private String format;
+	private int jobs = 4;
+	private File ffmpeg = Converter.FILE_FFMPEG;
+	private boolean sync;
+	private boolean pipelined;
+	private final List<Callable<JsonObject>> tasks = new ArrayList<>();
+
+	public static void main(String[] args) {
+		System.exit(run(args, System.out));
+	}
+
+	/**
+	 * Runs every job in args
+	 *
+	 * @param args - See USAGE
+	 * @param results - Where the json line of every job goes
+	 * @return - Exit code, see the class description
+	 */
+	static int run(String[] args, PrintStream results) {
+		Cli cli = new Cli();
+		try {
+			cli.parse(args);
+		} catch (IllegalArgumentException | IOException e) {
+			System.err.println(e.getMessage());
+			System.err.println(USAGE);
+			return 2;
+		}
+
+		//the downloader and converter log to System.out, which would end up mixed in with the results
+		PrintStream out = System.out;
+		System.setOut(System.err);
+		try {
+			return cli.execute(results);
+		} finally {
+			System.setOut(out);
+		}
+	}
+
+	private void parse(String[] args) throws IOException {
+		List<String> inputs = new ArrayList<>();
+		for (int i = 0; i < args.length; i++) {
+			String arg = args[i];
+			if (arg.equals("-o") || arg.equals("-f") || arg.equals("-j") || arg.equals("--ffmpeg")) {
+				if (++i == args.length) {
+					throw new IllegalArgumentException("Missing value for " + arg);
+				}
+				String value = args[i];
+				switch (arg) {
+					case "-o": output = new File(value); break;
+					case "-f": format = value.startsWith(".") ? value.substring(1) : value; break;
+					case "-j": jobs = Math.max(1, Integer.parseInt(value)); break;
+					default: ffmpeg = new File(value);
+				}
+			} else if (arg.equals("--sync")) {
+				sync = true;
+			} else if (arg.equals("--pipe")) {
+				pipelined = true;
+			} else if (arg.startsWith("-") && !arg.equals("-")) {
+				throw new IllegalArgumentException("Unknown option " + arg);
+			} else {
+				inputs.add(arg);
+			}
+		}
+		if (inputs.isEmpty()) {
+			throw new IllegalArgumentException("Nothing to do");
+		}
+
+		for (String input : inputs) {
+			File file = new File(input);
+			if (input.equals("-")) {
+				addUrls(new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8)));
+			} else if (file.isDirectory()) {
+				if (format == null) {
+					throw new IllegalArgumentException("Converting the directory " + input + " needs a format (-f)");
+				}
+				File[] files = file.listFiles(File::isFile);
+				Arrays.sort(files);
+				for (File f : files) {
+					tasks.add(() -> convert(f));
+				}
+			} else if (file.isFile()) {
+				try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+					addUrls(reader);
+				}
+			} else {
+				addUrl(input);
+			}
+		}
+	}
+
+	private void addUrls(BufferedReader reader) throws IOException {
+		String line;
+		while ((line = reader.readLine()) != null) {
+			String url = line.trim();
+			if (!url.isEmpty() && !url.startsWith("#")) {
+				addUrl(url);
+			}
+		}
+	}
+
+	private void addUrl(String url) {
+		tasks.add(sync ? () -> sync(url) : () -> download(url));
+	}
+
+	private int execute(PrintStream results) {
+		Workspace.sweep(EzHttp.TEMP_LOCATION);
+		ExecutorService pool = Executors.newFixedThreadPool(jobs);
+		CompletionService<JsonObject> done = new ExecutorCompletionService<>(pool);
+		for (Callable<JsonObject> task : tasks) {
+			done.submit(task);
+		}
+
+		int failed = 0;
+		try {
+			for (int i = 0; i < tasks.size(); i++) {
+				JsonObject result = done.take().get(); //jobs report their own failures, so this never throws
+				if (result.has("error")) {
+					failed++;
+				}
+				results.println(result);
+				results.flush();
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			return 1;
+		} finally {
+			pool.shutdownNow();
+		}
+		return failed == 0 ? 0 : 1;
+	}
+
+	/**
+	 * Downloads a url, converting whatever it downloaded if there's a format
+	 * Every job downloads into a workspace of its own in the temp location first, which is the only way to tell which
+	 * files are the ones it downloaded while other jobs are downloading into the same place. Outputs are moved out of it
+	 * once the download is done, and folders made by the download (albums, for instance) are kept. The workspace is
+	 * named after the url, so if the cli is stopped partway, running it again on the same url resumes the partial
+	 * downloads left in there.
+	 */
+	private JsonObject download(String url) {
+		long start = System.currentTimeMillis();
+		Workspace workspace = null;
+		try {
+			output.mkdirs();
+			workspace = Workspace.open(EzHttp.TEMP_LOCATION, url);
+			Path staging = new File(workspace.getPath()).toPath();
+			DownloadSession session = new DownloadSession(staging.toString()).withFfmpeg(ffmpeg).withPipelined(pipelined);
+			if (format != null && Converter.isAudioFormat(format)) {
+				session = session.withAudioFormat(format); //videos then skip their video stream entirely
+			}
+			Downloader.get(url, session);
+
+			List<Path> files;
+			try (Stream<Path> walk = Files.walk(staging)) {
+				files = walk.filter(Files::isRegularFile).filter(file -> !Workspace.isLock(file.toFile())).sorted()
+						.collect(Collectors.toList());
+			}
+			List<File> outputs = new ArrayList<>();
+			List<Path> manifests = new ArrayList<>();
+			for (Path file : files) {
+				File directory = output.toPath().resolve(staging.relativize(file.getParent())).toFile();
+				if (EzHttp.isManifest(file.toFile())) {
+					manifests.add(file);
+				} else if (format == null || file.getFileName().toString().toLowerCase().endsWith("." + format.toLowerCase())) {
+					directory.mkdirs();
+					File target = new File(directory, file.getFileName().toString());
+					Files.move(file, target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+					outputs.add(target);
+				} else {
+					outputs.add(convertTo(file.toFile(), directory));
+				}
+			}
+			//checksums of the files that were moved as they were still hold, so they go in the manifest of where they went
+			for (Path manifest : manifests) {
+				Path directory = output.toPath().resolve(staging.relativize(manifest.getParent()));
+				List<String> lines = new ArrayList<>();
+				for (String line : Files.readAllLines(manifest, StandardCharsets.UTF_8)) {
+					String[] fields = line.split("  ", 3);
+					if (fields.length == 3 && outputs.contains(directory.resolve(fields[2]).toFile())) {
+						lines.add(line);
+					}
+				}
+				EzHttp.addToManifest(directory.toFile(), lines);
+			}
+			return result(url, start, outputs, null);
+		} catch (Exception e) {
+			return result(url, start, null, e);
+		} finally {
+			if (workspace != null) {
+				workspace.close(); //keeps partial downloads, for the next run to resume
+			}
+		}
+	}
+
+	/**
+	 * Syncs a bandcamp artist straight into the output directory, where the manifest of what was synced before is
+	 */
+	private JsonObject sync(String url) {
+		long start = System.currentTimeMillis();
+		try {
+			String summary = BandcampSync.sync(new URL(url), new DownloadSession(output.getPath() + File.separator)
+					.withFfmpeg(ffmpeg).withPipelined(pipelined));
+			JsonObject result = result(url, start, null, null);
+			result.addProperty("summary", summary);
+			return result;
+		} catch (Exception e) {
+			return result(url, start, null, e);
+		}
+	}
+
+	private JsonObject convert(File file) {
+		long start = System.currentTimeMillis();
+		try {
+			return result(file.getPath(), start, Arrays.asList(convertTo(file, output)), null);
+		} catch (Exception e) {
+			return result(file.getPath(), start, null, e);
+		}
+	}
+
+	/**
+	 * @return - The converted file, in directory
+	 */
+	private File convertTo(File file, File directory) throws Exception {
+		String name = file.getName();
+		int dot = name.lastIndexOf('.');
+		name = (dot > 0 ? name.substring(0, dot) : name) + "." + format;
+		new Converter(ffmpeg).convert(file, directory.getAbsolutePath(), name);
+		return new File(directory, name);
+	}
+
+	private static JsonObject result(String input, long start, List<File> outputs, Exception e) {
+		JsonObject result = new JsonObject();
+		result.addProperty("input", input);
+		result.addProperty("status", e == null ? "done" : "failed");
+		if (outputs != null) {
+			JsonArray files = new JsonArray();
+			for (File file : outputs) {
+				files.add(file.getAbsolutePath());
+			}
+			result.add("outputs", files);
+		}
+		if (e != null) {
+			result.addProperty("error", e.toString());
+		}
+		result.addProperty("ms", System.currentTimeMillis() - start);
+		return result;
+	}
+}
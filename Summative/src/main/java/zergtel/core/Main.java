@@ -3,34 +3,47 @@ package zergtel.core;
 
 import zergtel.UI.ComputerUI;
 import zergtel.core.downloader.EzHttp;
+import zergtel.core.downloader.Workspace;
+import zergtel.core.queue.JobQueue;
 
-import java.io.File;
+import java.io.IOException;
 
 /**
  * The main class that calls upon and starts the UI
  * Honestly, this class should be in zergtel.ui and not zergtel.core, but we've never come around to actually fixing that.
  *
  * There are two things to note in this main class (with our implementation of the ui, at the very least)
- *   1. We put the temp directory clearing on exit code here rather than as part of the main ui - you may decide to do this
- *      differently if you wish.
+ *   1. Every job cleans up its own temp files when it's done (see zergtel.core.downloader.Workspace). Only what was left
+ *      behind by jobs that never finished is cleared here, in the background when the program starts, rather than
+ *      everything at once on exit.
  *   2. The ui class object is assigned to a public static variable - this is very important for our implementation of
  *      task cancelling (see zergtel.core.ComputerUI for more)
+ *
+ * Given any arguments, the ui isn't started at all, and they're run from the command line instead (see Cli).
+ *
+ * The download queue is also opened here, so that anything left in it when the program last closed starts again. Both
+ * download buttons of the ui add their downloads to it.
  */
 public class Main {
 	public static ComputerUI ui;
+	public static JobQueue queue;
 	//main method which runs our program (as seen by the (String[] args))
 	public static void main(String[] args) {
+		if (args.length > 0) {
+			Cli.main(args);
+			return;
+		}
 		//runs ComputerUI
 		ui = new ComputerUI();
-		//clears temp folder when user closes JFrame
-		Runtime.getRuntime().addShutdownHook(new Thread() {
-			@Override
-			public void run() {
-				File temp = new File(EzHttp.TEMP_LOCATION);
-				for (File file : temp.listFiles()) {
-					file.delete();
-				}
-			}
-		});
+		//reloads the download queue and restarts whatever was unfinished in it
+		try {
+			queue = new JobQueue(JobQueue.DEFAULT_JOURNAL);
+			ui.watch(queue);
+			queue.start(2);
+		} catch (IOException e) {
+			System.err.println("Could not open the download queue: " + e.getMessage());
+		}
+		//clears out whatever jobs that crashed or were killed left in the temp folder, without holding up startup
+		Workspace.sweep(EzHttp.TEMP_LOCATION);
 	}
 }
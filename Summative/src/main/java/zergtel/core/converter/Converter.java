@@ -1,10 +1,19 @@
 package zergtel.core.converter;
 
-import javax.swing.JOptionPane;
 import java.io.BufferedReader;
 import java.io.File;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Converter class
@@ -17,42 +26,307 @@ public class Converter {
     public File file;
     private int terminated; //stores the value of the app if it successfully terminates.
     public final static File FILE_FFMPEG = new File("./ffmpeg.exe");
-    //Method called in order to convert videos using ffmpeg
-    public void convert(File f, String d, String n) {
-        try {
-            file = f;
-            directory = d + "\\";
-            name = n;
-            new File(directory).mkdirs();
-            cmd = FILE_FFMPEG.getAbsolutePath() + " -loglevel fatal" + " -i \"" + file.getAbsolutePath() + "\" \"" + directory + name + "\"";
-            System.out.println(cmd);
-            Runtime convert = Runtime.getRuntime();
-
-            File output = new File(directory + name);
-            System.out.println(output.getAbsolutePath());
-            System.out.println("Deleted: " + output.delete());
-
-            app = convert.exec(cmd);
-            BufferedReader appReader = new BufferedReader(new InputStreamReader(app.getErrorStream()));
+    private final File ffmpeg; //ffmpeg executable used by this instance
+    //codecs each format can hold without re-encoding, an empty list meaning any codec (matroska takes everything)
+    private static final Map<String, List<String>> COPYABLE = new HashMap<>();
+
+    static {
+        List<String> mp4 = Arrays.asList("h264", "hevc", "mpeg4", "av1", "aac", "mp3", "alac", "ac3");
+        COPYABLE.put("mp4", mp4);
+        COPYABLE.put("m4v", mp4);
+        COPYABLE.put("mov", mp4);
+        COPYABLE.put("m4a", Arrays.asList("aac", "alac"));
+        COPYABLE.put("mp3", Collections.singletonList("mp3"));
+        COPYABLE.put("aac", Collections.singletonList("aac"));
+        COPYABLE.put("flac", Collections.singletonList("flac"));
+        COPYABLE.put("ogg", Arrays.asList("vorbis", "opus", "flac"));
+        COPYABLE.put("opus", Collections.singletonList("opus"));
+        COPYABLE.put("webm", Arrays.asList("vp8", "vp9", "av1", "vorbis", "opus"));
+        COPYABLE.put("mkv", Collections.emptyList());
+        COPYABLE.put("mka", Collections.emptyList());
+    }
+
+    public Converter() {
+        this(FILE_FFMPEG);
+    }
+
+    //constructor for jobs that bring their own ffmpeg (see zergtel.core.downloader.DownloadSession)
+    public Converter(File ffmpeg) {
+        this.ffmpeg = ffmpeg;
+    }
+
+    /**
+     * Converts a file into another format, using ffmpeg
+     * If the codecs of the file can go in the new format as they are (h264 and aac into mp4, say), they're only copied
+     * into the new container rather than re-encoded, which takes seconds instead of as long as the video. Anything else,
+     * or anything ffprobe can't tell us about, is converted in full.
+     *
+     * @param f - File to convert
+     * @param d - Directory of the output file
+     * @param n - Name of the output file, whose extension decides the format
+     * @throws Exception - An IOException if ffmpeg couldn't be started or failed, or an InterruptedException if the
+     *                     thread was interrupted (ffmpeg is stopped in that case)
+     */
+    public void convert(File f, String d, String n) throws Exception {
+        file = f;
+        directory = d + File.separator;
+        name = n;
+        new File(directory).mkdirs();
+
+        File output = new File(directory + name);
+        System.out.println(output.getAbsolutePath());
+        System.out.println("Deleted: " + output.delete());
+
+        long start = System.currentTimeMillis();
+        if (canCopy(probe(file), name)) {
+            String[] command = {ffmpeg.getAbsolutePath(), "-loglevel", "fatal", "-i", file.getAbsolutePath(), "-c", "copy", directory + name};
+            cmd = String.join(" ", command);
+            app = start(command);
             try {
-                app.waitFor();
-                terminated = app.waitFor();
-                if(terminated == 0)
-                    System.out.println("WOOOOOOOOOOOOOOO!");
-                else {
-                    Thread.sleep(500);
-                    File file = new File(directory + name);
-                    if(file.exists() == false)
-                        JOptionPane.showMessageDialog(null, "Conversion failed!");
+                terminated = await(app, "Copying " + file.getName());
+                System.out.println("Copied streams in " + (System.currentTimeMillis() - start) + "ms");
+                return;
+            } catch (IOException e) {
+                //the probe missed something (an odd subtitle stream, for instance), which a full conversion can deal with
+                System.out.println(e.getMessage() + ", converting instead");
+                output.delete();
+            }
+        }
+
+        String[] command = {ffmpeg.getAbsolutePath(), "-loglevel", "fatal", "-i", file.getAbsolutePath(), directory + name};
+        cmd = String.join(" ", command);
+        app = start(command);
+        terminated = await(app, "Conversion of " + file.getName());
+        System.out.println("Converted in " + (System.currentTimeMillis() - start) + "ms");
+    }
+
+    /**
+     * Finds the codecs of the video and audio streams of a file, using the ffprobe that comes with ffmpeg
+     *
+     * @param f - File to look at
+     * @return - Codec names as ffmpeg knows them (h264, aac, opus...), or null if ffprobe isn't there or failed
+     * @throws Exception - An InterruptedException if interrupted while ffprobe runs, in which case it's stopped
+     */
+    List<String> probe(File f) throws Exception {
+        File ffprobe = new File(ffmpeg.getAbsoluteFile().getParentFile(), ffmpeg.getName().replace("ffmpeg", "ffprobe"));
+        if (ffprobe.equals(ffmpeg.getAbsoluteFile()) || !ffprobe.isFile()) {
+            return null;
+        }
+
+        List<String> codecs = new ArrayList<>();
+        try {
+            Process probe = start(ffprobe.getAbsolutePath(), "-v", "error", "-show_entries", "stream=codec_type,codec_name",
+                    "-of", "csv=p=0", f.getAbsolutePath());
+            try (BufferedReader out = new BufferedReader(new InputStreamReader(probe.getInputStream(), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = out.readLine()) != null) {
+                    //codec_name,codec_type - subtitles and data streams don't count, ffmpeg doesn't pick them for most formats
+                    String[] fields = line.trim().split(",");
+                    if (fields.length == 2 && (fields[1].equals("video") || fields[1].equals("audio"))) {
+                        codecs.add(fields[0]);
+                    }
                 }
-            } catch (InterruptedException e) {
-                e.printStackTrace();
             }
+            await(probe, "Probing " + f.getName());
         } catch (IOException e) {
-            e.printStackTrace();
+            System.out.println(e.getMessage());
+            return null;
         }
+        return codecs;
+    }
+
+    /**
+     * Checks whether every stream of a file can be copied into another format as it is
+     *
+     * @param codecs - Codecs of the video and audio streams of the file (see probe), can be null
+     * @param n - Name of the output file, whose extension decides the format
+     * @return - True if ffmpeg can simply copy the streams over
+     */
+    static boolean canCopy(List<String> codecs, String n) {
+        String extension = n.substring(n.lastIndexOf('.') + 1).toLowerCase();
+        if (codecs == null || codecs.isEmpty() || !COPYABLE.containsKey(extension)) {
+            return false;
+        }
+        List<String> allowed = COPYABLE.get(extension);
+        return allowed.isEmpty() || allowed.containsAll(codecs);
+    }
+
+    /**
+     * Converts an input that is fed to ffmpeg as it arrives, rather than read from a file
+     *
+     * @param source - Writes the input into ffmpeg. Must be in a container ffmpeg can read without seeking (see isStreamable)
+     * @param d - Directory of the output file
+     * @param n - Name of the output file
+     * @throws Exception - Whatever source threw, or an IOException if ffmpeg failed
+     */
+    public void convert(PipeSource source, String d, String n) throws Exception {
+        directory = d + File.separator;
+        name = n;
+        new File(directory).mkdirs();
+
+        File output = new File(directory + name);
+        System.out.println("Deleted: " + output.delete());
+
+        String[] command = {ffmpeg.getAbsolutePath(), "-loglevel", "fatal", "-i", "pipe:0", directory + name};
+        cmd = String.join(" ", command);
+        app = start(command);
+        terminated = feed(app, source);
+    }
 
+    /**
+     * Starts ffmpeg (or any other program)
+     * Each argument is passed as is, so paths with spaces need no quoting - on linux, Runtime.exec(String) would have
+     * split them apart.
+     *
+     * @param command - Program followed by its arguments
+     * @return - The started program
+     * @throws IOException - If the program couldn't be started
+     */
+    static Process start(String... command) throws IOException {
+        System.out.println(String.join(" ", command));
+        return new ProcessBuilder(command).start();
     }
+
+    /**
+     * Writes the output of source into a running ffmpeg, and waits for ffmpeg to finish
+     *
+     * @param app - ffmpeg, reading its input from pipe:0
+     * @param source - See PipeSource
+     * @return - ffmpeg's exit code, which is always 0
+     * @throws Exception - Whatever source threw, or an IOException if ffmpeg failed
+     */
+    static int feed(Process app, PipeSource source) throws Exception {
+        Stdin stdin = new Stdin(app.getOutputStream());
+        try {
+            source.writeTo(stdin);
+        } catch (Exception e) {
+            //a failed write only means ffmpeg stopped reading, in which case its exit code says why. Anything else is the
+            //source's fault, and ffmpeg is stopped before its input is closed, so it can't finish on the part it was given
+            if (!stdin.failed) {
+                stop(app);
+                stdin.closeQuietly();
+                throw e;
+            }
+        }
+        stdin.closeQuietly();
+
+        return await(app, "ffmpeg");
+    }
+
+    /**
+     * ffmpeg's stdin, which remembers whether writing to it ever failed
+     */
+    private static class Stdin extends FilterOutputStream {
+        private volatile boolean failed;
+
+        private Stdin(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            try {
+                out.write(b);
+            } catch (IOException e) {
+                failed = true;
+                throw e;
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            try {
+                out.write(b, off, len);
+            } catch (IOException e) {
+                failed = true;
+                throw e;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            try {
+                out.flush();
+            } catch (IOException e) {
+                failed = true;
+                throw e;
+            }
+        }
+
+        /**
+         * Closes the pipe. Failing to means ffmpeg has stopped reading already, which its exit code explains better
+         */
+        private void closeQuietly() {
+            try {
+                out.close();
+            } catch (IOException e) {
+                failed = true;
+            }
+        }
+    }
+
+    /**
+     * Stops ffmpeg, and waits a little for it to be gone, so that whatever runs next (a fallback to temp files, say)
+     * doesn't end up writing the same output file at the same time
+     */
+    private static void stop(Process app) {
+        app.destroy();
+        try {
+            app.waitFor(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt(); //cancelled, so nothing runs next anyway
+        }
+    }
+
+    /**
+     * Waits for ffmpeg to finish
+     *
+     * @param app - A running ffmpeg
+     * @param what - What ffmpeg is doing, for the error message
+     * @return - ffmpeg's exit code, which is always 0
+     * @throws Exception - An IOException if ffmpeg failed, or an InterruptedException if interrupted while waiting, in
+     *                     which case ffmpeg is stopped
+     */
+    static int await(Process app, String what) throws Exception {
+        int exit;
+        try {
+            exit = app.waitFor();
+        } catch (InterruptedException e) {
+            app.destroy();
+            throw e;
+        }
+        if (exit != 0) {
+            throw new IOException(what + " failed, ffmpeg exited with " + exit);
+        }
+        System.out.println("WOOOOOOOOOOOOOOO!");
+        return exit;
+    }
+
+    /**
+     * Checks whether ffmpeg can read a container from a pipe
+     * mp4 and mov can keep their index at the very end of the file, where ffmpeg can't reach it without seeking, so
+     * those (and anything unknown) have to be downloaded to a file first.
+     *
+     * @param contentType - Mime type of the input, can be null
+     * @return - True if the input can be fed to ffmpeg through a PipeSource
+     */
+    public static boolean isStreamable(String contentType) {
+        if (contentType == null) {
+            return false;
+        }
+        String type = contentType.toLowerCase().split(";")[0].trim();
+        return type.endsWith("/webm") || type.endsWith("/ogg") || type.equals("audio/mpeg") || type.endsWith("/x-matroska")
+                || type.endsWith("/x-flv") || type.equals("video/mp2t") || type.equals("audio/aac");
+    }
+
+    /**
+     * @param extension - Extension of a format, without the dot
+     * @return - True if the format only holds audio, so that a video converted to it only needs its audio
+     */
+    public static boolean isAudioFormat(String extension) {
+        return Arrays.asList("mp3", "m4a", "aac", "ogg", "opus", "flac", "wav").contains(extension.toLowerCase());
+    }
+
     //returns the value of terminated, used in ComputerUI class.
     public int getTerminated() { return terminated; }
 
@@ -1,10 +1,6 @@
 package zergtel.core.converter;
 
-import javax.swing.JOptionPane;
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.IOException;
-import java.io.InputStreamReader;
 /**
  * Merge class
  * Merging is done by using an application called FFMPEG, which merges audio and video formats together
@@ -16,42 +12,70 @@ public class Merge {
     public File file1, file2;
     private int terminated; //stores the value of the app if it successfully terminates.
     public final static File FILE_FFMPEG = new File("./ffmpeg.exe");
-    //Method called to merge video and audio clips together
-    public void merge(File f1, File f2, String d, String n) {
-        try {
-            file1 = f1;
-            file2 = f2;
-            directory = d + "\\";
-            name = n;
-            new File(directory).mkdirs();
-            cmd = FILE_FFMPEG.getAbsolutePath() + " -loglevel fatal" + " -i \"" + file1.getAbsolutePath() + "\" -i \"" + file2.getAbsolutePath() + "\" -c:v copy -c:a aac \"" + directory + name + "\"";
-            System.out.println(cmd);
-            Runtime convert = Runtime.getRuntime();
-            app = convert.exec(cmd);
-
-            File output = new File(directory + name);
-            System.out.println(output.getAbsolutePath());
-            System.out.println("Deleted: " + output.delete());
-
-            BufferedReader appReader = new BufferedReader(new InputStreamReader(app.getErrorStream()));
-            try {
-                app.waitFor();
-                terminated = app.waitFor();
-                if(terminated == 0)
-                    System.out.println("WOOOOOOOOOOOOOOOOOOO!");
-                else {
-                    Thread.sleep(500);
-                    File file = new File(directory + name);
-                    if(file.exists() == false)
-                        JOptionPane.showMessageDialog(null, "Merging failed!");
-                }
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-            }
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+    private final File ffmpeg; //ffmpeg executable used by this instance
+
+    public Merge() {
+        this(FILE_FFMPEG);
+    }
+
+    //constructor for jobs that bring their own ffmpeg (see zergtel.core.downloader.DownloadSession)
+    public Merge(File ffmpeg) {
+        this.ffmpeg = ffmpeg;
+    }
+
+    /**
+     * Merges a video and an audio file into one, using ffmpeg
+     *
+     * @param f1 - Video file
+     * @param f2 - Audio file
+     * @param d - Directory of the output file
+     * @param n - Name of the output file
+     * @throws Exception - See Converter.convert(File, String, String)
+     */
+    public void merge(File f1, File f2, String d, String n) throws Exception {
+        file1 = f1;
+        file2 = f2;
+        directory = d + File.separator;
+        name = n;
+        new File(directory).mkdirs();
+
+        File output = new File(directory + name);
+        System.out.println(output.getAbsolutePath());
+        System.out.println("Deleted: " + output.delete());
+
+        String[] command = {ffmpeg.getAbsolutePath(), "-loglevel", "fatal", "-i", file1.getAbsolutePath(), "-i", file2.getAbsolutePath(),
+                "-c:v", "copy", "-c:a", "aac", directory + name};
+        cmd = String.join(" ", command);
+        app = Converter.start(command);
+        terminated = Converter.await(app, "Merging into " + name);
+    }
+
+    /**
+     * Merges an input that is fed to ffmpeg as it arrives with one that is already a file
+     * ffmpeg only has one stdin, so only one of the two inputs can be piped - usually the video, being the bigger one.
+     *
+     * @param source - Writes the first input into ffmpeg. See Converter.isStreamable
+     * @param f2 - Second input
+     * @param d - Directory of the output file
+     * @param n - Name of the output file
+     * @throws Exception - Whatever source threw, or an IOException if ffmpeg failed
+     */
+    public void merge(PipeSource source, File f2, String d, String n) throws Exception {
+        file2 = f2;
+        directory = d + File.separator;
+        name = n;
+        new File(directory).mkdirs();
+
+        File output = new File(directory + name);
+        System.out.println("Deleted: " + output.delete());
+
+        String[] command = {ffmpeg.getAbsolutePath(), "-loglevel", "fatal", "-i", "pipe:0", "-i", file2.getAbsolutePath(),
+                "-c:v", "copy", "-c:a", "aac", directory + name};
+        cmd = String.join(" ", command);
+        app = Converter.start(command);
+        terminated = Converter.feed(app, source);
     }
+
     //returns the value of terminated, used in ComputerUI class.
     public int getTerminated() { return terminated; }
 }
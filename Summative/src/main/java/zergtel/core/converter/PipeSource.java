@@ -0,0 +1,18 @@
+package zergtel.core.converter;
+
+import java.io.OutputStream;
+
+/**
+ * Something that writes the input of an ffmpeg run straight into ffmpeg's stdin, such as a download that is still in
+ * progress. This lets conversion run at the same time as the download, without the input ever being saved to disk.
+ *
+ * Only some containers can be read this way, since ffmpeg can't seek back in a pipe - see Converter.isStreamable.
+ */
+@FunctionalInterface
+public interface PipeSource {
+    /**
+     * @param stdin - ffmpeg's stdin. Closed by the caller once this returns
+     * @throws Exception - If the input couldn't be written, which fails the conversion
+     */
+    void writeTo(OutputStream stdin) throws Exception;
+}
@@ -1,14 +1,13 @@
 package zergtel.core.downloader;
 
 
-import com.google.gson.JsonArray;
-import com.google.gson.JsonObject;
-import com.google.gson.JsonParser;
-
-import java.io.BufferedReader;
-import java.io.File;
-import java.io.FileReader;
+import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 
 
 /**
@@ -18,12 +17,26 @@ import java.net.URL;
  */
 
 public class Bandcamp {
+    private static volatile int trackConcurrency = 4;
+
+    public static int getTrackConcurrency() {
+        return trackConcurrency;
+    }
+
+    /**
+     * Sets how many tracks of an album download at once
+     * The tracks all come from the same cdn host, so this should stay at or below HttpPool.getMaxPerHost - anything
+     * above that only waits for a connection. Sockets are kept alive by HttpPool, so each track after the first few
+     * reuses a connection rather than making a new one.
+     *
+     * @param ntrackConcurrency - Most tracks downloading at once, per album
+     */
+    public static void setTrackConcurrency(int ntrackConcurrency) {
+        trackConcurrency = Math.max(1, ntrackConcurrency);
+    }
 
     public static String get(URL url) throws Exception {
-        File tmp;
-        tmp = new File(EzHttp.get(url.toString(), "bandcamp.tmp", EzHttp.TEMP_LOCATION));
-        String[] downloadedFiles = extractFiles(tmp);
-        return getTitle(tmp);
+        return get(url, DownloadSession.fromDefaults());
     }
 
     public static String get(String url) throws Exception{
@@ -31,7 +44,22 @@ public class Bandcamp {
     }
 
     /**
-     * Extracts and downloads all songs from a given bandcamp page
+     * Downloads every track on a bandcamp page into a folder named after the page
+     *
+     * @param url - Url of a bandcamp album or track page
+     * @param session - Session of the job, for its download location
+     * @return - Title of the page
+     * @throws Exception - If the page itself can't be read, or if any of the tracks failed (after the rest are done)
+     */
+    public static String get(URL url, DownloadSession session) throws Exception {
+        BandcampPage page = EzHttp.read(url, session, BandcampPage::parse);
+        String title = page.getTitle() != null ? page.getTitle() : url.getHost();
+        downloadTracks(page, title, session);
+        return title;
+    }
+
+    /**
+     * Downloads all songs from a given bandcamp page, several at once (see setTrackConcurrency)
      *
      * To download from bandcamp:
      * In the script sections of the html of any album/track page, there will be a JSON object in the form of var TralbumData -
@@ -41,94 +69,80 @@ public class Bandcamp {
      * Normally, the only available format to download is mp3-128. However, sometimes we are lucky and it's a free download by default -
      * in that case, we have things like flac and mp3-320 to choose from.
      * As of right now though, this class downloads mp3-128 only - we will have to add additional format detection later
+     * (see BandcampPage, which does the actual reading of the page)
      *
-     * @param file - Html file of bandcamp page
-     * @return - Array of names of songs found on the bandcamp page
+     * @param page - The bandcamp page
+     * @param folder - Name of the folder to download into
+     * @param session - Session of the job, for its download location
+     * @return - Array of the files of the songs found on the bandcamp page, in the order of the page
+     * @throws IOException - If any track failed to download, even after retrying. Each track is retried on its own, the
+     *                       other tracks are still downloaded, and the failures are attached as suppressed exceptions.
+     *                       InterruptedIOException if interrupted, in which case the tracks still downloading are cancelled
      */
-    private static String[] extractFiles(File file) {
-        //such a good debug tool for json shenanigans: http://jsonviewer.stack.hu/
-        String rawJson = extractLine(file, "poppler");
-//        System.out.println(rawJson);
-
-        //preprocessing json
-        rawJson = "{".concat(rawJson.trim());
-        rawJson = rawJson.substring(0, rawJson.length() - 2).concat("]}");
-
-
-        JsonParser parser = new JsonParser();
-        JsonArray mediaList = ((JsonObject) parser
-                .parse(rawJson))
-                .getAsJsonArray("trackinfo");
-
-        String folder = getTitle(file);
+    private static String[] downloadTracks(BandcampPage page, String folder, DownloadSession session) throws IOException {
         System.out.println("Folder: " + folder);
 
-        String[] output = new String[mediaList.size()];
-        for (int i = 0; i < mediaList.size(); i++) {
-            JsonObject media = mediaList
-                    .get(i)
-                    .getAsJsonObject();
-
-            String downloadLink = "http:".concat(
-                    media
-                            .get("file")
-                            .getAsJsonObject()
-                            .get("mp3-128")
-                            .toString()
-                            .replaceAll("\"", "")
-            );
-
-            String mediaName = media
-                    .get("title")
-                    .toString()
-                    .concat(".mp3");
+        List<BandcampPage.Track> tracks = page.getTracks();
+        List<CompletableFuture<String>> downloads = startTracks(tracks, folder, session);
 
+        String[] output = new String[tracks.size()];
+        IOException failures = null;
+        for (int i = 0; i < tracks.size(); i++) {
             try {
-                System.out.println(mediaName + " - " + downloadLink);
-                System.out.println(folder);
-                System.out.println(EzHttp.getDownloadLocation());
-                EzHttp.get(downloadLink, mediaName, EzHttp.getDownloadLocation() + folder);
-                output[i] = folder + "\\" + mediaName;
-            } catch (Exception e) {
-                e.printStackTrace();
+                output[i] = downloads.get(i).get();
+            } catch (InterruptedException e) {
+                for (CompletableFuture<String> download : downloads) {
+                    download.cancel(true);
+                }
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while downloading " + folder);
+            } catch (ExecutionException e) {
+                //EzHttp has already retried whatever was worth retrying, so this track is lost - but the rest aren't
+                e.getCause().printStackTrace();
+                if (failures == null) {
+                    failures = new IOException("Some tracks of " + folder + " failed to download");
+                }
+                failures.addSuppressed(e.getCause());
             }
-
         }
 
+        if (failures != null) {
+            throw failures;
+        }
         return output;
     }
 
     /**
-     * Gets the first line within file that contains str
+     * Starts downloading tracks, several at once (see setTrackConcurrency)
      *
-     * @param file - File to scan
-     * @param str - String to scan for
-     * @return - Line of file where str is found (the actual line, not the line number)
+     * @param tracks - Tracks to download
+     * @param folder - Name of the folder to download into
+     * @param session - Session of the job, for its download location
+     * @return - A future per track, in the same order, that completes with the absolute name of the track's file once it's
+     *           downloaded, or with why it failed. Cancelling a future cancels its track
      */
-    private static String extractLine(File file, String str) {
-        String line;
-        try (BufferedReader br = new BufferedReader(new FileReader(file))) {
-            while ((line = br.readLine()) != null) {
-                if (line.contains(str)) {
-                    System.out.println(line);
-                    break;
-                }
-            }
-        } catch (Exception e) {
-            System.err.println("doh");
-            e.printStackTrace();
-            return "";
-        }
-        return line;
+    static List<CompletableFuture<String>> startTracks(List<BandcampPage.Track> tracks, String folder, DownloadSession session) {
+        //every track counts against the same limit, so the scheduler's host limit is simply set to match
+        return startTracks(tracks, folder, session, new BatchScheduler(trackConcurrency, trackConcurrency));
     }
 
     /**
-     * Gets title of html page
+     * Starts downloading tracks on a scheduler that may be shared with other albums (see BandcampSync)
      *
-     * @param http - html file
-     * @return - Title of html file
+     * @param scheduler - Scheduler to run the downloads on
+     * @return - See startTracks(List, String, DownloadSession)
      */
-    private static String getTitle(File http) {
-        return extractLine(http, "<title>").trim().replaceAll("<(.*?)>|\\\\|\\/", "");
+    static List<CompletableFuture<String>> startTracks(List<BandcampPage.Track> tracks, String folder, DownloadSession session,
+                                                      BatchScheduler scheduler) {
+        List<CompletableFuture<String>> downloads = new ArrayList<>();
+        for (BandcampPage.Track track : tracks) {
+            String downloadLink = track.getLink();
+            String mediaName = track.getTitle().concat(".mp3");
+            downloads.add(scheduler.submit(folder, () -> {
+                System.out.println(mediaName + " - " + downloadLink);
+                return EzHttp.get(downloadLink, mediaName, session.getDownloadLocation() + folder, session);
+            }));
+        }
+        return downloads;
     }
 }
@@ -0,0 +1,18 @@
+package zergtel.core.downloader;
+
+import java.net.URL;
+
+/**
+ * Extractor for bandcamp albums and tracks, see Bandcamp
+ */
+public class BandcampExtractor implements Extractor {
+    @Override
+    public String[] hosts() {
+        return new String[] {"bandcamp.com"};
+    }
+
+    @Override
+    public String get(URL uri, DownloadSession session) throws Exception {
+        return Bandcamp.get(uri, session);
+    }
+}
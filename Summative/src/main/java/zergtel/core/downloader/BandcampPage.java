@@ -0,0 +1,203 @@
+package zergtel.core.downloader;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PushbackReader;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * What Bandcamp needs from an album or track page: its title and its tracks
+ *
+ * The page is read once, as it arrives, looking for two things: the <title> tag, and the trackinfo list in the
+ * TralbumData script, which looks like
+ *   trackinfo: [{"title": "...", "file": {"mp3-128": "//..."}, ...}, ...],
+ * Once the list is found, Gson's streaming JsonReader (in lenient mode, since the script is javascript rather than
+ * strict json) reads it track by track, keeping only the id, title and link of each. Reading stops at the end of the list,
+ * so the rest of the page (usually most of it) is never downloaded.
+ */
+class BandcampPage {
+    private static final char[] TITLE = "<title>".toCharArray();
+    private static final char[] TRACKINFO = "trackinfo".toCharArray();
+
+    private final String title;
+    private final List<Track> tracks;
+
+    private BandcampPage(String title, List<Track> tracks) {
+        this.title = title;
+        this.tracks = tracks;
+    }
+
+    /**
+     * @return - Title of the page, cleaned up for use as a folder name, or null if the page had no title before its tracks
+     */
+    String getTitle() {
+        return title;
+    }
+
+    List<Track> getTracks() {
+        return tracks;
+    }
+
+    /**
+     * A single track of a page
+     */
+    static class Track {
+        private final String id;
+        private final String title;
+        private final String link;
+
+        private Track(String id, String title, String link) {
+            this.id = id;
+            this.title = title;
+            this.link = link;
+        }
+
+        /**
+         * @return - Bandcamp's id of the track, which stays the same for as long as the track exists, or null if the page
+         *           didn't have one
+         */
+        String getId() {
+            return id;
+        }
+
+        String getTitle() {
+            return title;
+        }
+
+        /**
+         * @return - Download link of the mp3-128 version of the track
+         */
+        String getLink() {
+            return link;
+        }
+    }
+
+    /**
+     * Reads a page up to the end of its track list
+     *
+     * @param page - Html of the page
+     * @return - The title and tracks of the page
+     * @throws IOException - If page couldn't be read, or has no track list
+     */
+    static BandcampPage parse(Reader page) throws IOException {
+        PushbackReader in = new PushbackReader(new BufferedReader(page, 16 * 1024), 1);
+        String title = null;
+        int titleMatch = 0;
+        int trackMatch = 0;
+        int c;
+        while ((c = in.read()) != -1) {
+            //both markers start with a character that appears nowhere else in them, so a mismatch can simply start over
+            if (title == null) {
+                titleMatch = c == TITLE[titleMatch] ? titleMatch + 1 : c == TITLE[0] ? 1 : 0;
+                if (titleMatch == TITLE.length) {
+                    title = readTitle(in);
+                    titleMatch = 0;
+                }
+            }
+            trackMatch = c == TRACKINFO[trackMatch] ? trackMatch + 1 : c == TRACKINFO[0] ? 1 : 0;
+            if (trackMatch == TRACKINFO.length) {
+                trackMatch = 0;
+                if (startsList(in)) {
+                    return new BandcampPage(title, readTracks(in));
+                }
+            }
+        }
+        throw new IOException("No track list found on the page");
+    }
+
+    /**
+     * Reads the text of a title tag, up to its closing tag
+     */
+    private static String readTitle(Reader in) throws IOException {
+        StringBuilder title = new StringBuilder();
+        int c;
+        while ((c = in.read()) != -1 && c != '<') {
+            title.append((char) c);
+        }
+        return title.toString().trim().replaceAll("\\\\|/", "");
+    }
+
+    /**
+     * Skips past what comes between the word trackinfo and the list itself - a closing quote if the name was quoted,
+     * the colon, and any whitespace - and checks that the list really does start there, rather than the word turning up
+     * somewhere else on the page
+     *
+     * @return - True if the next character of in is the [ of the list
+     */
+    private static boolean startsList(PushbackReader in) throws IOException {
+        int c = in.read();
+        if (c == '"' || c == '\'') {
+            c = in.read();
+        }
+        c = skipWhitespace(in, c);
+        if (c == ':') {
+            c = skipWhitespace(in, in.read());
+        } else {
+            c = -1;
+        }
+        if (c != -1) {
+            in.unread(c); //the [ for the JsonReader, or else whatever came instead for the scan to carry on from
+        }
+        return c == '[';
+    }
+
+    private static int skipWhitespace(Reader in, int c) throws IOException {
+        while (c != -1 && Character.isWhitespace(c)) {
+            c = in.read();
+        }
+        return c;
+    }
+
+    private static List<Track> readTracks(Reader in) throws IOException {
+        JsonReader json = new JsonReader(in);
+        json.setLenient(true);
+        List<Track> tracks = new ArrayList<>();
+        json.beginArray();
+        while (json.hasNext()) {
+            String id = null;
+            String title = null;
+            String link = null;
+            json.beginObject();
+            while (json.hasNext()) {
+                String name = json.nextName();
+                if (name.equals("title") && json.peek() == JsonToken.STRING) {
+                    title = json.nextString();
+                } else if ((name.equals("track_id") || name.equals("id") && id == null)
+                        && (json.peek() == JsonToken.NUMBER || json.peek() == JsonToken.STRING)) {
+                    id = json.nextString();
+                } else if (name.equals("file") && json.peek() == JsonToken.BEGIN_OBJECT) {
+                    json.beginObject();
+                    while (json.hasNext()) {
+                        if (json.nextName().equals("mp3-128") && json.peek() == JsonToken.STRING) {
+                            link = json.nextString();
+                        } else {
+                            json.skipValue();
+                        }
+                    }
+                    json.endObject();
+                } else {
+                    json.skipValue();
+                }
+            }
+            json.endObject();
+
+            if (title == null) {
+                title = "Track " + (tracks.size() + 1);
+            }
+            if (link == null) {
+                //tracks that can't be streamed have no file at all
+                System.out.println("No download for " + title);
+                continue;
+            }
+            tracks.add(new Track(id, title, link.startsWith("//") ? "http:" + link : link));
+        }
+        json.endArray();
+        return Collections.unmodifiableList(tracks);
+    }
+}
@@ -0,0 +1,244 @@
+package zergtel.core.downloader;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Keeps a local copy of a bandcamp artist's whole discography up to date
+ *
+ * A sync reads the artist's music page for the links to their albums and tracks, reads every one of those pages (several
+ * at once, each only up to the end of its track list - see BandcampPage), and then downloads only the tracks that aren't
+ * already in the download location. Which tracks those are is kept in a manifest (ztvdc.bandcamp) in the download
+ * location, by bandcamp's id of each track: a track is downloaded again only if it's new, its title changed, or its
+ * file has gone missing. Repeat syncs therefore only cost a page read per album.
+ *
+ * Albums go in folders named after their pages, the same as with Bandcamp.get.
+ */
+public class BandcampSync {
+    static final String MANIFEST = "ztvdc.bandcamp";
+    //album links, either in the grid of the music page or in the json of the albums it loads later (slashes escaped)
+    private static final Pattern ALBUM_LINK = Pattern.compile(
+            "(?:href=\"|&quot;page_url&quot;:&quot;|\"page_url\":\\s*\")((?:https?:(?:\\\\?/){2}[^/\"&\\\\]+)?\\\\?/(?:album|track)\\\\?/[^\"&?#]+)");
+    private static volatile int albumConcurrency = 4;
+
+    public static int getAlbumConcurrency() {
+        return albumConcurrency;
+    }
+
+    /**
+     * @param nalbumConcurrency - Most album pages read at once. How many tracks download at once is set by
+     *                            Bandcamp.setTrackConcurrency, for the whole sync
+     */
+    public static void setAlbumConcurrency(int nalbumConcurrency) {
+        albumConcurrency = Math.max(1, nalbumConcurrency);
+    }
+
+    /**
+     * Brings the local copy of an artist up to date
+     *
+     * @param artist - Url of the artist, e.g. https://artist.bandcamp.com. Their /music page is used if no page is given
+     * @param session - Session of the job. Its download location holds the albums and the manifest
+     * @return - Summary of what was synced
+     * @throws Exception - If the music page couldn't be read, or if any album or track failed (after the rest are done,
+     *                     with the failures attached as suppressed exceptions)
+     */
+    public static String sync(URL artist, DownloadSession session) throws Exception {
+        String path = artist.getPath();
+        URL music = path.isEmpty() || path.equals("/") ? new URL(artist, "/music") : artist;
+        List<URL> albums = EzHttp.read(music, session, page -> albumLinks(music, page));
+        if (albums.isEmpty()) {
+            //an artist with a single release shows it instead of a list
+            albums = Collections.singletonList(music);
+        }
+        System.out.println("Syncing " + albums.size() + " albums of " + artist);
+
+        File manifestFile = new File(session.getDownloadLocation(), MANIFEST);
+        Path base = new File(session.getDownloadLocation()).getAbsoluteFile().toPath();
+        Properties manifest = load(manifestFile);
+
+        BatchScheduler pages = new BatchScheduler(albumConcurrency, albumConcurrency);
+        BatchScheduler tracks = new BatchScheduler(Bandcamp.getTrackConcurrency(), Bandcamp.getTrackConcurrency());
+        List<CompletableFuture<Album>> started = new ArrayList<>();
+        for (URL album : albums) {
+            started.add(pages.submit(album.getHost(), () -> {
+                BandcampPage page = EzHttp.read(album, session, BandcampPage::parse);
+                return start(album, page, manifest, manifestFile, base, session, tracks);
+            }));
+        }
+
+        int downloaded = 0;
+        int upToDate = 0;
+        IOException failures = null;
+        List<CompletableFuture<?>> all = new ArrayList<>(started);
+        try {
+            for (CompletableFuture<Album> future : started) {
+                Album album;
+                try {
+                    album = future.get();
+                } catch (ExecutionException e) {
+                    failures = addFailure(failures, artist, e.getCause());
+                    continue;
+                }
+                all.addAll(album.started);
+                upToDate += album.upToDate;
+                for (CompletableFuture<String> download : album.downloads) {
+                    try {
+                        download.get();
+                        downloaded++;
+                    } catch (ExecutionException e) {
+                        failures = addFailure(failures, artist, e.getCause());
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            for (CompletableFuture<?> future : all) {
+                future.cancel(true);
+            }
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while syncing " + artist);
+        } finally {
+            save(manifest, manifestFile);
+        }
+
+        String summary = "Synced " + albums.size() + " albums of " + artist + ": " + downloaded + " tracks downloaded, "
+                + upToDate + " already up to date";
+        System.out.println(summary);
+        if (failures != null) {
+            throw failures;
+        }
+        return summary;
+    }
+
+    /**
+     * The tracks of one album that are being downloaded
+     */
+    private static class Album {
+        private final List<CompletableFuture<String>> started; //as the scheduler returned them, for cancelling
+        private final List<CompletableFuture<String>> downloads; //completing once each track is in the manifest too
+        private final int upToDate;
+
+        private Album(List<CompletableFuture<String>> started, List<CompletableFuture<String>> downloads, int upToDate) {
+            this.started = started;
+            this.downloads = downloads;
+            this.upToDate = upToDate;
+        }
+    }
+
+    /**
+     * Starts downloading the tracks of an album that aren't up to date, recording each in the manifest as it finishes
+     */
+    private static Album start(URL url, BandcampPage page, Properties manifest, File manifestFile, Path base,
+                               DownloadSession session, BatchScheduler scheduler) {
+        String folder = page.getTitle() != null ? page.getTitle() : url.getPath().substring(url.getPath().lastIndexOf('/') + 1);
+        List<BandcampPage.Track> needed = new ArrayList<>();
+        List<String> keys = new ArrayList<>();
+        for (BandcampPage.Track track : page.getTracks()) {
+            String key = track.getId() != null ? track.getId() : url + "#" + track.getTitle();
+            String title;
+            String file;
+            synchronized (manifest) {
+                title = manifest.getProperty(key + ".title");
+                file = manifest.getProperty(key + ".file");
+            }
+            if (track.getTitle().equals(title) && file != null && base.resolve(file).toFile().exists()) {
+                continue;
+            }
+            needed.add(track);
+            keys.add(key);
+        }
+        System.out.println(folder + ": " + needed.size() + " of " + page.getTracks().size() + " tracks to download");
+
+        List<CompletableFuture<String>> started = Bandcamp.startTracks(needed, folder, session, scheduler);
+        List<CompletableFuture<String>> downloads = new ArrayList<>();
+        for (int i = 0; i < started.size(); i++) {
+            String key = keys.get(i);
+            String title = needed.get(i).getTitle();
+            downloads.add(started.get(i).thenApply(file -> {
+                synchronized (manifest) {
+                    manifest.setProperty(key + ".title", title);
+                    manifest.setProperty(key + ".file", base.relativize(new File(file).getAbsoluteFile().toPath()).toString());
+                }
+                return file;
+            }));
+        }
+        //saving once an album is done, rather than only at the end, keeps what a cut off sync got done
+        if (!downloads.isEmpty()) {
+            CompletableFuture.allOf(downloads.toArray(new CompletableFuture<?>[0])).whenComplete((ignored, e) -> save(manifest, manifestFile));
+        }
+        return new Album(started, downloads, page.getTracks().size() - needed.size());
+    }
+
+    /**
+     * @return - Links of every album and track on a music page, in the order of the page
+     */
+    static List<URL> albumLinks(URL music, Reader page) throws IOException {
+        Set<URL> links = new LinkedHashSet<>();
+        BufferedReader in = new BufferedReader(page);
+        String line;
+        while ((line = in.readLine()) != null) {
+            Matcher link = ALBUM_LINK.matcher(line);
+            while (link.find()) {
+                links.add(new URL(music, link.group(1).replace("\\/", "/")));
+            }
+        }
+        return new ArrayList<>(links);
+    }
+
+    private static IOException addFailure(IOException failures, URL artist, Throwable e) {
+        e.printStackTrace();
+        if (failures == null) {
+            failures = new IOException("Some albums or tracks of " + artist + " failed to sync");
+        }
+        failures.addSuppressed(e);
+        return failures;
+    }
+
+    private static Properties load(File file) throws IOException {
+        Properties manifest = new Properties();
+        if (file.exists()) {
+            try (InputStream in = new FileInputStream(file)) {
+                manifest.load(in);
+            }
+        }
+        return manifest;
+    }
+
+    /**
+     * Writes the manifest to a temporary file first, so a crash halfway through writing can't lose it
+     */
+    private static void save(Properties manifest, File file) {
+        synchronized (manifest) {
+            File tmp = new File(file.getPath() + ".tmp");
+            try {
+                file.getAbsoluteFile().getParentFile().mkdirs();
+                try (OutputStream out = new FileOutputStream(tmp)) {
+                    manifest.store(out, "Tracks synced from bandcamp, see zergtel.core.downloader.BandcampSync");
+                }
+                Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                System.err.println("Could not save " + file + ": " + e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,326 @@
+package zergtel.core.downloader;
+
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps all running downloads, together, under a set amount of bandwidth
+ *
+ * There are three kinds of limits, all in bytes per second, and all of which can be changed while downloads are running:
+ *   - A global limit, which is shared between every running download. Each download (a Job) gets a share of it
+ *     proportional to its weight, so two jobs of weight 1 get half each, and a job of weight 3 next to a job of weight 1
+ *     gets three quarters. Only jobs that are actually transferring count: one that hasn't drawn from its bucket for
+ *     IDLE_AFTER (a stalled connection, or a job busy converting) is left out until it draws again, so its share goes
+ *     to the others
+ *   - A per job limit, which caps a single download no matter how much of the global limit is left over
+ *   - A per host limit, which is shared by every connection to that host
+ * A limit of 0 means unlimited, which is the default for all three.
+ *
+ * The limits are enforced with token buckets, which the copy loop in Transfer draws from after every chunk it reads.
+ */
+public class Bandwidth {
+	static final long IDLE_AFTER = TimeUnit.SECONDS.toNanos(1);
+	private static final long REBALANCE_INTERVAL = TimeUnit.MILLISECONDS.toNanos(250);
+
+	private static final List<Job> jobs = new CopyOnWriteArrayList<>();
+	private static final ConcurrentHashMap<String, TokenBucket> hosts = new ConcurrentHashMap<>();
+	private static volatile long globalLimit = 0;
+	private static volatile long jobLimit = 0;
+	private static volatile long hostLimit = 0;
+	private static volatile long lastRebalance = System.nanoTime();
+
+	public static long getGlobalLimit() {
+		return globalLimit;
+	}
+
+	/**
+	 * @param limit - Bytes per second shared by all downloads, 0 for unlimited
+	 */
+	public static void setGlobalLimit(long limit) {
+		globalLimit = Math.max(0, limit);
+		rebalance();
+	}
+
+	public static long getJobLimit() {
+		return jobLimit;
+	}
+
+	/**
+	 * @param limit - Bytes per second any single download may use, 0 for unlimited. Jobs with their own limit keep it
+	 */
+	public static void setJobLimit(long limit) {
+		jobLimit = Math.max(0, limit);
+		rebalance();
+	}
+
+	public static long getHostLimit() {
+		return hostLimit;
+	}
+
+	/**
+	 * @param limit - Bytes per second all downloads from any one host may use together, 0 for unlimited
+	 */
+	public static void setHostLimit(long limit) {
+		hostLimit = Math.max(0, limit);
+		for (TokenBucket bucket : hosts.values()) {
+			bucket.setRate(hostLimit);
+		}
+	}
+
+	/**
+	 * @return - Every download currently running, so that their limits and weights can be adjusted
+	 */
+	public static List<Job> jobs() {
+		return new ArrayList<>(jobs);
+	}
+
+	/**
+	 * Registers a new download, which takes its share of the global limit until it is finished
+	 *
+	 * @param host - Host the download is from
+	 * @param weight - See Job.setWeight
+	 * @param limit - See Job.setLimit
+	 * @return - The job, which must be finished once the download is done
+	 */
+	static Job start(String host, double weight, long limit) {
+		Job job;
+		synchronized (Bandwidth.class) { //so that the host's bucket can't be dropped by finish in between
+			job = new Job(host, hosts.computeIfAbsent(host, h -> new TokenBucket(hostLimit)));
+			job.weight = Math.max(0.01, weight);
+			job.limit = limit;
+			jobs.add(job);
+		}
+		rebalance();
+		return job;
+	}
+
+	/**
+	 * @return - Whether any running download is from host
+	 */
+	static boolean hasHost(String host) {
+		return hosts.containsKey(host);
+	}
+
+	/**
+	 * Recalculates every active job's share of the global limit
+	 * Jobs capped below their share only get their cap, and what they leave over is shared out between the rest by weight,
+	 * so that the global limit is used up whenever any job could use more of it. Idle jobs keep the rate they had, and are
+	 * given a share again as soon as they draw from their bucket.
+	 */
+	private static synchronized void rebalance() {
+		long now = System.nanoTime();
+		lastRebalance = now;
+		if (globalLimit == 0) {
+			for (Job job : jobs) {
+				job.bucket.setRate(job.cap());
+			}
+			return;
+		}
+
+		List<Job> uncapped = new ArrayList<>();
+		for (Job job : jobs) {
+			if (job.isActive(now)) {
+				uncapped.add(job);
+			}
+		}
+		long remaining = globalLimit;
+		boolean capped = true;
+		while (capped && !uncapped.isEmpty()) {
+			capped = false;
+			double totalWeight = 0;
+			for (Job job : uncapped) {
+				totalWeight += job.weight;
+			}
+			for (int i = 0; i < uncapped.size(); i++) {
+				Job job = uncapped.get(i);
+				long cap = job.cap();
+				if (cap != 0 && cap <= remaining * job.weight / totalWeight) {
+					job.bucket.setRate(cap);
+					remaining -= cap;
+					uncapped.remove(i);
+					capped = true;
+					break; //the other shares have grown, so they need working out again
+				}
+			}
+		}
+
+		double totalWeight = 0;
+		for (Job job : uncapped) {
+			totalWeight += job.weight;
+		}
+		for (Job job : uncapped) {
+			job.bucket.setRate(Math.max(1, (long) (remaining * job.weight / totalWeight)));
+		}
+	}
+
+	/**
+	 * A single running download
+	 */
+	public static class Job {
+		private final String host;
+		private final TokenBucket bucket = new TokenBucket(0);
+		private final TokenBucket hostBucket;
+		private volatile double weight = 1;
+		private volatile long limit = -1; //-1 means the default job limit applies
+		private volatile long lastActive = System.nanoTime(); //a job that was just started counts as active
+		private volatile boolean throttled;
+
+		private Job(String host, TokenBucket hostBucket) {
+			this.host = host;
+			this.hostBucket = hostBucket;
+		}
+
+		public String getHost() {
+			return host;
+		}
+
+		/**
+		 * @return - Bytes per second this job is currently allowed, 0 for unlimited
+		 */
+		public long getRate() {
+			return bucket.getRate();
+		}
+
+		/**
+		 * @return - This job's own limit, or the default job limit if it has none. 0 for unlimited
+		 */
+		private long cap() {
+			return limit >= 0 ? limit : jobLimit;
+		}
+
+		/**
+		 * @param nweight - How big this job's share of the global limit is, relative to other jobs. Defaults to 1
+		 */
+		public void setWeight(double nweight) {
+			weight = Math.max(0.01, nweight);
+			rebalance();
+		}
+
+		/**
+		 * @param nlimit - Bytes per second for this job alone, 0 for unlimited, or -1 to go back to the default job limit
+		 */
+		public void setLimit(long nlimit) {
+			limit = nlimit;
+			rebalance();
+		}
+
+		/**
+		 * A job waiting on its bucket is still transferring, however long the wait. Otherwise it has to have drawn from
+		 * its bucket within IDLE_AFTER
+		 */
+		private boolean isActive(long now) {
+			return throttled || now - lastActive < IDLE_AFTER;
+		}
+
+		/**
+		 * Waits until this job is allowed to have transferred another n bytes
+		 * Shares are also kept up to date from here, since the jobs that are transferring are the ones that call this:
+		 * a job coming back from being idle gets its share back before it waits, and otherwise the shares are worked out
+		 * again every REBALANCE_INTERVAL, which is how jobs that stopped drawing lose theirs.
+		 *
+		 * @param n - Amount of bytes just transferred
+		 * @throws InterruptedIOException - If the thread is interrupted while waiting
+		 */
+		void acquire(long n) throws InterruptedIOException {
+			long now = System.nanoTime();
+			boolean idle = !isActive(now);
+			lastActive = now;
+			if (globalLimit != 0 && (idle || now - lastRebalance >= REBALANCE_INTERVAL)) {
+				rebalance();
+			}
+
+			throttled = true;
+			try {
+				bucket.acquire(n);
+				hostBucket.acquire(n);
+			} finally {
+				throttled = false;
+				lastActive = System.nanoTime();
+			}
+		}
+
+		void finish() {
+			synchronized (Bandwidth.class) {
+				jobs.remove(this);
+				boolean last = true;
+				for (Job job : jobs) {
+					last &= !job.host.equals(host);
+				}
+				if (last) {
+					hosts.remove(host);
+				}
+			}
+			rebalance();
+		}
+	}
+
+	/**
+	 * A bucket that fills up with rate tokens per second, holding at most one second's worth of them.
+	 * Taking more tokens than are in the bucket is allowed, but the taker then sleeps until the bucket is out of debt
+	 */
+	static class TokenBucket {
+		private static final long MAX_SLEEP = TimeUnit.MILLISECONDS.toNanos(100);
+
+		private volatile long rate;
+		private double tokens;
+		private long last = System.nanoTime();
+
+		TokenBucket(long rate) {
+			this.rate = rate;
+		}
+
+		long getRate() {
+			return rate;
+		}
+
+		synchronized void setRate(long nrate) {
+			refill();
+			rate = nrate;
+			tokens = rate == 0 ? 0 : Math.min(tokens, rate);
+		}
+
+		void acquire(long n) throws InterruptedIOException {
+			synchronized (this) {
+				if (rate == 0) {
+					return;
+				}
+				refill();
+				tokens -= n;
+			}
+
+			//sleep in short slices rather than all at once, so that a change of rate takes effect right away
+			long wait;
+			while ((wait = debt()) > 0) {
+				try {
+					TimeUnit.NANOSECONDS.sleep(Math.min(wait, MAX_SLEEP));
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("Interrupted while throttled");
+				}
+			}
+		}
+
+		/**
+		 * @return - Nanoseconds until the bucket is out of debt at the current rate
+		 */
+		private synchronized long debt() {
+			if (rate == 0) {
+				return 0;
+			}
+			refill();
+			return tokens < 0 ? (long) (-tokens * 1e9 / rate) : 0;
+		}
+
+		private void refill() {
+			long now = System.nanoTime();
+			if (rate != 0) {
+				tokens = Math.min(rate, tokens + (now - last) * rate / 1e9);
+			}
+			last = now;
+		}
+	}
+}
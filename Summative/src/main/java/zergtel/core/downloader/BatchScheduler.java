@@ -0,0 +1,150 @@
+package zergtel.core.downloader;
+
+import java.lang.reflect.Method;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Runs the jobs of Downloader.getAll, never more than a set amount at once, and never more than a set amount per host
+ *
+ * Jobs wait in a queue until both limits allow them to start, rather than waiting on a thread - so a long list of urls
+ * for one slow host can't hold up the urls for every other host behind it. Jobs start in the order they were
+ * submitted, skipping over any whose host is full.
+ *
+ * On a jdk with virtual threads (21 and up), each job gets its own virtual thread. Otherwise they run on a shared pool
+ * of daemon threads, which never grows past the concurrency limit since that's all the jobs that can run at once.
+ */
+class BatchScheduler {
+    private static final Executor EXECUTOR = executor();
+
+    private final ArrayDeque<Job<?>> pending = new ArrayDeque<>();
+    private final Map<String, Integer> hosts = new HashMap<>();
+    private int running;
+    private volatile int maxConcurrent;
+    private volatile int maxPerHost;
+
+    BatchScheduler(int maxConcurrent, int maxPerHost) {
+        this.maxConcurrent = maxConcurrent;
+        this.maxPerHost = maxPerHost;
+    }
+
+    void setLimits(int nmaxConcurrent, int nmaxPerHost) {
+        maxConcurrent = Math.max(1, nmaxConcurrent);
+        maxPerHost = Math.max(1, nmaxPerHost);
+        dispatch();
+    }
+
+    int getMaxConcurrent() {
+        return maxConcurrent;
+    }
+
+    int getMaxPerHost() {
+        return maxPerHost;
+    }
+
+    /**
+     * Queues a job
+     *
+     * @param host - Host the job downloads from
+     * @param task - The job itself
+     * @return - Future that completes with whatever task returns, or with whatever it threw. Cancelling it takes the job
+     *           out of the queue, or interrupts it if it's already running
+     */
+    <T> CompletableFuture<T> submit(String host, Callable<T> task) {
+        Job<T> job = new Job<>(host, task);
+        job.future.whenComplete((result, e) -> {
+            synchronized (job) {
+                if (job.future.isCancelled() && job.thread != null) {
+                    job.thread.interrupt();
+                }
+            }
+        });
+        synchronized (this) {
+            pending.add(job);
+        }
+        dispatch();
+        return job.future;
+    }
+
+    /**
+     * Starts every queued job that the limits allow
+     */
+    private synchronized void dispatch() {
+        Iterator<Job<?>> jobs = pending.iterator();
+        while (jobs.hasNext() && running < maxConcurrent) {
+            Job<?> job = jobs.next();
+            if (job.future.isDone()) {
+                jobs.remove(); //cancelled while waiting
+                continue;
+            }
+            int active = hosts.getOrDefault(job.host, 0);
+            if (active >= maxPerHost) {
+                continue;
+            }
+
+            jobs.remove();
+            hosts.put(job.host, active + 1);
+            running++;
+            EXECUTOR.execute(() -> run(job));
+        }
+    }
+
+    private <T> void run(Job<T> job) {
+        synchronized (job) {
+            job.thread = Thread.currentThread();
+        }
+        try {
+            if (!job.future.isDone()) {
+                job.future.complete(job.task.call());
+            }
+        } catch (Throwable e) {
+            job.future.completeExceptionally(e);
+        } finally {
+            synchronized (job) {
+                job.thread = null;
+                Thread.interrupted(); //a cancel that arrived late shouldn't leak into the next job on this thread
+            }
+            synchronized (this) {
+                running--;
+                hosts.merge(job.host, -1, Integer::sum);
+                hosts.remove(job.host, 0);
+            }
+            dispatch();
+        }
+    }
+
+    /**
+     * @return - A virtual thread per task executor if the jdk has one, or else a pool of daemon threads
+     */
+    private static Executor executor() {
+        try {
+            Method virtual = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) virtual.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool(r -> {
+                Thread thread = new Thread(r, "ZTVDC-batch");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    private static class Job<T> {
+        private final String host;
+        private final Callable<T> task;
+        private final CompletableFuture<T> future = new CompletableFuture<>();
+        private Thread thread; //guarded by the job itself
+
+        private Job(String host, Callable<T> task) {
+            this.host = host;
+            this.task = task;
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package zergtel.core.downloader;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A shared pool of reusable buffers for the download copy loops, so many parallel downloads don't keep producing garbage
+ *
+ * There are two kinds of buffer:
+ *   - Direct buffers, for copies between channels. Writing a heap buffer to a FileChannel makes the jvm copy it into a
+ *     temporary direct buffer first, which a direct buffer skips
+ *   - Heap buffers, for copies from streams (http connections). A stream can only read into a byte[], so reading it into
+ *     a direct buffer means going through a byte[] anyway. Reading straight into a heap buffer's array at least lets each
+ *     read take a whole chunk, rather than the 8 KB Channels.newChannel reads at a time
+ */
+class BufferPool {
+	static final int DEFAULT_CHUNK_SIZE = 64 * 1024;
+	private static final int MAX_POOLED = 64; //enough for a good number of parallel segments; anything past this is left to the gc
+
+	private static final ConcurrentLinkedQueue<ByteBuffer> direct = new ConcurrentLinkedQueue<>();
+	private static final ConcurrentLinkedQueue<ByteBuffer> heap = new ConcurrentLinkedQueue<>();
+	private static final AtomicInteger pooled = new AtomicInteger();
+	private static volatile int chunkSize = DEFAULT_CHUNK_SIZE;
+
+	static int getChunkSize() {
+		return chunkSize;
+	}
+
+	/**
+	 * Changes the size of buffers handed out from now on. Buffers of the old size are dropped as they are returned
+	 *
+	 * @param size - Size of each buffer in bytes
+	 */
+	static void setChunkSize(int size) {
+		chunkSize = size;
+		direct.clear();
+		heap.clear();
+		pooled.set(0);
+	}
+
+	/**
+	 * @param isDirect - True for a direct buffer, false for a heap buffer backed by an array
+	 * @return - A cleared buffer of the current chunk size. Hand it back with release once done
+	 */
+	static ByteBuffer acquire(boolean isDirect) {
+		ByteBuffer buffer = (isDirect ? direct : heap).poll();
+		if (buffer == null) {
+			return allocate(isDirect);
+		}
+		pooled.decrementAndGet();
+		if (buffer.capacity() != chunkSize) {
+			return allocate(isDirect);
+		}
+		buffer.clear();
+		return buffer;
+	}
+
+	static void release(ByteBuffer buffer) {
+		if (buffer.capacity() != chunkSize) {
+			return;
+		}
+		if (pooled.incrementAndGet() <= MAX_POOLED) {
+			(buffer.isDirect() ? direct : heap).offer(buffer);
+		} else {
+			pooled.decrementAndGet();
+		}
+	}
+
+	private static ByteBuffer allocate(boolean isDirect) {
+		return isDirect ? ByteBuffer.allocateDirect(chunkSize) : ByteBuffer.allocate(chunkSize);
+	}
+}
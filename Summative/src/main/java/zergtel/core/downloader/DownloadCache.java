@@ -0,0 +1,276 @@
+package zergtel.core.downloader;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * A local cache of everything EzHttp downloads, so that downloading the same thing twice only costs a revalidation
+ *
+ * The cache directory holds two kinds of files:
+ *   - <hash of url>.entry - a small properties file with the url, its ETag/Last-Modified, the hash of its content, and
+ *     when it was last used
+ *   - <SHA-256 of content>.blob - the content itself. Two urls serving the same bytes share one blob. The manifest's
+ *     CRC32 isn't used for this, since two different files with the same CRC32 would then be given each other's content
+ * Only responses with an ETag or Last-Modified are cached, since anything else can't be revalidated.
+ *
+ * On a repeat download, EzHttp sends If-None-Match/If-Modified-Since from the entry, and on a 304 the blob is hard linked
+ * (or copied, if the cache lives on another drive) to where the download was meant to go.
+ * Once the cache grows past its size limit, the least recently used entries are evicted.
+ */
+public class DownloadCache {
+	private static final String ENTRY = ".entry";
+	private static final String BLOB = ".blob";
+
+	private static File directory = new File(System.getProperty("user.home"), ".ztvdc/cache");
+	private static long limit = 512L * 1024 * 1024;
+	private static boolean enabled = true;
+
+	public static synchronized File getDirectory() {
+		return directory;
+	}
+
+	public static synchronized void setDirectory(File ndirectory) {
+		directory = ndirectory;
+	}
+
+	public static synchronized long getLimit() {
+		return limit;
+	}
+
+	/**
+	 * @param nlimit - Most bytes of content the cache may hold before evicting
+	 */
+	public static synchronized void setLimit(long nlimit) {
+		limit = nlimit;
+		evict();
+	}
+
+	public static synchronized boolean isEnabled() {
+		return enabled;
+	}
+
+	public static synchronized void setEnabled(boolean nenabled) {
+		enabled = nenabled;
+	}
+
+	/**
+	 * Removes everything from the cache
+	 */
+	public static synchronized void clear() {
+		File[] files = directory.listFiles();
+		for (File file : files != null ? files : new File[0]) {
+			file.delete();
+		}
+	}
+
+	/**
+	 * Adds the validators of any cached copy of uri to a connection that hasn't been sent yet
+	 *
+	 * @param uri - URL about to be downloaded
+	 * @param connection - Unsent connection to uri
+	 * @return - The cache entry whose validators were added, or null if uri isn't cached
+	 */
+	static synchronized Properties revalidate(URL uri, URLConnection connection) {
+		if (!enabled || !(connection instanceof HttpURLConnection)) {
+			return null;
+		}
+
+		Properties entry = readEntry(entryFile(uri));
+		if (entry == null || !uri.toString().equals(entry.getProperty("url")) || !blobFile(entry).exists()) {
+			return null;
+		}
+
+		if (!entry.getProperty("etag", "").isEmpty()) {
+			connection.setRequestProperty("If-None-Match", entry.getProperty("etag"));
+		}
+		if (!entry.getProperty("lastModified", "").isEmpty()) {
+			connection.setRequestProperty("If-Modified-Since", entry.getProperty("lastModified"));
+		}
+		return entry;
+	}
+
+	/**
+	 * Puts the cached content of an entry at target, after the server said it hasn't changed
+	 *
+	 * @param entry - Entry given by revalidate
+	 * @param target - Where the download was meant to go
+	 * @throws IOException - If the blob can't be linked or copied
+	 */
+	static synchronized void restore(Properties entry, File target) throws IOException {
+		File blob = blobFile(entry);
+		link(blob, target);
+
+		entry.setProperty("accessed", Long.toString(System.currentTimeMillis()));
+		writeEntry(entryFile(entry.getProperty("url")), entry);
+	}
+
+	/**
+	 * Adds a freshly downloaded file to the cache
+	 * A file downloaded in ranges can only be hashed once it's whole, by reading it back. That happens before taking the
+	 * cache's lock, so other downloads can still revalidate and restore in the meantime.
+	 *
+	 * @param uri - URL the file came from
+	 * @param connection - Connection the file came through, for its ETag and Last-Modified
+	 * @param file - The downloaded file
+	 * @param sha256 - SHA-256 of file made while downloading, or null if there's none
+	 */
+	static void store(URL uri, URLConnection connection, File file, String sha256) {
+		String etag = connection.getHeaderField("ETag");
+		String lastModified = connection.getHeaderField("Last-Modified");
+		if (!isEnabled() || (etag == null && lastModified == null) || file.length() > getLimit()) {
+			return;
+		}
+
+		try {
+			Properties entry = new Properties();
+			entry.setProperty("url", uri.toString());
+			entry.setProperty("etag", etag == null ? "" : etag);
+			entry.setProperty("lastModified", lastModified == null ? "" : lastModified);
+			entry.setProperty("hash", sha256 != null ? sha256 : hash(file));
+			entry.setProperty("size", Long.toString(file.length()));
+
+			synchronized (DownloadCache.class) {
+				directory.mkdirs();
+				entry.setProperty("accessed", Long.toString(System.currentTimeMillis()));
+				File blob = blobFile(entry);
+				if (!blob.exists()) {
+					link(file, blob);
+				}
+				writeEntry(entryFile(uri.toString()), entry);
+				evict();
+			}
+		} catch (IOException e) {
+			System.err.println("Could not cache " + uri + ": " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Removes the least recently used entries until the cache is under its limit. Blobs are only removed once no entry
+	 * refers to them anymore
+	 */
+	private static void evict() {
+		File[] files = directory.listFiles((dir, name) -> name.endsWith(ENTRY));
+		if (files == null) {
+			return;
+		}
+
+		List<Properties> entries = new ArrayList<>();
+		Map<String, Integer> references = new HashMap<>();
+		long total = 0;
+		for (File file : files) {
+			Properties entry = readEntry(file);
+			if (entry == null) {
+				file.delete();
+				continue;
+			}
+			entries.add(entry);
+			String hash = entry.getProperty("hash");
+			if (references.merge(hash, 1, Integer::sum) == 1) {
+				total += Long.parseLong(entry.getProperty("size", "0"));
+			}
+		}
+
+		entries.sort((a, b) -> Long.compare(
+				Long.parseLong(a.getProperty("accessed", "0")),
+				Long.parseLong(b.getProperty("accessed", "0"))));
+		for (int i = 0; i < entries.size() && total > limit; i++) {
+			Properties entry = entries.get(i);
+			entryFile(entry.getProperty("url")).delete();
+			if (references.merge(entry.getProperty("hash"), -1, Integer::sum) == 0) {
+				blobFile(entry).delete();
+				total -= Long.parseLong(entry.getProperty("size", "0"));
+			}
+		}
+	}
+
+	/**
+	 * Makes target have the same content as source, sharing the bytes on disk where the file system allows it
+	 */
+	private static void link(File source, File target) throws IOException {
+		Files.deleteIfExists(target.toPath());
+		try {
+			Files.createLink(target.toPath(), source.toPath());
+		} catch (IOException | UnsupportedOperationException e) {
+			Files.copy(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	private static File entryFile(URL uri) {
+		return entryFile(uri.toString());
+	}
+
+	private static File entryFile(String url) {
+		return new File(directory, hash(url.getBytes(StandardCharsets.UTF_8)) + ENTRY);
+	}
+
+	private static File blobFile(Properties entry) {
+		return new File(directory, entry.getProperty("hash") + BLOB);
+	}
+
+	private static Properties readEntry(File file) {
+		if (!file.exists()) {
+			return null;
+		}
+		Properties entry = new Properties();
+		try (InputStream in = new FileInputStream(file)) {
+			entry.load(in);
+		} catch (IOException e) {
+			return null;
+		}
+		return entry.getProperty("hash") == null ? null : entry;
+	}
+
+	private static void writeEntry(File file, Properties entry) throws IOException {
+		try (OutputStream out = new FileOutputStream(file)) {
+			entry.store(out, null);
+		}
+	}
+
+	private static String hash(byte[] bytes) {
+		return hex(sha256().digest(bytes));
+	}
+
+	private static String hash(File file) throws IOException {
+		MessageDigest digest = sha256();
+		byte[] buffer = new byte[64 * 1024];
+		try (InputStream in = new FileInputStream(file)) {
+			for (int read; (read = in.read(buffer)) != -1; ) {
+				digest.update(buffer, 0, read);
+			}
+		}
+		return hex(digest.digest());
+	}
+
+	static MessageDigest sha256() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("Every jvm has SHA-256", e);
+		}
+	}
+
+	static String hex(byte[] bytes) {
+		StringBuilder output = new StringBuilder(bytes.length * 2);
+		for (byte b : bytes) {
+			output.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+		}
+		return output.toString();
+	}
+}
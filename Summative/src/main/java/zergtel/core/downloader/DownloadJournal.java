@@ -0,0 +1,288 @@
+package zergtel.core.downloader;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+
+/**
+ * Keeps track of which bytes of a download have already made it to disk, so that a dead download can pick up where it
+ * left off rather than starting over
+ *
+ * Each journal lives beside the file it describes (example.mp3 gets example.mp3.journal), and records the url, the
+ * ETag/Last-Modified of the resource, its total size, and the byte ranges that are done. A journal is only trusted if
+ * all of those still match what the server tells us - otherwise the resource has changed and we start from scratch.
+ *
+ * Every range also carries the CRC32 of its bytes (see RangeChecksum), so once all ranges have joined up the journal
+ * knows the checksum of the whole file without reading it back.
+ *
+ * A journal is kept for every ranged download while it runs, so that a retry (see RetryPolicy) always continues from
+ * what the last attempt got. Whether resuming is on only decides if a journal left over from an earlier download is
+ * trusted.
+ *
+ * The journal is only written to disk every so often; losing the last second of progress to a crash is much cheaper
+ * than a disk write for every chunk.
+ */
+class DownloadJournal {
+	static final String EXTENSION = ".journal";
+	private static final long SAVE_INTERVAL = 1000; //milliseconds
+
+	private final File file;
+	private final String url, etag, lastModified;
+	private final long size;
+	private final TreeMap<Long, Range> done = new TreeMap<>(); //start of every finished range -> the range
+	private boolean resumed;
+	private long lastSave;
+
+	private DownloadJournal(File target, String url, String etag, String lastModified, long size) {
+		this.file = new File(target.getPath() + EXTENSION);
+		this.url = url;
+		this.etag = etag;
+		this.lastModified = lastModified;
+		this.size = size;
+	}
+
+	/**
+	 * Gets the journal for a download, picking up an existing one from disk if it still describes the same resource
+	 *
+	 * @param target - File being downloaded to
+	 * @param uri - URL being downloaded from
+	 * @param connection - Connection to uri that has already been sent, used for ETag, Last-Modified, and Content-Length
+	 * @param resume - Whether a journal already on disk may be picked up. When false, any old journal is thrown away
+	 * @return - A journal that is either resumed (see isResumed) or completely empty
+	 */
+	static DownloadJournal open(File target, URL uri, URLConnection connection, boolean resume) {
+		DownloadJournal journal = new DownloadJournal(target, uri.toString(),
+				connection.getHeaderField("ETag"), connection.getHeaderField("Last-Modified"), connection.getContentLengthLong());
+
+		if (resume && journal.file.exists() && target.exists()) {
+			try {
+				journal.resumed = journal.load();
+			} catch (IOException | RuntimeException e) {
+				System.err.println("Unreadable journal " + journal.file + ", starting over");
+			}
+		}
+		if (!journal.resumed) {
+			journal.file.delete();
+		}
+		return journal;
+	}
+
+	/**
+	 * @return - True if this journal was loaded from disk, meaning the target file already holds some of the right bytes
+	 */
+	boolean isResumed() {
+		return resumed;
+	}
+
+	long getSize() {
+		return size;
+	}
+
+	/**
+	 * Records that bytes start to end (exclusive) are on disk
+	 *
+	 * @param start - Offset of the first byte
+	 * @param end - Offset after the last byte
+	 * @param bytes - The bytes themselves for the checksum, or null if they aren't at hand (the checksum of the range
+	 *                they end up in is then unknown). Consumed
+	 */
+	synchronized void mark(long start, long end, ByteBuffer bytes) {
+		Map.Entry<Long, Range> before = done.floorEntry(start);
+		Range range;
+		if (before != null && before.getValue().end >= start) {
+			range = before.getValue();
+			if (range.end != start) {
+				range.checksum = null; //overlapping bytes can't be combined
+			}
+			range.end = Math.max(range.end, end);
+			start = before.getKey();
+		} else {
+			range = new Range(end, new RangeChecksum());
+			done.put(start, range);
+		}
+		if (range.checksum != null) {
+			if (bytes == null) {
+				range.checksum = null;
+			} else {
+				range.checksum.update(bytes);
+			}
+		}
+
+		//swallow any ranges that this one now reaches
+		Map.Entry<Long, Range> after;
+		while ((after = done.higherEntry(start)) != null && after.getKey() <= range.end) {
+			Range next = after.getValue();
+			if (after.getKey() == range.end && range.checksum != null && next.checksum != null) {
+				range.checksum.append(next.checksum);
+			} else {
+				range.checksum = null;
+			}
+			range.end = Math.max(range.end, next.end);
+			done.remove(after.getKey());
+		}
+
+		if (System.currentTimeMillis() - lastSave > SAVE_INTERVAL) {
+			save();
+		}
+	}
+
+	/**
+	 * @return - Amount of bytes already on disk
+	 */
+	synchronized long completed() {
+		long total = 0;
+		for (Map.Entry<Long, Range> range : done.entrySet()) {
+			total += range.getValue().end - range.getKey();
+		}
+		return total;
+	}
+
+	/**
+	 * @return - Checksum of the whole file, or null if the file isn't complete or some of its bytes weren't checksummed
+	 */
+	synchronized RangeChecksum checksum() {
+		Range range = done.get(0L);
+		return range != null && range.end == size ? range.checksum : null;
+	}
+
+	/**
+	 * @return - Every range of bytes that still has to be downloaded, as {start, end} pairs with end inclusive (the
+	 *           same way a Range header wants them)
+	 */
+	synchronized List<long[]> missing() {
+		List<long[]> output = new ArrayList<>();
+		long position = 0;
+		for (Map.Entry<Long, Range> range : done.entrySet()) {
+			if (range.getKey() > position) {
+				output.add(new long[] {position, range.getKey() - 1});
+			}
+			position = Math.max(position, range.getValue().end);
+		}
+		if (position < size) {
+			output.add(new long[] {position, size - 1});
+		}
+		return output;
+	}
+
+	/**
+	 * Writes the journal to disk. The write goes through a temporary file so a crash mid-save can't corrupt the journal
+	 */
+	synchronized void save() {
+		lastSave = System.currentTimeMillis();
+
+		StringBuilder ranges = new StringBuilder();
+		for (Map.Entry<Long, Range> range : done.entrySet()) {
+			if (ranges.length() > 0) {
+				ranges.append(',');
+			}
+			ranges.append(range.getKey()).append('-').append(range.getValue().end);
+			if (range.getValue().checksum != null) {
+				ranges.append(':').append(range.getValue().checksum.hex());
+			}
+		}
+
+		Properties properties = new Properties();
+		properties.setProperty("url", url);
+		properties.setProperty("etag", etag == null ? "" : etag);
+		properties.setProperty("lastModified", lastModified == null ? "" : lastModified);
+		properties.setProperty("size", Long.toString(size));
+		properties.setProperty("done", ranges.toString());
+
+		File tmp = new File(file.getPath() + ".tmp");
+		try {
+			try (OutputStream out = new FileOutputStream(tmp)) {
+				properties.store(out, "ZTVDC download journal");
+			}
+			Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			System.err.println("Could not save journal " + file + ": " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Removes the journal from disk once the download it describes is complete
+	 */
+	void finish() {
+		file.delete();
+	}
+
+	/**
+	 * Removes the journal of a download that won't be resumed
+	 *
+	 * @param target - File that was being downloaded to
+	 */
+	static void discard(File target) {
+		new File(target.getPath() + EXTENSION).delete();
+	}
+
+	/**
+	 * Reads the journal on disk into this one
+	 *
+	 * @return - False if the journal on disk describes a different url or a different version of the resource
+	 */
+	private boolean load() throws IOException {
+		lastSave = System.currentTimeMillis();
+		Properties properties = new Properties();
+		try (InputStream in = new FileInputStream(file)) {
+			properties.load(in);
+		}
+
+		if (!url.equals(properties.getProperty("url"))
+				|| size <= 0
+				|| size != Long.parseLong(properties.getProperty("size", "-1"))) {
+			return false;
+		}
+		//prefer the ETag when the server gives one, since Last-Modified only has one second of resolution
+		if (etag != null && !etag.isEmpty()) {
+			if (!etag.equals(properties.getProperty("etag"))) {
+				return false;
+			}
+		} else if (lastModified == null || !lastModified.equals(properties.getProperty("lastModified"))) {
+			return false;
+		}
+
+		//each range is start-end, followed by :crc if its checksum is known
+		String ranges = properties.getProperty("done", "");
+		for (String range : ranges.split(",")) {
+			if (!range.isEmpty()) {
+				String[] parts = range.split(":");
+				String[] bounds = parts[0].split("-");
+				long start = Long.parseLong(bounds[0]);
+				long end = Long.parseLong(bounds[1]);
+				done.put(start, new Range(end, parts.length > 1 ? RangeChecksum.of(Long.parseLong(parts[1], 16), end - start) : null));
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @param file - Any file
+	 * @return - True if file is a journal, or a partial download that a journal describes
+	 */
+	static boolean isJournaled(File file) {
+		return file.getName().endsWith(EXTENSION) || new File(file.getPath() + EXTENSION).exists();
+	}
+
+	private static class Range {
+		private long end; //exclusive
+		private RangeChecksum checksum; //null if unknown
+
+		private Range(long end, RangeChecksum checksum) {
+			this.end = end;
+			this.checksum = checksum;
+		}
+	}
+}
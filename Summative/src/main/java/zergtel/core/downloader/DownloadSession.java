@@ -0,0 +1,213 @@
+package zergtel.core.downloader;
+
+import zergtel.core.converter.Converter;
+
+import java.io.File;
+
+/**
+ * Everything a single download job needs to know about where and how to download, carried along with the job
+ *
+ * Historically, the download location was a static in EzHttp that every part of the program set before downloading,
+ * which meant that two jobs running at once would both end up in whichever directory was set last (see the old note
+ * in VGetInterface). A session is made once when a job starts and passed all the way down through Downloader,
+ * Bandcamp, VGetInterface, Converter, and Merge, so any amount of jobs can run at once without stepping on each other.
+ *
+ * Sessions are immutable, and therefore safe to share between threads. The with methods return modified copies.
+ */
+public class DownloadSession {
+	private final String downloadLocation;
+	private final String tempLocation;
+	private final int segments;
+	private final boolean resume;
+	private final long limit;
+	private final double weight;
+	private final File ffmpeg;
+	private final ProgressListener listener;
+	private final long hedgeRate;
+	private final long hedgeDelay;
+	private final boolean pipelined;
+	private final RetryPolicy retryPolicy;
+	private final String audioFormat;
+
+	/**
+	 * Makes a session that downloads to downloadLocation, with every other option taken from the current defaults
+	 *
+	 * @param downloadLocation - Directory where finished files should end up
+	 */
+	public DownloadSession(String downloadLocation) {
+		this(downloadLocation, EzHttp.TEMP_LOCATION, EzHttp.getSegments(), EzHttp.isResume(), -1, 1, Converter.FILE_FFMPEG,
+				null, EzHttp.getHedgeRate(), EzHttp.getHedgeDelay(), EzHttp.isPipelined(), EzHttp.getRetryPolicy(), null);
+	}
+
+	private DownloadSession(String downloadLocation, String tempLocation, int segments, boolean resume, long limit,
+	                        double weight, File ffmpeg, ProgressListener listener, long hedgeRate, long hedgeDelay,
+	                        boolean pipelined, RetryPolicy retryPolicy, String audioFormat) {
+		this.downloadLocation = downloadLocation;
+		this.tempLocation = tempLocation;
+		this.segments = segments;
+		this.resume = resume;
+		this.limit = limit;
+		this.weight = weight;
+		this.ffmpeg = ffmpeg;
+		this.listener = listener;
+		this.hedgeRate = hedgeRate;
+		this.hedgeDelay = hedgeDelay;
+		this.pipelined = pipelined;
+		this.retryPolicy = retryPolicy;
+		this.audioFormat = audioFormat;
+	}
+
+	/**
+	 * @return - A session built from the defaults in EzHttp, as they are right now. This is what every method that
+	 *           doesn't take a session uses
+	 */
+	public static DownloadSession fromDefaults() {
+		return new DownloadSession(EzHttp.getDownloadLocation());
+	}
+
+	public String getDownloadLocation() {
+		return downloadLocation;
+	}
+
+	public String getTempLocation() {
+		return tempLocation;
+	}
+
+	public int getSegments() {
+		return segments;
+	}
+
+	public boolean isResume() {
+		return resume;
+	}
+
+	/**
+	 * @return - Bytes per second this job may use, 0 for unlimited, or -1 for the default job limit in Bandwidth
+	 */
+	public long getLimit() {
+		return limit;
+	}
+
+	public double getWeight() {
+		return weight;
+	}
+
+	public File getFfmpeg() {
+		return ffmpeg;
+	}
+
+	/**
+	 * @return - Listener that hears about every transfer of this job, or null if nobody is listening
+	 */
+	public ProgressListener getListener() {
+		return listener;
+	}
+
+	/**
+	 * @return - Bytes per second below which a connection gets hedged, 0 if hedging is off
+	 */
+	public long getHedgeRate() {
+		return hedgeRate;
+	}
+
+	/**
+	 * @return - Milliseconds a connection has to stay below the hedge rate before it gets hedged
+	 */
+	public long getHedgeDelay() {
+		return hedgeDelay;
+	}
+
+	/**
+	 * @return - Whether videos are streamed straight into ffmpeg where possible, rather than downloaded to temp files first
+	 */
+	public boolean isPipelined() {
+		return pipelined;
+	}
+
+	/**
+	 * @return - How this job's downloads are retried when they fail with a passing error
+	 */
+	public RetryPolicy getRetryPolicy() {
+		return retryPolicy;
+	}
+
+	/**
+	 * @return - Extension of the audio format videos are downloaded as (mp3, for instance), or null to download them as
+	 *           videos
+	 */
+	public String getAudioFormat() {
+		return audioFormat;
+	}
+
+	public DownloadSession withDownloadLocation(String ndownloadLocation) {
+		return new DownloadSession(ndownloadLocation, tempLocation, segments, resume, limit, weight, ffmpeg, listener, hedgeRate, hedgeDelay, pipelined, retryPolicy, audioFormat);
+	}
+
+	public DownloadSession withTempLocation(String ntempLocation) {
+		return new DownloadSession(downloadLocation, ntempLocation, segments, resume, limit, weight, ffmpeg, listener, hedgeRate, hedgeDelay, pipelined, retryPolicy, audioFormat);
+	}
+
+	public DownloadSession withSegments(int nsegments) {
+		return new DownloadSession(downloadLocation, tempLocation, Math.max(1, nsegments), resume, limit, weight, ffmpeg, listener, hedgeRate, hedgeDelay, pipelined, retryPolicy, audioFormat);
+	}
+
+	public DownloadSession withResume(boolean nresume) {
+		return new DownloadSession(downloadLocation, tempLocation, segments, nresume, limit, weight, ffmpeg, listener, hedgeRate, hedgeDelay, pipelined, retryPolicy, audioFormat);
+	}
+
+	/**
+	 * @param nlimit - See getLimit
+	 */
+	public DownloadSession withLimit(long nlimit) {
+		return new DownloadSession(downloadLocation, tempLocation, segments, resume, nlimit, weight, ffmpeg, listener, hedgeRate, hedgeDelay, pipelined, retryPolicy, audioFormat);
+	}
+
+	/**
+	 * @param nweight - This job's share of the global bandwidth limit relative to other jobs, see Bandwidth
+	 */
+	public DownloadSession withWeight(double nweight) {
+		return new DownloadSession(downloadLocation, tempLocation, segments, resume, limit, nweight, ffmpeg, listener, hedgeRate, hedgeDelay, pipelined, retryPolicy, audioFormat);
+	}
+
+	public DownloadSession withFfmpeg(File nffmpeg) {
+		return new DownloadSession(downloadLocation, tempLocation, segments, resume, limit, weight, nffmpeg, listener, hedgeRate, hedgeDelay, pipelined, retryPolicy, audioFormat);
+	}
+
+	public DownloadSession withListener(ProgressListener nlistener) {
+		return new DownloadSession(downloadLocation, tempLocation, segments, resume, limit, weight, ffmpeg, nlistener, hedgeRate, hedgeDelay, pipelined, retryPolicy, audioFormat);
+	}
+
+	/**
+	 * Changes hedging, which sessions get from EzHttp.setHedging: when a connection of a ranged download stays slow, the
+	 * back half of what it has left is handed to a new connection (to a mirror, if the download was given any). See
+	 * SegmentedDownload
+	 *
+	 * @param nhedgeRate - Bytes per second below which a connection counts as slow, 0 to turn hedging off
+	 * @param nhedgeDelay - Milliseconds a connection has to stay slow before it's hedged
+	 */
+	public DownloadSession withHedging(long nhedgeRate, long nhedgeDelay) {
+		return new DownloadSession(downloadLocation, tempLocation, segments, resume, limit, weight, ffmpeg, listener,
+				Math.max(0, nhedgeRate), Math.max(0, nhedgeDelay), pipelined, retryPolicy, audioFormat);
+	}
+
+	public DownloadSession withPipelined(boolean npipelined) {
+		return new DownloadSession(downloadLocation, tempLocation, segments, resume, limit, weight, ffmpeg, listener,
+				hedgeRate, hedgeDelay, npipelined, retryPolicy, audioFormat);
+	}
+
+	public DownloadSession withRetryPolicy(RetryPolicy nretryPolicy) {
+		return new DownloadSession(downloadLocation, tempLocation, segments, resume, limit, weight, ffmpeg, listener,
+				hedgeRate, hedgeDelay, pipelined, nretryPolicy, audioFormat);
+	}
+
+	/**
+	 * Makes videos download as audio only: only their audio stream is downloaded, and converted straight to the format.
+	 * Extractors of sites that only have audio anyway ignore this
+	 *
+	 * @param naudioFormat - Extension of the audio format (mp3, m4a, ...), or null for whole videos
+	 */
+	public DownloadSession withAudioFormat(String naudioFormat) {
+		return new DownloadSession(downloadLocation, tempLocation, segments, resume, limit, weight, ffmpeg, listener,
+				hedgeRate, hedgeDelay, pipelined, retryPolicy, naudioFormat);
+	}
+}
@@ -1,13 +1,20 @@
 package zergtel.core.downloader;
 
 
+import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * The primary interface through which the rest of ZTVDC downloads videos
- * This class simply parses a url, detects what site it's from, and passes it to the appropriate class.
+ * This class simply finds the Extractor for a url's site, and passes the url to it.
  */
 public class Downloader {
+    private static final BatchScheduler batch = new BatchScheduler(8, 2);
+
 	//Some inspirational sources:
 	//https://sourceforge.net/p/ytd2/code/HEAD/tree/trunk/ytd2/src/main/java/zsk/YTDownloadThread.java 
 	//https://github.com/ytsdk/ytsdk
@@ -22,50 +29,118 @@ public class Downloader {
      * @throws Exception - See get(URL uri)
      */
     public static String get(String uri) throws Exception {
-        return get(new URL(uri));
+        return get(uri, DownloadSession.fromDefaults());
     }
 
     /**
-     * Downloads the resource at the requested url
+     * Downloads the resource at the requested url, as part of a job with its own session
      *
-     * @param uri - A url as a java.net URL
-     * @return - Currently assorted returns, and not used for anything at the moment. Future maintainers may wish to
-     *           make something more coherent out of all the returns, such as returning title or file location.
-     * @throws Exception - this should be changed to a much more specific exception, because atm this is one of the main reasons
-     *                     that cancelling in zergtel.ui.ComputerUI is as spaghetti as it is
+     * @param uri - A url, in the form of a string
+     * @param session - Session of the job, which says where the download goes and how it's done
+     * @return - See get(URL uri, DownloadSession session)
+     * @throws Exception - See get(URL uri, DownloadSession session)
      */
-    private static String get(URL uri) throws Exception {
-        String[] hosts = uri.getHost().split("\\.");
-	    String output = null;
+    public static String get(String uri, DownloadSession session) throws Exception {
+        return get(new URL(uri), session);
+    }
 
-        String host = hosts[hosts.length - 2] + "." + hosts[hosts.length-1];
-        String path = uri.getPath();
+    /**
+     * Downloads every url in a list, several at once
+     *
+     * @param uris - Urls, in the form of strings
+     * @return - See getAll(Collection, DownloadSession)
+     */
+    public static Map<String, CompletableFuture<String>> getAll(Collection<String> uris) {
+        return getAll(uris, DownloadSession.fromDefaults());
+    }
 
-        System.out.println(host);
-        System.out.println(path);
+    /**
+     * Downloads every url in a list, several at once
+     * At most getMaxConcurrent downloads run at a time, and at most getMaxPerHost of those from the same host; the rest
+     * wait their turn in the order given. Each url is its own job, so one failing doesn't affect any of the others.
+     *
+     * @param uris - Urls, in the form of strings
+     * @param session - Session shared by all of the jobs
+     * @return - A future per url (in the order given, duplicates only once) that completes with what get returns, as
+     *           soon as that url is done. Failed urls complete exceptionally with whatever get threw. Cancelling a
+     *           future cancels its download
+     */
+    public static Map<String, CompletableFuture<String>> getAll(Collection<String> uris, DownloadSession session) {
+        Map<String, CompletableFuture<String>> output = new LinkedHashMap<>();
+        for (String uri : uris) {
+            if (output.containsKey(uri)) {
+                continue;
+            }
+            String host;
+            try {
+                host = new URL(uri).getHost().toLowerCase();
+            } catch (MalformedURLException e) {
+                CompletableFuture<String> failed = new CompletableFuture<>();
+                failed.completeExceptionally(e);
+                output.put(uri, failed);
+                continue;
+            }
+            output.put(uri, batch.submit(host, () -> get(uri, session)));
+        }
+        return output;
+    }
 
-        if (path.contains(".")) {
-            output = EzHttp.get(uri);
+    /**
+     * Lets the extractor of a url get ready to download it, for urls that are likely to be downloaded soon (a selected
+     * search result, for instance). Returns right away
+     *
+     * @param uri - A url, in the form of a string
+     */
+    public static void prefetch(String uri) {
+        try {
+            URL url = new URL(uri);
+            Extractor extractor = ExtractorRegistry.find(url);
+            if (extractor != null) {
+                extractor.prefetch(url);
+            }
+        } catch (MalformedURLException e) {
+            System.out.println("Not prefetching " + uri + ": " + e.getMessage());
         }
+    }
+
+    public static int getMaxConcurrent() {
+        return batch.getMaxConcurrent();
+    }
+
+    public static int getMaxPerHost() {
+        return batch.getMaxPerHost();
+    }
+
+    /**
+     * Sets how many downloads of getAll may run at once. Also affects downloads that are already waiting
+     *
+     * @param nmaxConcurrent - Most downloads running at once in total
+     * @param nmaxPerHost - Most downloads running at once from any one host
+     */
+    public static void setLimits(int nmaxConcurrent, int nmaxPerHost) {
+        batch.setLimits(nmaxConcurrent, nmaxPerHost);
+    }
 
-        String id;
-        switch (host) {
-	        case "bandcamp.com":
-	        	output = Bandcamp.get(uri);
-		        break;
-            case "youtu.be":
-                id = path.substring(1);
-                uri = new URL("https://youtube.com/watch?v=" + id); //Only if the youtu.be url is simple! Does not work with feature=youtu.be, etc right now
-            case "youtube.com":
-//	        case "vimeo.com":
-                System.out.println("Vget: " + uri);
-                if (path.split("/")[1].equals("embed")) {
-                    id = path.split("/")[2];
-                    uri = new URL("https://youtube.com/watch?v=" + id);
-                }
-		        output = VGetInterface.get(uri);
-		        break;
+    /**
+     * Downloads the resource at the requested url, with whichever Extractor handles it (see ExtractorRegistry)
+     *
+     * @param uri - A url as a java.net URL
+     * @param session - Session of the job
+     * @return - Currently assorted returns, and not used for anything at the moment. Future maintainers may wish to
+     *           make something more coherent out of all the returns, such as returning title or file location.
+     * @throws Exception - this should be changed to a much more specific exception, because atm this is one of the main reasons
+     *                     that cancelling in zergtel.ui.ComputerUI is as spaghetti as it is. IllegalArgumentException if
+     *                     no extractor can download uri
+     */
+    private static String get(URL uri, DownloadSession session) throws Exception {
+        Extractor extractor = ExtractorRegistry.find(uri);
+        if (extractor == null) {
+            throw new IllegalArgumentException("Don't know how to download " + uri);
+        }
+        System.out.println(extractor.getClass().getSimpleName() + ": " + uri);
+        //every job gets temp files of its own, cleaned up as soon as it's done (see Workspace)
+        try (Workspace workspace = Workspace.open(session.getTempLocation(), uri.toString())) {
+            return extractor.get(uri, session.withTempLocation(workspace.getPath()));
         }
-        return output;
     }
 }
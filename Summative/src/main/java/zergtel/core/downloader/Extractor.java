@@ -0,0 +1,50 @@
+package zergtel.core.downloader;
+
+import java.net.URL;
+
+/**
+ * Downloads from one kind of site, such as bandcamp or youtube
+ *
+ * Extractors are found through java's ServiceLoader: to add a site, implement this interface (with a public no argument
+ * constructor), and list the class in META-INF/services/zergtel.core.downloader.Extractor of a jar on the classpath.
+ * Only jars the user put on the classpath are ever loaded - nothing is picked up from downloaded files or folders.
+ * See ExtractorRegistry for how a url is matched to an extractor.
+ */
+public interface Extractor {
+    /**
+     * @return - Domains this extractor handles, each of which also covers all of its subdomains (so "bandcamp.com"
+     *           covers "someband.bandcamp.com"). An empty array makes this a fallback, which is only asked once no
+     *           extractor for the url's domain accepts it
+     */
+    String[] hosts();
+
+    /**
+     * Second check once a url's host has matched, for extractors that only handle some paths of a site
+     *
+     * @param uri - Url whose host matched one of hosts(), or any url for fallbacks
+     * @return - True if this extractor can download uri
+     */
+    default boolean accepts(URL uri) {
+        return true;
+    }
+
+    /**
+     * Downloads whatever uri points to
+     *
+     * @param uri - Url that this extractor accepted
+     * @param session - Session of the job
+     * @return - Name or title of what was downloaded
+     * @throws Exception - If the download failed
+     */
+    String get(URL uri, DownloadSession session) throws Exception;
+
+    /**
+     * Gets ready to download uri soon, without downloading it yet (looking up where its files are, for instance)
+     * Must return right away, doing any actual work in the background. Does nothing unless the extractor has something
+     * worth doing ahead of time.
+     *
+     * @param uri - Url that this extractor accepted
+     */
+    default void prefetch(URL uri) {
+    }
+}
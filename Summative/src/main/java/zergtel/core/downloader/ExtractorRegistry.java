@@ -0,0 +1,103 @@
+package zergtel.core.downloader;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.ServiceLoader;
+
+/**
+ * Matches urls to the Extractor that can download them
+ *
+ * Every extractor on the classpath is loaded once, and its domains are put into a trie keyed on the labels of the
+ * domain from right to left (com -> bandcamp), so finding the extractor for a url is one walk down the trie, no matter
+ * how many extractors there are. The deepest match wins, which lets an extractor for "music.example.com" take over
+ * from one for "example.com". If nothing for the url's domain accepts it, the fallback extractors get a turn.
+ *
+ * The trie is never changed once built - registering an extractor builds a new one - so lookups need no locking.
+ */
+public class ExtractorRegistry {
+    private static final List<Extractor> extractors = new ArrayList<>();
+    private static volatile Node root;
+    private static volatile List<Extractor> fallbacks;
+
+    static {
+        for (Extractor extractor : ServiceLoader.load(Extractor.class)) {
+            extractors.add(extractor);
+        }
+        build();
+    }
+
+    /**
+     * Adds an extractor that isn't listed as a service, taking priority over any already registered for the same domains
+     *
+     * @param extractor - Extractor to add
+     */
+    public static synchronized void register(Extractor extractor) {
+        extractors.add(0, extractor);
+        build();
+    }
+
+    /**
+     * @param uri - Any url
+     * @return - The extractor to download uri with, or null if no extractor accepts it
+     */
+    public static Extractor find(URL uri) {
+        String host = uri.getHost().toLowerCase(Locale.ROOT);
+
+        //walk down the trie one label at a time from the right, remembering every node with extractors on the way
+        List<Node> matches = new ArrayList<>();
+        Node node = root;
+        int end = host.length();
+        while (node != null && end > 0) {
+            int start = host.lastIndexOf('.', end - 1) + 1;
+            node = node.children.get(host.substring(start, end));
+            if (node != null && !node.extractors.isEmpty()) {
+                matches.add(node);
+            }
+            end = start - 1;
+        }
+
+        for (int i = matches.size() - 1; i >= 0; i--) {
+            for (Extractor extractor : matches.get(i).extractors) {
+                if (extractor.accepts(uri)) {
+                    return extractor;
+                }
+            }
+        }
+        for (Extractor extractor : fallbacks) {
+            if (extractor.accepts(uri)) {
+                return extractor;
+            }
+        }
+        return null;
+    }
+
+    private static synchronized void build() {
+        Node nroot = new Node();
+        List<Extractor> nfallbacks = new ArrayList<>();
+        for (Extractor extractor : extractors) {
+            String[] hosts = extractor.hosts();
+            if (hosts.length == 0) {
+                nfallbacks.add(extractor);
+            }
+            for (String host : hosts) {
+                String[] labels = host.toLowerCase(Locale.ROOT).split("\\.");
+                Node node = nroot;
+                for (int i = labels.length - 1; i >= 0; i--) {
+                    node = node.children.computeIfAbsent(labels[i], label -> new Node());
+                }
+                node.extractors.add(extractor);
+            }
+        }
+        root = nroot;
+        fallbacks = nfallbacks;
+    }
+
+    private static class Node {
+        private final Map<String, Node> children = new HashMap<>();
+        private final List<Extractor> extractors = new ArrayList<>();
+    }
+}
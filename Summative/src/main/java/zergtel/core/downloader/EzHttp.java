@@ -1,26 +1,44 @@
 package zergtel.core.downloader;
 
 import java.io.File;
-import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.Reader;
+import java.net.HttpURLConnection;
 import java.net.URL;
 import java.net.URLConnection;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
 
 /**
  * The core behind grabbing resources from the web
  * Very simple and naive implementation of http resource grabbing
  *
  * Some nuances with this class:
- *   - Throughout ComputerUI, download location is set by using setDownloadLocation in this class. Unfortunately,
- *     this can cause some complication with where some files actually end up, depending on the sequencing of events.
- *     See VGetInterface for an example
+ *   - The download location, segments, and resume settings in this class are only defaults. Every download runs with
+ *     a DownloadSession, which is built from these defaults when it isn't given one - jobs that may run at the same time
+ *     as others should make their own session when they start, rather than setting the defaults
  */
 public class EzHttp {
-	private static final int BUFFER_SIZE = 4096;
 	public static final String DEFAULT_LOCATION = "download/";
-	public static final String TEMP_LOCATION = System.getenv("temp") + "/ZTVDC/";
+	//%temp% only exists on windows
+	public static final String TEMP_LOCATION = (System.getenv("temp") != null ? System.getenv("temp") : System.getProperty("java.io.tmpdir")) + "/ZTVDC/";
 	private static String downloadLocation = "download/";
+	private static final long MIN_SEGMENT_SIZE = 256 * 1024; //below this, another connection costs more than it saves
+	private static int segments = 4;
+	private static boolean resume = true;
+	private static boolean pipelined = false;
+	private static long hedgeRate = 64 * 1024;
+	private static long hedgeDelay = 5000;
+	private static RetryPolicy retryPolicy = new RetryPolicy(4, 1000, 30000);
 
 //	Todo - method to avoid naming conflicts (e.g. save as example(1).mp3 if example.mp3 already exists)
 //		maybe add seperate class for file things like this and cleanseName
@@ -43,6 +61,126 @@ public class EzHttp {
 		dir.mkdirs();
 	}
 
+	public static int getSegments() {
+		return segments;
+	}
+
+	/**
+	 * Sets the maximum amount of connections a single download may be split across
+	 *
+	 * @param nsegments - Maximum connections per download. 1 turns segmented downloading off entirely
+	 */
+	public static void setSegments(int nsegments) {
+		segments = Math.max(1, nsegments);
+	}
+
+	public static int getChunkSize() {
+		return BufferPool.getChunkSize();
+	}
+
+	/**
+	 * Sets the size of the buffers that downloads are copied through
+	 * Bigger chunks mean fewer system calls per megabyte, at the cost of more memory per running download.
+	 *
+	 * @param nchunkSize - Size of a chunk in bytes
+	 */
+	public static void setChunkSize(int nchunkSize) {
+		BufferPool.setChunkSize(Math.max(4096, nchunkSize));
+	}
+
+	public static boolean isResume() {
+		return resume;
+	}
+
+	/**
+	 * Turns resuming of interrupted downloads on or off
+	 * While on, every download that supports byte ranges keeps a journal beside its output file until it finishes, and a
+	 * later download to the same file only fetches the bytes that the journal says are missing.
+	 *
+	 * @param nresume - Whether to resume
+	 */
+	public static void setResume(boolean nresume) {
+		resume = nresume;
+	}
+
+	public static boolean isPipelined() {
+		return pipelined;
+	}
+
+	/**
+	 * Turns pipelining on or off for jobs started from now on
+	 * While on, the streams of videos are downloaded straight into ffmpeg where ffmpeg can read them from a pipe, so that
+	 * converting runs alongside the download instead of after it (see VGetInterface.save).
+	 *
+	 * @param npipelined - Whether to pipeline
+	 */
+	public static void setPipelined(boolean npipelined) {
+		pipelined = npipelined;
+	}
+
+	public static long getHedgeRate() {
+		return hedgeRate;
+	}
+
+	public static long getHedgeDelay() {
+		return hedgeDelay;
+	}
+
+	/**
+	 * Sets how ranged downloads hedge slow connections, for jobs started from now on (see SegmentedDownload)
+	 * On by default: a connection that stays below 64 KB/s for 5 seconds has the back half of what it has left handed to
+	 * a fresh connection. Mirrors to hedge to can only be given per download, through get.
+	 *
+	 * @param nhedgeRate - Bytes per second below which a connection counts as slow, 0 to turn hedging off
+	 * @param nhedgeDelay - Milliseconds a connection has to stay slow before it's hedged
+	 */
+	public static void setHedging(long nhedgeRate, long nhedgeDelay) {
+		hedgeRate = Math.max(0, nhedgeRate);
+		hedgeDelay = Math.max(0, nhedgeDelay);
+	}
+
+	public static RetryPolicy getRetryPolicy() {
+		return retryPolicy;
+	}
+
+	/**
+	 * @param nretryPolicy - How downloads that fail with a passing error are retried, see RetryPolicy
+	 */
+	public static void setRetryPolicy(RetryPolicy nretryPolicy) {
+		retryPolicy = nretryPolicy;
+	}
+
+	/**
+	 * Checks whether a file is part of an unfinished download that can still be resumed, so that cleanup code knows to
+	 * leave it alone
+	 *
+	 * @param file - Any file
+	 * @return - True if file is a partial download or its journal, and resuming is on
+	 */
+	public static boolean isResumable(File file) {
+		return resume && DownloadJournal.isJournaled(file);
+	}
+
+	/**
+	 * @param file - Any file
+	 * @return - True if file is the checksum manifest kept in every download directory, rather than a download
+	 */
+	public static boolean isManifest(File file) {
+		return file.getName().equals(Manifest.NAME);
+	}
+
+	/**
+	 * Adds lines taken from another manifest (of files that were moved, say) to the manifest of a directory, in place of
+	 * the lines it had for the same files
+	 *
+	 * @param directory - Directory the files are in now
+	 * @param lines - Manifest lines of the files
+	 * @throws IOException - If the manifest can't be read or written
+	 */
+	public static void addToManifest(File directory, List<String> lines) throws IOException {
+		Manifest.add(new File(directory, Manifest.NAME), lines);
+	}
+
 	public static String get(String uri) throws Exception {
 		return get(new URL(uri), "", "");
 	}
@@ -63,16 +201,42 @@ public class EzHttp {
 		return get(new URL(uri), fileName, downLocation);
 	}
 
+	/**
+	 * Gets a resource from a given url into the download location of a session
+	 *
+	 * @param uri - URL of resource
+	 * @param session - Session of the job this download belongs to
+	 * @return - Name of file
+	 * @throws Exception - See get(URL uri, String fileName, String downLocation, DownloadSession session)
+	 */
+	public static String get(URL uri, DownloadSession session) throws Exception {
+		return get(uri, "", session.getDownloadLocation(), session);
+	}
+
+	public static String get(String uri, String fileName, String downLocation, DownloadSession session) throws Exception {
+		return get(new URL(uri), fileName, downLocation, session);
+	}
+
+	private static String get(URL uri, String fileName, String downLocation) throws Exception {
+		return get(uri, fileName, downLocation, DownloadSession.fromDefaults());
+	}
+
+	private static String get(URL uri, String fileName, String downLocation, DownloadSession session) throws Exception {
+		return get(uri, Collections.emptyList(), fileName, downLocation, session);
+	}
+
 	/**
 	 * Gets a resource from a given url, and saves it as filename at downlocation
 	 *
 	 * @param uri - URL of resource
+	 * @param mirrors - Other urls serving the exact same bytes, which hedged connections may use (see DownloadSession.withHedging)
 	 * @param fileName - Name of saved file
 	 * @param downLocation - Location of saving
+	 * @param session - Session of the job this download belongs to, for its download options
 	 * @return - Name of file
 	 * @throws Exception - This should be replaced with a much more specific exception
 	 */
-	private static String get(URL uri, String fileName, String downLocation) throws Exception {
+	public static String get(URL uri, List<URL> mirrors, String fileName, String downLocation, DownloadSession session) throws Exception {
 		//Merits some refactoring for efficiency this code does
 
 		if (fileName.equals("")) {
@@ -89,30 +253,229 @@ public class EzHttp {
 
 		System.out.println(fileName);
 		System.out.println(dir.getAbsolutePath());
-		fileName = dir
-				.getAbsolutePath()
-				.concat("\\")
-				.concat(cleanseName(fileName));
+		fileName = new File(dir, cleanseName(fileName)).getAbsolutePath();
 		System.out.println(fileName);
 
-		URLConnection connection = uri.openConnection();
-		int size = connection.getContentLength();
+		String target = fileName;
+		try {
+			//each retry resumes from the journal of the attempt before it, even with resuming off
+			session.getRetryPolicy().run("Download of " + uri, attempt -> {
+				download(uri, mirrors, target, session, session.isResume() || attempt > 1);
+				return null;
+			});
+		} catch (Exception e) {
+			if (!session.isResume()) {
+				DownloadJournal.discard(new File(target));
+			}
+			throw e;
+		}
+		return target;
+	}
+
+	/**
+	 * Does the actual downloading for get, checking that every byte the server promised arrived, and recording the
+	 * checksum of the result in the manifest of its directory
+	 *
+	 * @param uri - URL of resource
+	 * @param mirrors - Other urls serving the same bytes, for hedged connections
+	 * @param fileName - Absolute name of the output file
+	 * @param session - Session of the job this download belongs to
+	 * @param resume - Whether to continue from a journal left by an earlier attempt
+	 * @throws Exception - TruncatedDownloadException if the file came up short, HttpStatusException if the server
+	 *                     answered with an error, anything else if the download failed
+	 */
+	private static void download(URL uri, List<URL> mirrors, String fileName, DownloadSession session, boolean resume) throws Exception {
+		File file = new File(fileName);
+		HttpPool.Lease lease = HttpPool.open(uri);
+		Bandwidth.Job job = Bandwidth.start(uri.getHost(), session.getWeight(), session.getLimit());
+		try {
+			URLConnection connection = lease.connection();
+			Properties cached = DownloadCache.revalidate(uri, connection);
+			long size = connection.getContentLengthLong();
+
+			if (connection instanceof HttpURLConnection) {
+				HttpStatusException.check(uri, (HttpURLConnection) connection);
+			}
+			if (cached != null && ((HttpURLConnection) connection).getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+				DownloadCache.restore(cached, file);
+				new Progress(file.getName(), file.length(), file.length(), session.getListener()).finish();
+				return;
+			}
+
+			if (size > 0) {
+				reserve(file, size);
+			}
+
+			Transfer transfer;
+			Progress progress;
+			if (size > 0 && acceptsRanges(connection)) {
+				DownloadJournal journal = DownloadJournal.open(file, uri, connection, resume);
+				if (!journal.isResumed()) {
+					file.delete();
+				}
+
+				long missing = size - journal.completed();
+				int parts = (int) Math.max(1, Math.min(Math.min(session.getSegments(), HttpPool.getMaxPerHost()), missing / MIN_SEGMENT_SIZE));
+				progress = new Progress(file.getName(), size, journal.completed(), session.getListener());
+				transfer = new Transfer(journal, job, progress);
+				new SegmentedDownload(uri, mirrors, transfer, parts, session.getHedgeRate(), session.getHedgeDelay()).download(lease, fileName);
+				if (journal.completed() != size) {
+					throw new TruncatedDownloadException("Only " + journal.completed() + " of " + size + " bytes arrived");
+				}
+				journal.finish();
+			} else {
+				//the old file might be hard linked into the cache, so it has to be replaced rather than overwritten
+				Files.deleteIfExists(file.toPath());
+				progress = new Progress(file.getName(), size, 0, session.getListener());
+				transfer = new Transfer(null, job, progress);
+				long copied;
+				try (InputStream in = connection.getInputStream();
+				     RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+					FileChannel out = raf.getChannel();
+					if (size > 0) {
+						raf.setLength(size);
+					}
+					copied = transfer.copy(Transfer.channel(in), out, 0, -1);
+					if (size >= 0 && copied != size) {
+						out.truncate(copied); //don't leave the reserved space looking like part of the file
+						throw new TruncatedDownloadException("Only " + copied + " of " + size + " bytes arrived");
+					}
+				}
+				progress.setTotal(copied);
+			}
+
+			Manifest.record(file, transfer.getChecksum());
+			DownloadCache.store(uri, connection, file, transfer.getSha256());
+			progress.finish();
+		} finally {
+			lease.close();
+			job.finish();
+		}
+	}
+
+	/**
+	 * Reads a page as text straight from the connection, without saving it anywhere
+	 * For pages that are only looked through for a few pieces of information (Bandcamp's album pages, for instance),
+	 * so that nothing is written to disk and the parser can stop reading as soon as it has what it needs.
+	 *
+	 * @param uri - URL of the page
+	 * @param session - Session of the job, for its retry policy
+	 * @param parser - Reads what's needed from the page
+	 * @return - Whatever parser returned
+	 * @throws Exception - HttpStatusException if the server answered with an error, or whatever parser threw
+	 */
+	public static <T> T read(URL uri, DownloadSession session, Parser<T> parser) throws Exception {
+		return session.getRetryPolicy().run("Reading " + uri, attempt -> {
+			try (HttpPool.Lease lease = HttpPool.open(uri)) {
+				URLConnection connection = lease.connection();
+				if (connection instanceof HttpURLConnection) {
+					HttpStatusException.check(uri, (HttpURLConnection) connection);
+				}
+				try (Reader page = new InputStreamReader(connection.getInputStream(), charset(connection.getContentType()))) {
+					return parser.parse(page);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Reads what's needed out of a page, see read
+	 */
+	@FunctionalInterface
+	public interface Parser<T> {
+		/**
+		 * @param page - Text of the page, as it arrives. Doesn't have to be read to the end
+		 */
+		T parse(Reader page) throws IOException;
+	}
+
+	/**
+	 * @param contentType - Content-Type header, can be null
+	 * @return - The charset it names, or UTF-8 if it doesn't name a known one
+	 */
+	private static Charset charset(String contentType) {
+		if (contentType != null) {
+			for (String parameter : contentType.split(";")) {
+				String[] pair = parameter.trim().split("=", 2);
+				if (pair.length == 2 && pair[0].trim().equalsIgnoreCase("charset")) {
+					try {
+						return Charset.forName(pair[1].trim().replace("\"", ""));
+					} catch (IllegalArgumentException e) {
+						break;
+					}
+				}
+			}
+		}
+		return StandardCharsets.UTF_8;
+	}
 
-		InputStream in = connection.getInputStream();
-		byte[] buffer = new byte[BUFFER_SIZE];
-		int n;
-		int downloaded = 0;
+	/**
+	 * Streams a resource into out as it downloads, without saving it anywhere
+	 * This is what lets VGetInterface feed ffmpeg while the video is still downloading. Since the bytes can't be taken
+	 * back once they're written, there's no retrying, resuming, segmenting, or caching here - just bandwidth limits
+	 * and progress.
+	 *
+	 * @param uri - URL of resource
+	 * @param name - Name of the stream, for progress events
+	 * @param out - Where to write the resource. Not closed
+	 * @param session - Session of the job this download belongs to
+	 * @return - Amount of bytes streamed
+	 * @throws Exception - TruncatedDownloadException if the stream came up short, anything else if the download failed
+	 */
+	public static long stream(URL uri, String name, OutputStream out, DownloadSession session) throws Exception {
+		Bandwidth.Job job = Bandwidth.start(uri.getHost(), session.getWeight(), session.getLimit());
+		try (HttpPool.Lease lease = HttpPool.open(uri)) {
+			URLConnection connection = lease.connection();
+			if (connection instanceof HttpURLConnection) {
+				HttpStatusException.check(uri, (HttpURLConnection) connection);
+			}
+			long size = connection.getContentLengthLong();
+			Progress progress = new Progress(name, size, 0, session.getListener());
+			Transfer transfer = new Transfer(null, job, progress);
 
+			long copied;
+			try (InputStream in = connection.getInputStream()) {
+				copied = transfer.pipe(Transfer.channel(in), Transfer.channel(out));
+			}
+			if (size >= 0 && copied != size) {
+				throw new TruncatedDownloadException("Only " + copied + " of " + size + " bytes arrived");
+			}
+			progress.setTotal(copied);
+			progress.finish();
+			return copied;
+		} finally {
+			job.finish();
+		}
+	}
 
-		OutputStream out = new FileOutputStream(fileName);
-		while ((n = in.read(buffer)) != -1) {
-			out.write(buffer, 0, n);
-			downloaded += n;
+	/**
+	 * Makes sure there is room for a download before any of it is fetched
+	 * The space itself is reserved by setting the length of the output file before writing (here for single stream
+	 * downloads, and in SegmentedDownload for ranged ones). On NTFS this allocates the whole file in one go, so a big
+	 * download doesn't end up in fragments all over the disk; on most linux file systems the file is sparse instead.
+	 *
+	 * @param file - Output file, which may already hold part of the download
+	 * @param size - Full size of the download in bytes
+	 * @throws InsufficientSpaceException - If the drive of file has less usable space than the download still needs
+	 */
+	private static void reserve(File file, long size) throws InsufficientSpaceException {
+		File dir = file.getAbsoluteFile().getParentFile();
+		long needed = size - (file.exists() ? Math.min(size, file.length()) : 0);
+		long usable = dir.getUsableSpace();
+		if (needed > usable) {
+			throw new InsufficientSpaceException("Need " + needed + " bytes for " + file.getName() + ", but only " + usable + " are free in " + dir);
 		}
-		in.close();
-		out.close();
+	}
 
-		return fileName;
+	/**
+	 * Checks whether the server behind an opened connection will let us ask for parts of the resource
+	 *
+	 * @param connection - Connection that has already been sent
+	 * @return - True if the server advertises byte range support
+	 */
+	private static boolean acceptsRanges(URLConnection connection) {
+		return connection instanceof HttpURLConnection
+				&& "bytes".equalsIgnoreCase(connection.getHeaderField("Accept-Ranges"));
 	}
 
 	private static String getFileOutputName(URL uri) {
@@ -0,0 +1,25 @@
+package zergtel.core.downloader;
+
+import java.net.URL;
+
+/**
+ * Fallback extractor for plain links to files on any site (anything whose path ends in a name with an extension),
+ * which are simply downloaded as they are with EzHttp
+ */
+public class HttpExtractor implements Extractor {
+    @Override
+    public String[] hosts() {
+        return new String[0];
+    }
+
+    @Override
+    public boolean accepts(URL uri) {
+        String path = uri.getPath();
+        return path.substring(path.lastIndexOf('/') + 1).contains(".");
+    }
+
+    @Override
+    public String get(URL uri, DownloadSession session) throws Exception {
+        return EzHttp.get(uri, session);
+    }
+}
@@ -0,0 +1,131 @@
+package zergtel.core.downloader;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+
+/**
+ * The one place where zergtel.core opens http connections
+ *
+ * Java's HttpURLConnection already keeps sockets alive between requests to the same host, but only if every request
+ * goes through the same settings and the connections are handed back properly. Routing everything through here means
+ * that a bandcamp album (one page fetch, then a track after another from the same cdn) or a batch of searches pays for
+ * the tcp and tls handshakes once per host, rather than once per file.
+ *
+ * This class also caps how many connections may be open to any one host at once - segmented downloads and parallel
+ * jobs can otherwise easily open enough connections to get us throttled or banned.
+ *
+ * Note that HttpURLConnection (and so this class) only speaks HTTP/1.1; there is no HTTP/2 multiplexing until the
+ * project moves past Java 8.
+ */
+public class HttpPool {
+	public static final String USER_AGENT = "Mozilla/5.0 (ZTVDC)";
+	private static final int IDLE_CONNECTIONS = 16; //idle sockets kept alive per host
+
+	private static final ConcurrentHashMap<String, Semaphore> hosts = new ConcurrentHashMap<>();
+	private static volatile int maxPerHost = 8;
+	private static volatile int connectTimeout = 15000;
+	private static volatile int readTimeout = 30000;
+
+	static {
+		//these are read once by the jdk, so they have to be set before the first connection is ever made
+		System.setProperty("http.keepAlive", "true");
+		if (System.getProperty("http.maxConnections") == null) {
+			System.setProperty("http.maxConnections", Integer.toString(IDLE_CONNECTIONS));
+		}
+	}
+
+	public static int getMaxPerHost() {
+		return maxPerHost;
+	}
+
+	/**
+	 * Sets how many connections may be open to a single host at once. Only affects hosts that haven't been connected to yet
+	 *
+	 * @param nmaxPerHost - Maximum concurrent connections per host
+	 */
+	public static void setMaxPerHost(int nmaxPerHost) {
+		maxPerHost = Math.max(1, nmaxPerHost);
+		hosts.clear();
+	}
+
+	/**
+	 * @param nconnectTimeout - Milliseconds to wait for a connection to be established, 0 for forever
+	 * @param nreadTimeout - Milliseconds to wait for data on an open connection, 0 for forever
+	 */
+	public static void setTimeouts(int nconnectTimeout, int nreadTimeout) {
+		connectTimeout = nconnectTimeout;
+		readTimeout = nreadTimeout;
+	}
+
+	/**
+	 * Creates a connection with the shared settings, without counting it against the per host limit.
+	 * This is meant for libraries that manage their own connections (such as the google api client in Searcher)
+	 *
+	 * @param url - URL to connect to
+	 * @return - An unconnected connection, so that request headers can still be added
+	 * @throws IOException - See URL.openConnection
+	 */
+	public static HttpURLConnection connect(URL url) throws IOException {
+		return (HttpURLConnection) configure(url.openConnection());
+	}
+
+	/**
+	 * Creates a connection with the shared settings, waiting until the host it's for is under its connection limit
+	 *
+	 * @param url - URL to connect to. Non-http urls (file: for example) are allowed, and are never limited
+	 * @return - A lease on an unconnected connection. Closing the lease hands its slot to the next connection; it does
+	 *           not close the connection itself, so that the socket stays alive for the next request
+	 * @throws IOException - See URL.openConnection, or if interrupted while waiting for a slot
+	 */
+	static Lease open(URL url) throws IOException {
+		URLConnection connection = configure(url.openConnection());
+		if (!(connection instanceof HttpURLConnection)) {
+			return new Lease(connection, null);
+		}
+
+		Semaphore slots = hosts.computeIfAbsent(url.getHost(), host -> new Semaphore(maxPerHost));
+		try {
+			slots.acquire();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted waiting for a connection to " + url.getHost());
+		}
+		return new Lease(connection, slots);
+	}
+
+	private static URLConnection configure(URLConnection connection) {
+		connection.setConnectTimeout(connectTimeout);
+		connection.setReadTimeout(readTimeout);
+		connection.setRequestProperty("User-Agent", USER_AGENT);
+		return connection;
+	}
+
+	/**
+	 * A connection that counts against its host's connection limit until closed
+	 */
+	static class Lease implements AutoCloseable {
+		private final URLConnection connection;
+		private Semaphore slots;
+
+		private Lease(URLConnection connection, Semaphore slots) {
+			this.connection = connection;
+			this.slots = slots;
+		}
+
+		URLConnection connection() {
+			return connection;
+		}
+
+		@Override
+		public synchronized void close() {
+			if (slots != null) {
+				slots.release();
+				slots = null;
+			}
+		}
+	}
+}
@@ -0,0 +1,52 @@
+package zergtel.core.downloader;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+/**
+ * Thrown when a server answers with an error status, so that callers (RetryPolicy in particular) can tell a 404 apart
+ * from a 503 without picking apart an error message
+ */
+public class HttpStatusException extends IOException {
+	private static final long serialVersionUID = 1L;
+	private final int status;
+	private final long retryAfter;
+
+	public HttpStatusException(URL uri, int status, long retryAfter) {
+		super("Server returned " + status + " for " + uri);
+		this.status = status;
+		this.retryAfter = retryAfter;
+	}
+
+	/**
+	 * Throws if a sent connection came back with an error status
+	 *
+	 * @param uri - URL of the connection, for the message
+	 * @param connection - Connection that has been sent
+	 * @throws IOException - HttpStatusException for any status of 400 or above, or whatever getting the status threw
+	 */
+	static void check(URL uri, HttpURLConnection connection) throws IOException {
+		int status = connection.getResponseCode();
+		if (status >= 400) {
+			long retryAfter = -1;
+			String header = connection.getHeaderField("Retry-After");
+			if (header != null && header.trim().matches("\\d+")) { //it can also be a date, which isn't worth parsing
+				retryAfter = Long.parseLong(header.trim());
+			}
+			connection.disconnect();
+			throw new HttpStatusException(uri, status, retryAfter);
+		}
+	}
+
+	public int getStatus() {
+		return status;
+	}
+
+	/**
+	 * @return - Seconds the server asked us to wait before trying again, or -1 if it didn't say
+	 */
+	public long getRetryAfter() {
+		return retryAfter;
+	}
+}
@@ -0,0 +1,15 @@
+package zergtel.core.downloader;
+
+import java.io.IOException;
+
+/**
+ * Thrown before a download starts, when the drive it's going to doesn't have room for it
+ * Without the check, a full drive would only be noticed once most of the file had already been downloaded.
+ */
+public class InsufficientSpaceException extends IOException {
+	private static final long serialVersionUID = 1L;
+
+	public InsufficientSpaceException(String message) {
+		super(message);
+	}
+}
@@ -0,0 +1,103 @@
+package zergtel.core.downloader;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Records the checksum of every finished download in a manifest file in the directory it was downloaded to
+ *
+ * Each line of ztvdc.manifest is the CRC32 of a file, its size in bytes, and its name, separated by two spaces
+ * (roughly the format of the usual *sum tools). Later steps, or a person, can use it to check that a file is still
+ * exactly what was downloaded.
+ */
+class Manifest {
+	static final String NAME = "ztvdc.manifest";
+
+	/**
+	 * Adds a file to the manifest of its directory, in place of whatever the manifest said about it before
+	 *
+	 * @param file - The downloaded file
+	 * @param checksum - Checksum made while downloading, or null to read the file back and make one now
+	 * @return - The checksum as it was recorded
+	 * @throws IOException - If the manifest can't be written, or the file can't be read back
+	 */
+	static String record(File file, RangeChecksum checksum) throws IOException {
+		if (checksum == null) {
+			checksum = read(file);
+		}
+
+		File manifest = new File(file.getAbsoluteFile().getParentFile(), NAME);
+		add(manifest, Collections.singletonList(checksum.hex() + "  " + checksum.length() + "  " + file.getName()));
+		return checksum.hex();
+	}
+
+	/**
+	 * Adds lines to a manifest, dropping the lines it already had for the same files, so that downloading a file again
+	 * leaves one line for it rather than one per download
+	 * The manifest is written out in full next to the old one and then moved over it, so a crash halfway never leaves a
+	 * manifest with lines missing.
+	 *
+	 * @param manifest - Manifest file, which doesn't have to exist yet
+	 * @param lines - Lines in the manifest's format
+	 * @throws IOException - If the manifest can't be read or written
+	 */
+	static synchronized void add(File manifest, List<String> lines) throws IOException {
+		Set<String> names = new HashSet<>();
+		for (String line : lines) {
+			names.add(name(line));
+		}
+
+		List<String> kept = new ArrayList<>();
+		if (manifest.exists()) {
+			for (String line : Files.readAllLines(manifest.toPath(), StandardCharsets.UTF_8)) {
+				if (!names.contains(name(line))) {
+					kept.add(line);
+				}
+			}
+		}
+		kept.addAll(lines);
+
+		Path temp = new File(manifest.getPath() + ".tmp").toPath();
+		Files.write(temp, kept, StandardCharsets.UTF_8);
+		try {
+			Files.move(temp, manifest.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(temp, manifest.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	/**
+	 * @return - Name of the file a manifest line is about, or the whole line if it isn't in the manifest's format
+	 */
+	private static String name(String line) {
+		String[] fields = line.split("  ", 3);
+		return fields.length == 3 ? fields[2] : line;
+	}
+
+	/**
+	 * Checksums a file the slow way, by reading it. Only needed when the checksum couldn't be made while downloading
+	 */
+	private static RangeChecksum read(File file) throws IOException {
+		RangeChecksum checksum = new RangeChecksum();
+		byte[] buffer = new byte[BufferPool.DEFAULT_CHUNK_SIZE];
+		int n;
+		try (InputStream in = new FileInputStream(file)) {
+			while ((n = in.read(buffer)) != -1) {
+				checksum.update(buffer, 0, n);
+			}
+		}
+		return checksum;
+	}
+}
@@ -0,0 +1,93 @@
+package zergtel.core.downloader;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts the bytes of a single transfer, and turns them into ProgressEvents for a listener
+ *
+ * add is called from the copy loop after every chunk, possibly from several segment threads at once, so it has to stay
+ * cheap no matter how fast the download is: the count is a LongAdder (so threads don't fight over one counter), and an
+ * event is only built when at least INTERVAL has passed since the last one. Whichever thread notices that first gets to
+ * send it, and every other thread carries straight on.
+ */
+class Progress {
+	static final long INTERVAL = TimeUnit.MILLISECONDS.toNanos(250);
+
+	private final String name;
+	private final ProgressListener listener;
+	private final long initial; //bytes that were already done before this transfer started
+	private final LongAdder transferred = new LongAdder();
+	private final AtomicLong nextEvent;
+	private final long start = System.nanoTime();
+	private volatile long total;
+
+	//only touched while sending an event
+	private long lastBytes;
+	private long lastTime = start;
+
+	/**
+	 * @param name - Name of the transfer, for the events
+	 * @param total - Size of the transfer in bytes, or -1 if unknown
+	 * @param initial - Bytes that are already done, for resumed downloads
+	 * @param listener - Listener to send events to, or null to only count
+	 */
+	Progress(String name, long total, long initial, ProgressListener listener) {
+		this.name = name;
+		this.total = total;
+		this.initial = initial;
+		this.listener = listener;
+		this.nextEvent = new AtomicLong(start + INTERVAL);
+	}
+
+	void setTotal(long ntotal) {
+		total = ntotal;
+	}
+
+	/**
+	 * @return - Bytes done so far, including the initial ones
+	 */
+	long transferred() {
+		return initial + transferred.sum();
+	}
+
+	/**
+	 * Counts n more bytes, and sends an event if one is due
+	 */
+	void add(long n) {
+		transferred.add(n);
+		if (listener == null) {
+			return;
+		}
+		long now = System.nanoTime();
+		long next = nextEvent.get();
+		if (now - next >= 0 && nextEvent.compareAndSet(next, now + INTERVAL)) {
+			send(now, false);
+		}
+	}
+
+	/**
+	 * Sends the last event of the transfer
+	 */
+	void finish() {
+		if (listener != null) {
+			send(System.nanoTime(), true);
+		}
+	}
+
+	private synchronized void send(long now, boolean done) {
+		long bytes = transferred.sum();
+		long rate = now > lastTime ? (long) ((bytes - lastBytes) * 1e9 / (now - lastTime)) : 0;
+		long averageRate = now > start ? (long) (bytes * 1e9 / (now - start)) : 0;
+		lastBytes = bytes;
+		lastTime = now;
+
+		try {
+			listener.progress(new ProgressEvent(name, initial + bytes, total, rate, averageRate, done));
+		} catch (RuntimeException e) {
+			//a broken progress bar shouldn't take the download down with it
+			e.printStackTrace();
+		}
+	}
+}
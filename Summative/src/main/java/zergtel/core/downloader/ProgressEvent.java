@@ -0,0 +1,92 @@
+package zergtel.core.downloader;
+
+/**
+ * Snapshot of how far along a single transfer is, given to ProgressListeners
+ */
+public class ProgressEvent {
+	private final String name;
+	private final long transferred;
+	private final long total;
+	private final long rate;
+	private final long averageRate;
+	private final boolean done;
+
+	ProgressEvent(String name, long transferred, long total, long rate, long averageRate, boolean done) {
+		this.name = name;
+		this.transferred = transferred;
+		this.total = total;
+		this.rate = rate;
+		this.averageRate = averageRate;
+		this.done = done;
+	}
+
+	/**
+	 * @return - Name of what is being transferred, usually the name of the output file
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * @return - Bytes of the file that are done, including any that were already there from an earlier, resumed attempt
+	 */
+	public long getTransferred() {
+		return transferred;
+	}
+
+	/**
+	 * @return - Size of the file in bytes, or -1 if the server didn't say
+	 */
+	public long getTotal() {
+		return total;
+	}
+
+	/**
+	 * @return - Bytes per second since the last event
+	 */
+	public long getRate() {
+		return rate;
+	}
+
+	/**
+	 * @return - Bytes per second since the transfer started
+	 */
+	public long getAverageRate() {
+		return averageRate;
+	}
+
+	/**
+	 * @return - Estimated seconds until the transfer is done at the average rate, or -1 if that can't be known yet
+	 */
+	public long getEta() {
+		if (done) {
+			return 0;
+		}
+		if (total < 0 || averageRate <= 0) {
+			return -1;
+		}
+		return Math.max(0, total - transferred) / averageRate;
+	}
+
+	/**
+	 * @return - Fraction of the file that is done, from 0 to 1, or -1 if the size isn't known
+	 */
+	public double getFraction() {
+		if (total <= 0) {
+			return done ? 1 : -1;
+		}
+		return Math.min(1, (double) transferred / total);
+	}
+
+	/**
+	 * @return - True for the last event of a transfer
+	 */
+	public boolean isDone() {
+		return done;
+	}
+
+	@Override
+	public String toString() {
+		return name + ": " + transferred + "/" + total + " bytes, " + rate + " B/s (" + averageRate + " B/s average), eta " + getEta() + "s";
+	}
+}
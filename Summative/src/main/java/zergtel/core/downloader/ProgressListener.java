@@ -0,0 +1,19 @@
+package zergtel.core.downloader;
+
+/**
+ * Something that wants to know how downloads are going, such as a progress bar
+ *
+ * Listeners are given to a job through its DownloadSession, and hear about every file the job transfers - plain EzHttp
+ * downloads, each track of a bandcamp album, and the streams of a youtube video alike.
+ *
+ * Events come from whichever thread is doing the downloading, at most a few times a second per transfer (see Progress),
+ * plus one last event once a transfer is done. Listeners should be quick, and leave any real work (like repainting) to
+ * another thread.
+ */
+@FunctionalInterface
+public interface ProgressListener {
+	/**
+	 * @param event - Snapshot of a single transfer
+	 */
+	void progress(ProgressEvent event);
+}
@@ -0,0 +1,135 @@
+package zergtel.core.downloader;
+
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+
+/**
+ * CRC32 of one contiguous run of bytes, built up as those bytes are downloaded
+ *
+ * Segmented and resumed downloads write a file out of order, so a normal checksum (which needs the bytes in order) would
+ * mean reading the whole file back once it's done. CRC32 however can be combined: knowing the crc of A and the crc and
+ * length of B is enough to get the crc of A followed by B. So each downloaded range keeps its own crc, ranges that meet
+ * get their crcs combined, and once the whole file is one range its crc is the checksum of the file - without a
+ * single byte being read twice.
+ *
+ * The combining math is a port of crc32_combine from zlib.
+ */
+class RangeChecksum {
+	private static final long POLYNOMIAL = 0xedb88320L;
+
+	private long base; //crc of the bytes before tail
+	private long baseLength;
+	private final CRC32 tail = new CRC32();
+	private long tailLength;
+
+	/**
+	 * @param value - CRC32 of some bytes, as given by value()
+	 * @param length - Amount of those bytes
+	 * @return - A checksum that continues on from those bytes
+	 */
+	static RangeChecksum of(long value, long length) {
+		RangeChecksum checksum = new RangeChecksum();
+		checksum.base = value;
+		checksum.baseLength = length;
+		return checksum;
+	}
+
+	/**
+	 * Adds bytes to the end of the run. Consumes the buffer
+	 */
+	void update(ByteBuffer bytes) {
+		tailLength += bytes.remaining();
+		tail.update(bytes);
+	}
+
+	void update(byte[] bytes, int offset, int length) {
+		tailLength += length;
+		tail.update(bytes, offset, length);
+	}
+
+	/**
+	 * Adds a run that starts right where this one ends
+	 */
+	void append(RangeChecksum next) {
+		base = combine(value(), next.value(), next.length());
+		baseLength = length() + next.length();
+		tail.reset();
+		tailLength = 0;
+	}
+
+	long value() {
+		return combine(base, tail.getValue(), tailLength);
+	}
+
+	long length() {
+		return baseLength + tailLength;
+	}
+
+	/**
+	 * @return - value() as the usual 8 digit hex string
+	 */
+	String hex() {
+		return String.format("%08x", value());
+	}
+
+	/**
+	 * @param crc1 - CRC32 of the first run of bytes
+	 * @param crc2 - CRC32 of the second run of bytes
+	 * @param length2 - Length of the second run
+	 * @return - CRC32 of the first run followed by the second
+	 */
+	static long combine(long crc1, long crc2, long length2) {
+		if (length2 <= 0) {
+			return crc1;
+		}
+
+		long[] even = new long[32];
+		long[] odd = new long[32];
+
+		//odd is the operator for one zero bit
+		odd[0] = POLYNOMIAL;
+		long row = 1;
+		for (int n = 1; n < 32; n++) {
+			odd[n] = row;
+			row <<= 1;
+		}
+		square(even, odd); //two zero bits
+		square(odd, even); //four zero bits
+
+		//apply length2 zero bytes to crc1, one power of two at a time
+		do {
+			square(even, odd);
+			if ((length2 & 1) != 0) {
+				crc1 = times(even, crc1);
+			}
+			length2 >>= 1;
+			if (length2 == 0) {
+				break;
+			}
+
+			square(odd, even);
+			if ((length2 & 1) != 0) {
+				crc1 = times(odd, crc1);
+			}
+			length2 >>= 1;
+		} while (length2 != 0);
+
+		return crc1 ^ crc2;
+	}
+
+	private static long times(long[] matrix, long vector) {
+		long sum = 0;
+		for (int i = 0; vector != 0; i++, vector >>>= 1) {
+			if ((vector & 1) != 0) {
+				sum ^= matrix[i];
+			}
+		}
+		return sum;
+	}
+
+	private static void square(long[] square, long[] matrix) {
+		for (int n = 0; n < 32; n++) {
+			square[n] = times(matrix, matrix[n]);
+		}
+	}
+}
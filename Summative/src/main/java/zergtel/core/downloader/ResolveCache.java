@@ -0,0 +1,127 @@
+package zergtel.core.downloader;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.function.ToLongFunction;
+
+/**
+ * Keeps what a slow lookup found (vget's extraction of a video, for instance) for a while, so that the same lookup
+ * doesn't have to be done again every time it's needed
+ *
+ * Entries go stale after a fixed time, or sooner if the value itself says so (youtube's stream urls stop working after
+ * a few hours), and only the most recently used few are kept. A lookup that is still running when the same key is asked
+ * for again is waited for rather than started a second time, so a download started right after a prefetch simply picks
+ * up where the prefetch is.
+ *
+ * @param <T> - What the lookups find
+ */
+class ResolveCache<T> {
+    private final long ttl;
+    private final int maxEntries;
+    private final ToLongFunction<T> deadline;
+    private final Map<String, Slot<T>> entries;
+
+    /**
+     * @param ttl - Milliseconds an entry is kept for at most
+     * @param maxEntries - Most entries kept, the least recently used going first
+     * @param deadline - Time (in milliseconds since the epoch) after which a value is no use anymore, Long.MAX_VALUE if
+     *                   it doesn't go off by itself
+     */
+    ResolveCache(long ttl, int maxEntries, ToLongFunction<T> deadline) {
+        this.ttl = ttl;
+        this.maxEntries = maxEntries;
+        this.deadline = deadline;
+        this.entries = new LinkedHashMap<String, Slot<T>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Slot<T>> eldest) {
+                return size() > ResolveCache.this.maxEntries;
+            }
+        };
+    }
+
+    private static class Slot<T> {
+        private final CompletableFuture<T> value = new CompletableFuture<>();
+        private volatile long expires = Long.MAX_VALUE; //set once the value is in
+    }
+
+    /**
+     * Gets the value of a key, looking it up if it isn't known (or is stale)
+     *
+     * @param key - What to look up
+     * @param resolve - Looks the key up. Runs on the calling thread, and only if nobody else is looking the key up already
+     * @return - The value
+     * @throws Exception - Whatever resolve threw, in which case nothing is kept and the next call tries again
+     */
+    T get(String key, Callable<T> resolve) throws Exception {
+        Slot<T> entry;
+        boolean mine = false;
+        synchronized (entries) {
+            entry = entries.get(key);
+            if (entry == null || entry.expires < System.currentTimeMillis()) {
+                entry = new Slot<>();
+                entries.put(key, entry);
+                mine = true;
+            }
+        }
+
+        if (mine) {
+            try {
+                T value = resolve.call();
+                entry.expires = Math.min(System.currentTimeMillis() + ttl, deadline.applyAsLong(value));
+                entry.value.complete(value);
+            } catch (Throwable e) {
+                //errors too, or everyone waiting on the slot would wait forever
+                remove(key, entry);
+                entry.value.completeExceptionally(e);
+                throw e;
+            }
+        }
+
+        try {
+            return entry.value.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+        }
+    }
+
+    /**
+     * @return - True if key has a value that isn't stale, or is being looked up right now
+     */
+    boolean contains(String key) {
+        synchronized (entries) {
+            Slot<T> entry = entries.get(key);
+            return entry != null && entry.expires >= System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Forgets the value of a key, if it's still that value, so the next get looks it up again
+     * For values that turned out to be stale before they were expected to be.
+     */
+    void invalidate(String key, T value) {
+        synchronized (entries) {
+            Slot<T> entry = entries.get(key);
+            if (entry != null && entry.value.isDone() && entry.value.getNow(null) == value) {
+                entries.remove(key);
+            }
+        }
+    }
+
+    int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    private void remove(String key, Slot<T> entry) {
+        synchronized (entries) {
+            entries.remove(key, entry);
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package zergtel.core.downloader;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.ConnectException;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Decides which failed downloads are worth trying again, and how long to wait before each try
+ *
+ * Only errors that are likely to go away on their own are retried: timeouts, reset or refused connections, downloads
+ * that came up short, and the http statuses that mean "not right now" (408, 429, and 5xx). Everything else - a 404, a
+ * full drive, a cancelled download - fails straight away, since trying again would only fail the same way.
+ *
+ * The wait doubles after every attempt, up to a maximum, and is randomized between half and all of that (jitter), so
+ * that many downloads that failed at the same moment don't all come back at the same moment. A server that says how
+ * long to wait (Retry-After) is listened to.
+ *
+ * Retries don't start over: EzHttp resumes ranged downloads from whatever its journal says already arrived.
+ */
+public class RetryPolicy {
+	private static final RetryPolicy NONE = new RetryPolicy(1, 0, 0);
+
+	private final int attempts;
+	private final long baseDelay;
+	private final long maxDelay;
+
+	/**
+	 * @param attempts - Most times to try, including the first
+	 * @param baseDelay - Milliseconds to wait before the first retry
+	 * @param maxDelay - Most milliseconds to ever wait between tries
+	 */
+	public RetryPolicy(int attempts, long baseDelay, long maxDelay) {
+		this.attempts = Math.max(1, attempts);
+		this.baseDelay = Math.max(0, baseDelay);
+		this.maxDelay = Math.max(this.baseDelay, maxDelay);
+	}
+
+	/**
+	 * @return - A policy that never retries
+	 */
+	public static RetryPolicy none() {
+		return NONE;
+	}
+
+	public int getAttempts() {
+		return attempts;
+	}
+
+	public long getBaseDelay() {
+		return baseDelay;
+	}
+
+	public long getMaxDelay() {
+		return maxDelay;
+	}
+
+	/**
+	 * Something that can be tried more than once
+	 */
+	@FunctionalInterface
+	public interface Action<T> {
+		/**
+		 * @param attempt - Which try this is, starting at 1
+		 */
+		T run(int attempt) throws Exception;
+	}
+
+	/**
+	 * Runs action until it succeeds, fails with an error that isn't worth retrying, or runs out of attempts
+	 *
+	 * @param what - Description of what is being tried, for the log
+	 * @param action - What to try
+	 * @return - What action returned
+	 * @throws Exception - The last error from action, or an InterruptedIOException if interrupted while waiting
+	 */
+	public <T> T run(String what, Action<T> action) throws Exception {
+		for (int attempt = 1; ; attempt++) {
+			try {
+				return action.run(attempt);
+			} catch (Exception e) {
+				if (attempt >= attempts || !isRetryable(e)) {
+					throw e;
+				}
+				long delay = delay(attempt, e);
+				System.err.println(what + " failed (" + attempt + "/" + attempts + "), retrying in " + delay + "ms: " + e);
+				try {
+					Thread.sleep(delay);
+				} catch (InterruptedException interrupted) {
+					Thread.currentThread().interrupt();
+					InterruptedIOException cancelled = new InterruptedIOException("Interrupted while waiting to retry " + what);
+					cancelled.addSuppressed(e);
+					throw cancelled;
+				}
+			}
+		}
+	}
+
+	/**
+	 * @param e - Any error
+	 * @return - True if e, or what caused it, is likely to go away by trying again
+	 */
+	public boolean isRetryable(Throwable e) {
+		for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+			if (cause instanceof HttpStatusException) {
+				int status = ((HttpStatusException) cause).getStatus();
+				return status == 408 || status == 429 || status >= 500;
+			}
+			if (cause instanceof TruncatedDownloadException || cause instanceof SocketTimeoutException
+					|| cause instanceof ConnectException || cause instanceof SocketException) {
+				return true;
+			}
+			if (cause instanceof InterruptedIOException || cause instanceof InsufficientSpaceException) {
+				return false;
+			}
+			//what HttpURLConnection throws when a chunked response stops early
+			if (cause instanceof IOException && cause.getMessage() != null && cause.getMessage().contains("Premature EOF")) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @param attempt - The attempt that just failed, starting at 1
+	 * @param e - What it failed with
+	 * @return - Milliseconds to wait before the next attempt
+	 */
+	long delay(int attempt, Throwable e) {
+		long delay = Math.min(maxDelay, baseDelay << Math.min(attempt - 1, 30));
+		delay = delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+		if (e instanceof HttpStatusException && ((HttpStatusException) e).getRetryAfter() > 0) {
+			delay = Math.max(delay, Math.min(maxDelay, ((HttpStatusException) e).getRetryAfter() * 1000));
+		}
+		return delay;
+	}
+}
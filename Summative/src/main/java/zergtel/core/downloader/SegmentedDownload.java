@@ -0,0 +1,282 @@
+package zergtel.core.downloader;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Splits a single http resource into byte ranges and fetches each range on its own connection
+ *
+ * Some servers (bandcamp's cdn being a notable one) cap the speed of each individual connection, so pulling one file
+ * through several connections at once gets us much closer to the actual bandwidth available.
+ * Every range is written straight to its offset in one pre-sized output file, so no stitching is needed afterwards.
+ *
+ * Only the ranges that the DownloadJournal reports as missing are fetched, which is what makes resuming work - a fresh
+ * download is simply one where the whole file is missing.
+ *
+ * Downloads are also hedged (see EzHttp.setHedging): when one connection stays below a set speed for a while (a slow
+ * cdn edge, usually), the back half of what it has left is handed to a fresh connection - to a mirror if there are any,
+ * or otherwise to the same url, which usually lands on another edge. Hedging repeats as long as the connection stays
+ * slow, so the slow connection ends up with less and less of the file, and whichever connection gets there first wins
+ * each part. Since the halves never overlap, no byte is downloaded twice. Jobs that Bandwidth holds below the hedge
+ * rate are never hedged.
+ *
+ * This class is only used by EzHttp, and only once EzHttp has confirmed that the server accepts range requests.
+ */
+class SegmentedDownload {
+	//shared between all downloads so that many segmented downloads at once don't each spin up their own threads
+	private static final ExecutorService POOL = Executors.newCachedThreadPool(r -> {
+		Thread thread = new Thread(r, "ZTVDC-segment");
+		thread.setDaemon(true);
+		return thread;
+	});
+	private static final long CHECK_INTERVAL = 100; //milliseconds between speed checks while hedging
+	private static final long MIN_HEDGE = 64 * 1024; //below this, a new connection costs more than it saves
+
+	private final URL uri;
+	private final List<URL> mirrors;
+	private final Transfer transfer;
+	private final DownloadJournal journal;
+	private final int segments;
+	private final long hedgeRate;
+	private final long hedgeDelay;
+	private final List<Segment> running = new ArrayList<>(); //only touched by the thread calling download
+	private int hedges;
+
+	/**
+	 * @param uri - URL of resource
+	 * @param mirrors - Other urls serving the exact same bytes, for hedged connections. Can be empty
+	 * @param transfer - Transfer of the download. Its journal knows the total size and which bytes are still missing
+	 * @param segments - Amount of byte ranges (and therefore connections) to split the missing bytes into
+	 * @param hedgeRate - Bytes per second below which a connection is hedged, 0 to never hedge
+	 * @param hedgeDelay - Milliseconds a connection has to stay below hedgeRate before it's hedged
+	 */
+	SegmentedDownload(URL uri, List<URL> mirrors, Transfer transfer, int segments, long hedgeRate, long hedgeDelay) {
+		this.uri = uri;
+		this.mirrors = mirrors;
+		this.transfer = transfer;
+		this.journal = transfer.getJournal();
+		this.segments = segments;
+		this.hedgeRate = hedgeRate;
+		this.hedgeDelay = TimeUnit.MILLISECONDS.toNanos(hedgeDelay);
+	}
+
+	/**
+	 * Downloads the missing parts of the resource into fileName
+	 *
+	 * @param first - An already opened connection to the resource. If the download starts from byte 0, it is used for
+	 *                the first range, so that the request EzHttp made to check for range support doesn't go to waste.
+	 *                It is closed as soon as it's no longer needed, so that its slot in HttpPool frees up
+	 * @param fileName - Absolute name of the output file
+	 * @throws Exception - If any one of the ranges fails, the whole download fails (the journal keeps what did finish)
+	 */
+	void download(HttpPool.Lease first, String fileName) throws Exception {
+		List<long[]> ranges = split(journal.missing(), segments);
+
+		try (RandomAccessFile file = new RandomAccessFile(fileName, "rw")) {
+			file.setLength(journal.getSize());
+			FileChannel channel = file.getChannel();
+
+			boolean reuseFirst = !ranges.isEmpty() && ranges.get(0)[0] == 0;
+			if (!reuseFirst) {
+				((HttpURLConnection) first.connection()).disconnect();
+				first.close();
+			}
+
+			try {
+				for (int i = 0; i < ranges.size(); i++) {
+					Transfer.Window window = new Transfer.Window(ranges.get(i)[0], ranges.get(i)[1] + 1);
+					if (i == 0 && reuseFirst) {
+						start(window, () -> {
+							try (HttpPool.Lease lease = first; InputStream in = lease.connection().getInputStream()) {
+								copy(in, (HttpURLConnection) lease.connection(), window, channel);
+							}
+							return null;
+						});
+					} else {
+						start(window, () -> {
+							fetchRange(uri, window, channel);
+							return null;
+						});
+					}
+				}
+
+				//hedging can add segments while earlier ones are still being waited on
+				for (int i = 0; i < running.size(); i++) {
+					Future<Void> segment = running.get(i).future;
+					while (true) {
+						try {
+							segment.get(CHECK_INTERVAL, TimeUnit.MILLISECONDS);
+							break;
+						} catch (TimeoutException e) {
+							hedge(channel);
+						}
+					}
+				}
+			} catch (ExecutionException e) {
+				if (e.getCause() instanceof Exception) {
+					throw (Exception) e.getCause();
+				}
+				throw e;
+			} finally {
+				for (Segment segment : running) {
+					segment.future.cancel(true);
+				}
+				journal.save();
+			}
+		}
+	}
+
+	private void start(Transfer.Window window, Callable<Void> fetch) {
+		running.add(new Segment(window, POOL.submit(fetch)));
+	}
+
+	/**
+	 * Checks the speed of every running segment, and hedges the ones that have been slow for too long
+	 * At most one hedge per segment runs at once, so a download never uses more than twice its segments in connections
+	 */
+	private void hedge(FileChannel channel) {
+		if (hedgeRate <= 0) {
+			return;
+		}
+
+		long now = System.nanoTime();
+		int active = 0;
+		for (Segment segment : running) {
+			if (!segment.future.isDone()) {
+				active++;
+			}
+		}
+		//a job held back by Bandwidth is slow on purpose, and more connections would only share the same limit
+		long allowed = transfer.getJob().getRate();
+		if (allowed != 0 && allowed < hedgeRate * active) {
+			return;
+		}
+
+		for (Segment segment : new ArrayList<>(running)) {
+			if (segment.future.isDone() || !segment.isSlow(now, hedgeRate, hedgeDelay) || active >= segments * 2) {
+				continue;
+			}
+			Transfer.Window tail = segment.window.split(MIN_HEDGE);
+			if (tail == null) {
+				continue;
+			}
+
+			URL source = mirrors.isEmpty() ? uri : mirrors.get(hedges % mirrors.size());
+			hedges++;
+			active++;
+			segment.slow = false;
+			System.out.println("Hedging slow connection: bytes " + tail.position() + "-" + (tail.end() - 1) + " from " + source);
+			start(tail, () -> {
+				fetchRange(source, tail, channel);
+				return null;
+			});
+		}
+	}
+
+	/**
+	 * Cuts a list of ranges into roughly parts pieces of equal size
+	 *
+	 * @param ranges - {start, end} pairs, end inclusive
+	 * @param parts - Amount of pieces wanted
+	 * @return - {start, end} pairs, end inclusive. Can be a few more than parts if ranges is fragmented
+	 */
+	static List<long[]> split(List<long[]> ranges, int parts) {
+		long total = 0;
+		for (long[] range : ranges) {
+			total += range[1] - range[0] + 1;
+		}
+		long target = Math.max(1, (total + parts - 1) / parts);
+
+		List<long[]> output = new ArrayList<>();
+		for (long[] range : ranges) {
+			for (long start = range[0]; start <= range[1]; start += target) {
+				output.add(new long[] {start, Math.min(range[1], start + target - 1)});
+			}
+		}
+		return output;
+	}
+
+	/**
+	 * Fetches the bytes of a window from source on a new connection, and writes them at the same offset of channel
+	 */
+	private void fetchRange(URL source, Transfer.Window window, FileChannel channel) throws IOException {
+		try (HttpPool.Lease lease = HttpPool.open(source)) {
+			HttpURLConnection connection = (HttpURLConnection) lease.connection();
+			String range = window.position() + "-" + (window.end() - 1);
+			connection.setRequestProperty("Range", "bytes=" + range);
+
+			HttpStatusException.check(source, connection);
+			//a 200 here means the server ignored the range and is sending us the whole file, which would corrupt the output
+			if (connection.getResponseCode() != HttpURLConnection.HTTP_PARTIAL) {
+				connection.disconnect();
+				throw new IOException("Server ignored range " + range + " of " + source);
+			}
+			//a mirror that's out of date could be serving a different version of the file
+			String contentRange = connection.getHeaderField("Content-Range");
+			if (contentRange != null && !contentRange.endsWith("/" + journal.getSize())) {
+				connection.disconnect();
+				throw new IOException("Expected " + journal.getSize() + " bytes from " + source + ", got " + contentRange);
+			}
+
+			try (InputStream in = connection.getInputStream()) {
+				copy(in, connection, window, channel);
+			}
+		}
+	}
+
+	private void copy(InputStream in, HttpURLConnection connection, Transfer.Window window, FileChannel channel) throws IOException {
+		long end = window.end();
+		transfer.copy(Transfer.channel(in), channel, window);
+		if (window.end() != end) {
+			//the window was hedged, so the rest of the response isn't wanted, and shouldn't be drained for keep alive
+			connection.disconnect();
+		}
+	}
+
+	/**
+	 * A running range, and how fast it has been going
+	 */
+	private static class Segment {
+		private final Transfer.Window window;
+		private final Future<Void> future;
+		private long lastPosition;
+		private long lastCheck = System.nanoTime();
+		private boolean slow;
+		private long slowSince;
+
+		private Segment(Transfer.Window window, Future<Void> future) {
+			this.window = window;
+			this.future = future;
+			this.lastPosition = window.position();
+		}
+
+		/**
+		 * @return - True if the segment has been going slower than rate for at least delay nanoseconds
+		 */
+		private boolean isSlow(long now, long rate, long delay) {
+			long position = window.position();
+			boolean below = (position - lastPosition) * 1e9 / Math.max(1, now - lastCheck) < rate;
+			lastPosition = position;
+			lastCheck = now;
+
+			if (below && !slow) {
+				slowSince = now;
+			}
+			slow = below;
+			return slow && now - slowSince >= delay;
+		}
+	}
+}
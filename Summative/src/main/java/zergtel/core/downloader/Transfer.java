@@ -0,0 +1,372 @@
+package zergtel.core.downloader;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.security.MessageDigest;
+
+/**
+ * The copy loop behind every EzHttp download, shared by single stream and segmented downloads
+ * One Transfer is made per download, and holds everything that has to happen to each chunk on its way to disk.
+ *
+ * Bytes are moved from the connection to the output file through pooled buffers (see BufferPool) with positional
+ * FileChannel writes, so any amount of copies can run into the same file at once. Connections are read a whole chunk at a
+ * time straight into the array of a heap buffer, since an InputStream can't read into anything else.
+ * When the source happens to be a file itself (file: urls), FileChannel.transferFrom is used instead, which lets the
+ * os move the bytes without them ever entering the jvm. That is the only zero-copy path.
+ */
+class Transfer {
+	private final DownloadJournal journal;
+	private final Bandwidth.Job job;
+	private final Progress progress;
+	private RangeChecksum checksum = new RangeChecksum(); //only used when there's no journal to keep checksums in
+	private MessageDigest sha256; //likewise, since a digest can't be put together from out of order ranges
+
+	/**
+	 * @param journal - Journal to record written ranges in, or null if there is none
+	 * @param job - Bandwidth job to draw from after every chunk
+	 * @param progress - Progress to count every chunk towards
+	 */
+	Transfer(DownloadJournal journal, Bandwidth.Job job, Progress progress) {
+		this.journal = journal;
+		this.job = job;
+		this.progress = progress;
+		this.sha256 = journal == null ? DownloadCache.sha256() : null;
+	}
+
+	DownloadJournal getJournal() {
+		return journal;
+	}
+
+	Bandwidth.Job getJob() {
+		return job;
+	}
+
+	/**
+	 * @return - Checksum of everything copied so far, or null if some of it couldn't be checksummed on the way
+	 */
+	RangeChecksum getChecksum() {
+		return journal != null ? journal.checksum() : checksum;
+	}
+
+	/**
+	 * Finishes the SHA-256 of everything copied, for DownloadCache. Only call this once the copying is done
+	 *
+	 * @return - The digest in hex, or null if the bytes were copied in ranges or didn't pass through the jvm
+	 */
+	String getSha256() {
+		return sha256 == null ? null : DownloadCache.hex(sha256.digest());
+	}
+
+	/**
+	 * Wraps a connection's input stream as a channel, using the underlying FileChannel where there is one
+	 */
+	static ReadableByteChannel channel(InputStream in) {
+		if (in instanceof FileInputStream) {
+			return ((FileInputStream) in).getChannel();
+		}
+		return new StreamChannel(in, null);
+	}
+
+	/**
+	 * Wraps an output stream (ffmpeg's stdin, say) as a channel that writes heap buffers without copying them first
+	 */
+	static WritableByteChannel channel(OutputStream out) {
+		return new StreamChannel(null, out);
+	}
+
+	/**
+	 * @return - A pooled buffer suited to reading from in: a heap buffer for streams, a direct one for anything else
+	 */
+	private static ByteBuffer buffer(ReadableByteChannel in) {
+		return BufferPool.acquire(!(in instanceof StreamChannel));
+	}
+
+	/**
+	 * Copies bytes from in to out, starting at position in out
+	 *
+	 * @param in - Source of bytes
+	 * @param out - File to write to
+	 * @param position - Offset in out of the first byte
+	 * @param length - Amount of bytes to copy, or -1 to copy until in runs out
+	 * @return - Amount of bytes copied
+	 * @throws IOException - If the copying thread is interrupted, or TruncatedDownloadException if in runs out before
+	 *                       length bytes
+	 */
+	long copy(ReadableByteChannel in, FileChannel out, long position, long length) throws IOException {
+		if (in instanceof FileChannel) {
+			return transfer((FileChannel) in, out, position, length);
+		}
+		return copy(in, out, new Window(position, length < 0 ? -1 : position + length));
+	}
+
+	/**
+	 * Copies bytes from in to out until a window is filled. The end of the window may be moved closer while copying, in
+	 * which case the copy stops early and leaves the rest of in unread
+	 *
+	 * @param in - Source of bytes, positioned at the start of the window
+	 * @param out - File to write to
+	 * @param window - Part of out to fill
+	 * @return - Amount of bytes copied
+	 * @throws IOException - See copy(ReadableByteChannel, FileChannel, long, long)
+	 */
+	long copy(ReadableByteChannel in, FileChannel out, Window window) throws IOException {
+		long copied = 0;
+		ByteBuffer buffer = buffer(in);
+		try {
+			long claimed;
+			while ((claimed = window.claim(buffer.capacity())) > 0) {
+				long start = window.position();
+				checkInterrupted(start);
+
+				buffer.clear();
+				buffer.limit((int) claimed);
+				int n = in.read(buffer);
+				if (n == -1) {
+					window.advance(0);
+					if (window.isOpenEnded()) {
+						break;
+					}
+					throw new TruncatedDownloadException("Connection closed with " + window.remaining() + " bytes left at " + start);
+				}
+
+				buffer.flip();
+				ByteBuffer bytes = buffer.duplicate(); //the checksum is updated after writing, while the bytes are still hot in cache
+				long offset = start;
+				while (buffer.hasRemaining()) {
+					offset += out.write(buffer, offset);
+				}
+				if (journal != null) {
+					journal.mark(start, offset, bytes);
+				} else {
+					update(bytes);
+				}
+				window.advance(n);
+				progress.add(n);
+				job.acquire(n);
+				copied += n;
+			}
+		} finally {
+			BufferPool.release(buffer);
+		}
+		return copied;
+	}
+
+	/**
+	 * Copies every byte of in to out, in order. For outputs that aren't files, such as ffmpeg's stdin
+	 *
+	 * @param in - Source of bytes
+	 * @param out - Where to write them
+	 * @return - Amount of bytes copied
+	 * @throws IOException - If either side fails, or the copying thread is interrupted
+	 */
+	long pipe(ReadableByteChannel in, WritableByteChannel out) throws IOException {
+		long copied = 0;
+		ByteBuffer buffer = buffer(in);
+		try {
+			while (true) {
+				checkInterrupted(copied);
+
+				buffer.clear();
+				int n = in.read(buffer);
+				if (n == -1) {
+					break;
+				}
+
+				buffer.flip();
+				ByteBuffer bytes = buffer.duplicate();
+				while (buffer.hasRemaining()) {
+					out.write(buffer);
+				}
+				update(bytes);
+				progress.add(n);
+				job.acquire(n);
+				copied += n;
+			}
+		} finally {
+			BufferPool.release(buffer);
+		}
+		return copied;
+	}
+
+	private long transfer(FileChannel in, FileChannel out, long position, long length) throws IOException {
+		long chunk = BufferPool.getChunkSize();
+		long copied = 0;
+		while (length < 0 || copied < length) {
+			checkInterrupted(position + copied);
+
+			long n = out.transferFrom(in, position + copied, length < 0 ? chunk : Math.min(chunk, length - copied));
+			if (n <= 0) {
+				if (length < 0) {
+					break;
+				}
+				throw new TruncatedDownloadException("Source ended with " + (length - copied) + " bytes left at " + (position + copied));
+			}
+			//these bytes never pass through the jvm, so there's nothing to checksum
+			if (journal != null) {
+				journal.mark(position + copied, position + copied + n, null);
+			} else {
+				checksum = null;
+				sha256 = null;
+			}
+			progress.add(n);
+			job.acquire(n);
+			copied += n;
+		}
+		return copied;
+	}
+
+	/**
+	 * A channel over a stream, which reads into and writes from the array of a heap buffer directly
+	 * Channels.newChannel goes through an 8 KB array of its own instead, whatever size of buffer it's given.
+	 */
+	private static class StreamChannel implements ReadableByteChannel, WritableByteChannel {
+		private final InputStream in;
+		private final OutputStream out;
+		private boolean open = true;
+
+		private StreamChannel(InputStream in, OutputStream out) {
+			this.in = in;
+			this.out = out;
+		}
+
+		@Override
+		public int read(ByteBuffer dst) throws IOException {
+			if (!dst.hasArray()) {
+				return Channels.newChannel(in).read(dst);
+			}
+			int n = in.read(dst.array(), dst.arrayOffset() + dst.position(), dst.remaining());
+			if (n > 0) {
+				dst.position(dst.position() + n);
+			}
+			return n;
+		}
+
+		@Override
+		public int write(ByteBuffer src) throws IOException {
+			if (!src.hasArray()) {
+				return Channels.newChannel(out).write(src);
+			}
+			int n = src.remaining();
+			out.write(src.array(), src.arrayOffset() + src.position(), n);
+			src.position(src.limit());
+			return n;
+		}
+
+		@Override
+		public boolean isOpen() {
+			return open;
+		}
+
+		@Override
+		public void close() throws IOException {
+			open = false;
+			if (in != null) {
+				in.close();
+			}
+			if (out != null) {
+				out.close();
+			}
+		}
+	}
+
+	/**
+	 * Adds bytes that were just written in order to the checksum and digest. Consumes the buffer
+	 */
+	private void update(ByteBuffer bytes) {
+		if (sha256 != null) {
+			sha256.update(bytes.duplicate());
+		}
+		if (checksum != null) {
+			checksum.update(bytes);
+		}
+	}
+
+	private static void checkInterrupted(long position) throws IOException {
+		if (Thread.currentThread().isInterrupted()) {
+			throw new IOException("Download interrupted at " + position);
+		}
+	}
+
+	/**
+	 * The part of a file that one copy is responsible for
+	 *
+	 * Hedging (see SegmentedDownload) hands the back half of a slow copy's window to another connection while the copy
+	 * is still running. To make sure no byte is ever written by both, the copy claims each chunk before reading it, and
+	 * a window can only be split after the chunk that is currently claimed.
+	 */
+	static class Window {
+		private long position;
+		private long claimed;
+		private long end;
+		private final boolean openEnded;
+
+		/**
+		 * @param position - First byte of the window
+		 * @param end - Byte after the last byte of the window, or -1 for no end
+		 */
+		Window(long position, long end) {
+			this.position = position;
+			this.claimed = position;
+			this.openEnded = end < 0;
+			this.end = openEnded ? Long.MAX_VALUE : end;
+		}
+
+		synchronized long position() {
+			return position;
+		}
+
+		synchronized long end() {
+			return end;
+		}
+
+		synchronized long remaining() {
+			return end - position;
+		}
+
+		boolean isOpenEnded() {
+			return openEnded;
+		}
+
+		/**
+		 * @param max - Most bytes the copy can take at once
+		 * @return - Amount of bytes from position on that the copy may now read, 0 if the window is full
+		 */
+		private synchronized long claim(long max) {
+			long n = Math.min(max, end - position);
+			claimed = position + n;
+			return n;
+		}
+
+		private synchronized void advance(long n) {
+			position += n;
+			claimed = position;
+		}
+
+		/**
+		 * Takes the back half of the unclaimed part of this window away
+		 *
+		 * @param minimum - Smallest window worth splitting off
+		 * @return - A window with the back half, or null if there's too little left to be worth it
+		 */
+		synchronized Window split(long minimum) {
+			if (openEnded) {
+				return null;
+			}
+			long from = Math.max(position, claimed);
+			long half = (end - from) / 2;
+			if (half < minimum) {
+				return null;
+			}
+			Window tail = new Window(end - half, end);
+			end -= half;
+			return tail;
+		}
+	}
+}
@@ -0,0 +1,15 @@
+package zergtel.core.downloader;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a download ends up with fewer bytes than the server said it would send
+ * A truncated file would otherwise only be noticed once ffmpeg chokes on it, long after the download finished.
+ */
+public class TruncatedDownloadException extends IOException {
+	private static final long serialVersionUID = 1L;
+
+	public TruncatedDownloadException(String message) {
+		super(message);
+	}
+}
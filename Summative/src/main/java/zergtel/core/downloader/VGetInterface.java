@@ -2,12 +2,33 @@ package zergtel.core.downloader;
 
 import com.github.axet.vget.VGet;
 import com.github.axet.vget.info.VideoFileInfo;
+import com.github.axet.vget.info.VideoInfo;
 import zergtel.core.converter.Converter;
 import zergtel.core.converter.Merge;
+import zergtel.core.converter.PipeSource;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
 import java.net.URL;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Created by Simon on 11/23/2016.
@@ -16,63 +37,490 @@ import java.util.List;
  * vget is our library for Youtube downloads. They normally support vimeo to, but that's broken at the moment.
  * See their github page for more
  *
- * Note that if you download a video with VGetInterface, and then download something else to a different directory,
- * the output from VGetInterface will go to the new directory, rather than the directory originally specified. This could
- * probably be easily fixed by storing the directory that the user wants in the constructor, or perhaps by accessing the
- * directory directly from EzHttp at the start of the download, rather than the end.
+ * Downloads used to end up in whichever directory was set in EzHttp when the video finished, rather than when it
+ * started. The directory is now taken from the job's DownloadSession, which is fixed for the whole download.
+ *
+ * vget is only used to find the streams of a video. The streams themselves are downloaded with EzHttp, all at the same
+ * time, so a video with separate video and audio streams takes as long as the bigger one rather than both in a row.
+ *
+ * Extracting a video takes a few requests to youtube, so what vget finds is kept for a while (see infos and prefetch).
+ * Selecting a search result starts the extraction, and downloading it afterwards only waits for whatever is left of it.
+ *
+ * A session with an audio format downloads only the audio of a video (see audio).
+ *
+ * With a pipelined session, streams that ffmpeg can read from a pipe are downloaded straight into ffmpeg instead of the
+ * temp directory (see pipe).
  */
 public class VGetInterface {
+    //videos already extracted, by id. Youtube's stream urls last a few hours, but are let go well before that
+    private static final ResolveCache<VideoInfo> infos = new ResolveCache<>(TimeUnit.MINUTES.toMillis(30), 32, VGetInterface::expires);
+    private static final long EXPIRY_MARGIN = TimeUnit.MINUTES.toMillis(5); //time left for the download itself
+    //prefetches run two at a time, and only the most recent few selections wait their turn, older ones being dropped
+    private static final ExecutorService prefetches = new ThreadPoolExecutor(2, 2, 0, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(4), runnable -> {
+                Thread thread = new Thread(runnable, "Prefetch");
+                thread.setDaemon(true);
+                return thread;
+            }, new ThreadPoolExecutor.DiscardOldestPolicy());
 
     public static String get(String uri) throws Exception {
         return get(new URL(uri));
     }
 
+    public static String get(URL url) throws Exception {
+        return get(url, DownloadSession.fromDefaults());
+    }
+
     /**
      * Gets a youtube video at the given url
      *
      * @param url - Youtube url
+     * @param session - Session of the job, for its temp and download locations
      * @return - Title of the video
      * @throws Exception - We really need to generalize these exceptions
      */
-    public static String get(URL url) throws Exception {
-        //initates a VGet object with the temp directory, creating it if necessary
-        File temp = new File(EzHttp.TEMP_LOCATION);
-        temp.mkdir();
-        VGet axetGetter = new VGet(url, temp);
+    public static String get(URL url, DownloadSession session) throws Exception {
+        VideoInfo video = resolve(url, session);
+        try {
+            return get(url, video, session);
+        } catch (HttpStatusException e) {
+            //youtube can take stream urls back early, in which case the video is looked up again, once
+            if (e.getStatus() != 403 && e.getStatus() != 410) {
+                throw e;
+            }
+            System.out.println("Stream urls of " + url + " have expired, extracting again");
+            infos.invalidate(videoId(url), video);
+            return get(url, resolve(url, session), session);
+        }
+    }
+
+    /**
+     * Starts finding the streams of a video in the background, so that a download of it started soon after can begin
+     * downloading right away (see infos)
+     *
+     * @param url - Youtube url
+     */
+    public static void prefetch(URL url) {
+        if (infos.contains(videoId(url))) {
+            return;
+        }
+        prefetches.execute(() -> {
+            if (infos.contains(videoId(url))) {
+                return; //selected more than once while waiting
+            }
+            //vget gets a workspace of its own, the same as it would in a job
+            try (Workspace workspace = Workspace.open(EzHttp.TEMP_LOCATION, url.toString())) {
+                resolve(url, DownloadSession.fromDefaults().withTempLocation(workspace.getPath()));
+            } catch (Exception e) {
+                System.out.println("Could not prefetch " + url + ": " + e.getMessage());
+            }
+        });
+    }
+
+    /**
+     * @return - The video at url, with its streams found but not downloaded, from infos if it's there
+     */
+    private static VideoInfo resolve(URL url, DownloadSession session) throws Exception {
+        return infos.get(videoId(url), () -> {
+            //initates a VGet object with the temp directory, creating it if necessary
+            File temp = new File(session.getTempLocation());
+            temp.mkdirs();
+            VGet axetGetter = new VGet(url, temp);
+            session.getRetryPolicy().run("Extraction of " + url, attempt -> {
+                axetGetter.extract(); //only finds the streams, without downloading them
+                return null;
+            });
+            return axetGetter.getVideo();
+        });
+    }
+
+    /**
+     * Downloads a video whose streams have been found
+     */
+    private static String get(URL url, VideoInfo video, DownloadSession session) throws Exception {
+        List<VideoFileInfo> info = video.getInfo();
+        if (info == null || info.isEmpty() || info.size() > 2 || info.stream().anyMatch(stream -> stream.getSource() == null)) {
+            //vget keeps its progress in the video it downloads, so it gets one of its own rather than the shared one
+            File temp = new File(session.getTempLocation());
+            temp.mkdirs();
+            VGet axetGetter = new VGet(url, temp);
+            session.getRetryPolicy().run("Extraction of " + url, attempt -> {
+                axetGetter.extract();
+                return null;
+            });
+            return download(axetGetter, url, session);
+        }
+
+        if (session.getAudioFormat() != null) {
+            return audio(video, session);
+        }
+
+        //pipe the first stream that ffmpeg can read without seeking, which vget lists video first
+        int piped = -1;
+        List<URL> sources = new ArrayList<>();
+        for (VideoFileInfo stream : info) {
+            if (piped < 0 && Converter.isStreamable(contentType(stream))) {
+                piped = sources.size();
+            }
+            sources.add(stream.getSource());
+        }
+
+        String title = video.getTitle(); //title of video
+        save(sources, piped, title, EzHttp.cleanseName(title) + ".mp4", session);
+        return title;
+    }
+
+    /**
+     * Downloads only the audio of a video, converting it straight to the session's audio format
+     * The video stream is usually by far the bigger of the two, so leaving it out saves most of the download, as well as
+     * the merge. Videos that only come as one stream with both in it still have to be downloaded whole.
+     *
+     * @param video - Video that vget has extracted, but not downloaded
+     * @param session - Session of the job, with an audio format
+     * @return - Title of the video
+     * @throws Exception - If downloading or converting fails
+     */
+    private static String audio(VideoInfo video, DownloadSession session) throws Exception {
+        VideoFileInfo stream = bestAudio(video.getInfo());
+        String title = video.getTitle();
+        String name = EzHttp.cleanseName(title) + "." + session.getAudioFormat();
+        System.out.println("Audio only, from the " + contentType(stream) + " stream");
+        save(Collections.singletonList(stream.getSource()), Converter.isStreamable(contentType(stream)) ? 0 : -1, title, name, session);
+        return title;
+    }
+
+    /**
+     * Downloads the streams of a video and puts them together into one file in the download location
+     * Youtube serves either one stream with both video and audio in it for less secure videos, or seperate video and
+     * audio streams (which vget lists video first). One stream is converted to the format of name, two are merged.
+     *
+     * With a pipelined session, the streams go straight into ffmpeg where they can (see pipe). A piped stream can't be
+     * resumed or retried once ffmpeg has started on it, so if piping fails partway, the streams are downloaded into the
+     * temp directory again, the normal way, which retries and resumes as usual.
+     *
+     * @param sources - Urls of the streams, one or two of them, video first
+     * @param piped - Index in sources of the stream ffmpeg can read from a pipe (see Converter.isStreamable), -1 if none can
+     * @param title - Title of the video, for the names of the temp files
+     * @param name - Name of the output file, whose extension decides the format
+     * @param session - Session of the job
+     * @throws Exception - If downloading or converting fails, or an InterruptedIOException if the job was cancelled
+     */
+    static void save(List<URL> sources, int piped, String title, String name, DownloadSession session) throws Exception {
+        if (session.isPipelined() && piped >= 0) {
+            try {
+                pipe(sources, piped, title, name, session);
+                return;
+            } catch (Exception e) {
+                if (e instanceof InterruptedException || e instanceof InterruptedIOException || Thread.currentThread().isInterrupted()) {
+                    throw e; //cancelled, rather than failed
+                }
+                System.out.println("Piping into ffmpeg failed (" + e + "), downloading to temp files instead");
+            }
+        }
+
+        List<File> files = fetch(sources, title, session);
+        if (files.size() == 1) {
+            new Converter(session.getFfmpeg()).convert(files.get(0).getAbsoluteFile(), session.getDownloadLocation(), name);
+        } else {
+            new Merge(session.getFfmpeg()).merge(files.get(0).getAbsoluteFile(), files.get(1).getAbsoluteFile(),
+                    new File(session.getDownloadLocation()).getAbsolutePath(), name);
+        }
+        for (File file : files) {
+            file.delete();
+        }
+    }
+
+    /**
+     * @param streams - Streams of a video
+     * @return - The audio stream with the most bytes (so the best quality), or failing that the stream with the audio in it
+     */
+    static VideoFileInfo bestAudio(List<VideoFileInfo> streams) {
+        VideoFileInfo best = null;
+        for (VideoFileInfo stream : streams) {
+            String type = contentType(stream);
+            if (type != null && type.toLowerCase().startsWith("audio/")
+                    && (best == null || length(stream) > length(best))) {
+                best = stream;
+            }
+        }
+        if (best != null) {
+            return best;
+        }
+        //vget lists video first, so with two streams the other is the audio, and a single stream has both
+        return streams.get(streams.size() - 1);
+    }
+
+    private static long length(VideoFileInfo stream) {
+        Long length = stream.getLength();
+        return length == null ? -1 : length;
+    }
+
+    /**
+     * Downloads the streams of a video, all at the same time, into the temp directory
+     * Each stream is a download of its own, with its own progress, segments, and retries (see EzHttp.get).
+     *
+     * @param sources - Urls of the streams
+     * @param title - Title of the video, for the names of the files
+     * @param session - Session of the job
+     * @return - The downloaded file of every stream, in the same order
+     * @throws Exception - Whatever the first stream to fail threw, after cancelling the others
+     */
+    private static List<File> fetch(List<URL> sources, String title, DownloadSession session) throws Exception {
+        BatchScheduler scheduler = new BatchScheduler(sources.size(), sources.size());
+        List<CompletableFuture<String>> downloads = new ArrayList<>();
+        for (int i = 0; i < sources.size(); i++) {
+            URL source = sources.get(i);
+            String fileName = streamName(title, i);
+            downloads.add(scheduler.submit(source.getHost(), () -> retained(session,
+                    () -> EzHttp.get(source.toString(), fileName, session.getTempLocation(), session))));
+        }
 
-        axetGetter.download(); //starts the download
-        System.out.println("YT source: " + axetGetter.getVideo().getSource().toString()); //debug print
+        List<File> files = new ArrayList<>();
+        for (CompletableFuture<String> download : downloads) {
+            files.add(new File(await(download, downloads)));
+        }
+        return files;
+    }
+
+    /**
+     * Waits for one of several downloads, cancelling all of them if it fails or the wait is interrupted
+     *
+     * @return - What the download returned
+     * @throws Exception - Whatever the download threw, or an InterruptedIOException
+     */
+    private static <T> T await(CompletableFuture<T> download, List<? extends CompletableFuture<?>> all) throws Exception {
+        try {
+            return download.get();
+        } catch (InterruptedException e) {
+            all.forEach(future -> future.cancel(true));
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while downloading streams");
+        } catch (ExecutionException e) {
+            all.forEach(future -> future.cancel(true));
+            throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+        }
+    }
+
+    /**
+     * Lets vget download the video itself, one stream after another. Only used for videos whose streams EzHttp can't
+     * download directly
+     */
+    private static String download(VGet axetGetter, URL url, DownloadSession session) throws Exception {
+        //vget runs its own copy loops, so its progress is read off the stream infos whenever it reports in
+        Progress progress = new Progress(url.toString(), -1, 0, session.getListener());
+        AtomicLong counted = new AtomicLong();
+        //vget keeps what it already downloaded in axetGetter, so a retry carries on from there
+        session.getRetryPolicy().run("Download of " + url, attempt -> {
+            axetGetter.download(new AtomicBoolean(false), () -> {
+                VideoInfo video = axetGetter.getVideo();
+                if (video == null || video.getInfo() == null) {
+                    return;
+                }
+                long count = 0, total = 0;
+                for (VideoFileInfo stream : video.getInfo()) {
+                    count += stream.getCount();
+                    Long length = stream.getLength();
+                    total = total < 0 || length == null ? -1 : total + length;
+                }
+                progress.setTotal(total);
+                progress.add(count - counted.getAndSet(count));
+            }); //starts the download
+            return null;
+        });
+        progress.finish();
 
         //Determine whether one or two files were downloaded
         List<VideoFileInfo> info = axetGetter.getVideo().getInfo();
         int files = info.size();
 
-        //more debug printouts
-        System.out.println(files);
-        System.out.println(info.get(0).getTarget().getAbsolutePath());
-
         String title = axetGetter.getVideo().getTitle(); //title of video
-
-        /**
-         * By default, vget downloads either one or two files - either a webm with both video and audio in it for less
-         * secure videos, or seperate video and audio streams as an mp4 and webm file respectively.
-         *
-         * The following code block processes these files based on how many were downloaded, and packages them into a
-         * nice single mp4 file in the actual download directory that the user specified.
-         */
-        if (files == 1) {
-            Converter converter = new Converter();
-            converter.convert(info.get(0).getTarget().getAbsoluteFile(), EzHttp.getDownloadLocation(), EzHttp.cleanseName(title) + ".mp4");
+        if (session.getAudioFormat() != null) {
+            //vget can't be told to leave the video out, but the merge at least can be skipped
+            new Converter(session.getFfmpeg()).convert(bestAudio(info).getTarget().getAbsoluteFile(), session.getDownloadLocation(),
+                    EzHttp.cleanseName(title) + "." + session.getAudioFormat());
+        } else if (files == 1) {
+            Converter converter = new Converter(session.getFfmpeg());
+            converter.convert(info.get(0).getTarget().getAbsoluteFile(), session.getDownloadLocation(), EzHttp.cleanseName(title) + ".mp4");
         } else if (files == 2) {
-            Merge merger = new Merge();
+            Merge merger = new Merge(session.getFfmpeg());
             merger.merge(
                     info.get(0).getTarget().getAbsoluteFile(),
                     info.get(1).getTarget().getAbsoluteFile(),
-                    new File(EzHttp.getDownloadLocation()).getAbsolutePath(),
+                    new File(session.getDownloadLocation()).getAbsolutePath(),
                     EzHttp.cleanseName(title) + ".mp4"
             );
         }
 
         return title;
     }
+
+    /**
+     * Downloads the streams of a video straight into ffmpeg, so that converting happens during the download rather than
+     * after it, and the video never takes up space in the temp directory.
+     *
+     * With two streams, only one can go through ffmpeg's stdin, and the other has to be a whole file before ffmpeg can
+     * start. Both are downloaded at the same time: the other one into the temp directory, and the piped one into a spool
+     * file, since ffmpeg isn't reading yet. As soon as the other one is done, the merge starts, reading the piped stream
+     * from the spool file and then following it as the rest of the stream arrives (see follow).
+     *
+     * @param sources - See save
+     * @param piped - See save, must not be -1
+     * @param title - See save
+     * @param name - See save
+     * @param session - Session of the job
+     * @throws Exception - If downloading or converting fails
+     */
+    private static void pipe(List<URL> sources, int piped, String title, String name, DownloadSession session) throws Exception {
+        URL source = sources.get(piped);
+        String pipedName = streamName(title, piped);
+        System.out.println("Piping " + pipedName + " into ffmpeg");
+
+        if (sources.size() == 1) {
+            PipeSource feed = stdin -> EzHttp.stream(source, pipedName, stdin, session);
+            new Converter(session.getFfmpeg()).convert(feed, session.getDownloadLocation(), name);
+            return;
+        }
+
+        int other = piped == 0 ? 1 : 0;
+        URL otherSource = sources.get(other);
+        File spool = new File(session.getTempLocation(), pipedName + ".spool");
+        OutputStream spoolOut = new FileOutputStream(spool);
+        BatchScheduler scheduler = new BatchScheduler(2, 2);
+        CompletableFuture<Long> spooled = scheduler.submit(source.getHost(), () -> retained(session, () -> {
+            try (OutputStream out = spoolOut) {
+                return EzHttp.stream(source, pipedName, out, session);
+            }
+        }));
+        CompletableFuture<String> fetched = scheduler.submit(otherSource.getHost(), () -> retained(session,
+                () -> EzHttp.get(otherSource.toString(), streamName(title, other), session.getTempLocation(), session)));
+        List<CompletableFuture<?>> both = Arrays.asList(spooled, fetched);
+
+        File file = null;
+        try {
+            file = new File(await(fetched, both));
+            new Merge(session.getFfmpeg()).merge(stdin -> follow(spool, spooled, stdin), file,
+                    new File(session.getDownloadLocation()).getAbsolutePath(), name);
+        } finally {
+            spooled.cancel(true);
+            spool.delete();
+            if (file != null) {
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * Runs a download with the workspace of the session held open, since a cancelled download can still be stopping
+     * after the job has given up on it and closed its own hold
+     */
+    private static <T> T retained(DownloadSession session, Callable<T> download) throws Exception {
+        Workspace workspace = Workspace.retain(session.getTempLocation());
+        try {
+            return download.call();
+        } finally {
+            if (workspace != null) {
+                workspace.close();
+            }
+        }
+    }
+
+    /**
+     * @return - Name of the temp file (and the progress) of stream i of a video
+     */
+    private static String streamName(String title, int i) {
+        return EzHttp.cleanseName(title) + "." + (i + 1) + ".stream";
+    }
+
+    /**
+     * Copies a file that is still being written into out, following it until it's done
+     *
+     * @param spool - The file being written
+     * @param writer - What's writing it
+     * @param out - Where to copy it
+     * @throws Exception - Whatever writer failed with, or an IOException if out was closed
+     */
+    private static void follow(File spool, CompletableFuture<?> writer, OutputStream out) throws Exception {
+        byte[] buffer = new byte[BufferPool.DEFAULT_CHUNK_SIZE];
+        try (InputStream in = new FileInputStream(spool)) {
+            while (true) {
+                //checked before reading, so that once it's done, an empty read really means the end
+                boolean done = writer.isDone();
+                int n = in.read(buffer);
+                if (n > 0) {
+                    out.write(buffer, 0, n);
+                } else if (done) {
+                    await(writer, Collections.singletonList(writer)); //throws if the download failed
+                    return;
+                } else {
+                    Thread.sleep(50);
+                }
+            }
+        }
+    }
+
+    /**
+     * @param url - Youtube watch url
+     * @return - Id of the video (the v parameter), or the whole url if it has none
+     */
+    static String videoId(URL url) {
+        String query = url.getQuery();
+        if (query != null) {
+            for (String parameter : query.split("&")) {
+                if (parameter.startsWith("v=")) {
+                    return parameter.substring(2);
+                }
+            }
+        }
+        return url.toString();
+    }
+
+    /**
+     * @return - When the first of the stream urls of a video stops working, from the expire parameter youtube puts in
+     *           them, less some time for the download. Long.MAX_VALUE if they don't say
+     */
+    private static long expires(VideoInfo video) {
+        long expires = Long.MAX_VALUE;
+        if (video == null || video.getInfo() == null) {
+            return expires;
+        }
+        for (VideoFileInfo stream : video.getInfo()) {
+            String query = stream.getSource() == null ? null : stream.getSource().getQuery();
+            if (query == null) {
+                continue;
+            }
+            for (String parameter : query.split("&")) {
+                if (parameter.startsWith("expire=")) {
+                    try {
+                        expires = Math.min(expires, TimeUnit.SECONDS.toMillis(Long.parseLong(parameter.substring(7))) - EXPIRY_MARGIN);
+                    } catch (NumberFormatException e) {
+                        //not a time, so no help
+                    }
+                }
+            }
+        }
+        return expires;
+    }
+
+    /**
+     * @return - Mime type of a stream, from vget if it knows it, or otherwise from the mime parameter youtube puts in
+     *           its stream urls
+     */
+    private static String contentType(VideoFileInfo stream) {
+        if (stream.getContentType() != null) {
+            return stream.getContentType();
+        }
+        String query = stream.getSource() == null ? null : stream.getSource().getQuery();
+        if (query != null) {
+            for (String parameter : query.split("&")) {
+                if (parameter.startsWith("mime=")) {
+                    try {
+                        return URLDecoder.decode(parameter.substring(5), "UTF-8");
+                    } catch (UnsupportedEncodingException e) {
+                        return null;
+                    }
+                }
+            }
+        }
+        return null;
+    }
 }
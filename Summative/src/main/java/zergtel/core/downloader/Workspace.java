@@ -0,0 +1,259 @@
+package zergtel.core.downloader;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * A job's own scratch directory inside the temp location
+ *
+ * Every job used to put its temp files (vget's streams, spool files, ...) straight into EzHttp.TEMP_LOCATION, where two
+ * jobs downloading videos of the same name would overwrite each other, and which Main emptied out entirely on exit.
+ * Now Downloader opens a workspace per job, and the job's session points into it. The workspace is emptied as soon as
+ * the job is done with it, by whichever of its users finishes last (see retain and close), so nothing piles up for exit.
+ *
+ * Workspaces are named after the job's url, so a job that is started again (after a crash, or from the queue) gets
+ * the same directory back and can resume its partial downloads. Each one holds a file lock while open, which tells a
+ * second ZTVDC running at the same time to keep out, and tells sweep which directories a crash left behind.
+ */
+public class Workspace implements AutoCloseable {
+	static final String PREFIX = "job-";
+	private static final String LOCK = ".lock";
+	private static final long KEEP_RESUMABLE = TimeUnit.DAYS.toMillis(7); //partial downloads older than this are given up on
+	//workspaces open in this process by absolute path, and null for those being swept or closed. Guards
+	//every reference count too
+	private static final Map<String, Workspace> open = new HashMap<>();
+
+	private final File dir;
+	private final FileLock lock;
+	private int references = 1;
+
+	private Workspace(File dir, FileLock lock) {
+		this.dir = dir;
+		this.lock = lock;
+	}
+
+	/**
+	 * Opens a workspace for a job, with one reference held by the caller
+	 *
+	 * @param root - Temp location to make the workspace in
+	 * @param key - What the job is working on (its url, usually). The same key gets the same workspace back once it's free
+	 * @return - A workspace no other job is using
+	 * @throws IOException - If the directory or its lock couldn't be made
+	 */
+	public static Workspace open(String root, String key) throws IOException {
+		String name = PREFIX + Integer.toHexString(key.hashCode());
+		synchronized (open) {
+			for (int n = 0; ; n++) {
+				File dir = new File(root, n == 0 ? name : name + "-" + n).getAbsoluteFile();
+				if (open.containsKey(dir.getPath())) {
+					continue;
+				}
+				FileLock lock = lock(dir);
+				if (lock != null) {
+					Workspace workspace = new Workspace(dir, lock);
+					open.put(dir.getPath(), workspace);
+					return workspace;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Adds a reference to the workspace at a temp location, for work that might outlive the job that started it (a
+	 * download that is still stopping after being cancelled, for instance). Each reference has to be closed
+	 *
+	 * @param path - Temp location of a session
+	 * @return - The workspace, or null if path isn't an open workspace (in which case there's nothing to hold on to)
+	 */
+	public static Workspace retain(String path) {
+		synchronized (open) {
+			Workspace workspace = open.get(new File(path).getAbsolutePath());
+			if (workspace != null) {
+				workspace.references++;
+			}
+			return workspace;
+		}
+	}
+
+	/**
+	 * @param file - Any file
+	 * @return - True if file is the lock every workspace holds, rather than something a job put there
+	 */
+	public static boolean isLock(File file) {
+		return file.getName().equals(LOCK);
+	}
+
+	/**
+	 * @return - Directory of the workspace, to use as the temp location of a session
+	 */
+	public String getPath() {
+		return dir.getPath() + File.separator;
+	}
+
+	/**
+	 * Drops a reference, and once the last one is gone, deletes everything in the workspace but partial downloads that
+	 * can still be resumed, and the workspace itself if that leaves it empty
+	 */
+	@Override
+	public void close() {
+		synchronized (open) {
+			if (--references > 0) {
+				return;
+			}
+			open.put(dir.getPath(), null); //kept out of open's reach until its lock is released below
+		}
+		try {
+			clean(dir, Long.MAX_VALUE);
+			unlock(dir, lock);
+		} finally {
+			synchronized (open) {
+				open.remove(dir.getPath());
+			}
+		}
+	}
+
+	/**
+	 * Starts clearing out what crashed or killed jobs left behind in a temp location, in the background, so that a large
+	 * temp directory slows nothing down
+	 *
+	 * @param root - Temp location
+	 * @return - The sweeping thread, already started
+	 */
+	public static Thread sweep(String root) {
+		Thread sweeper = new Thread(() -> {
+			int swept = sweepNow(new File(root), KEEP_RESUMABLE);
+			if (swept > 0) {
+				System.out.println("Swept " + swept + " leftover temp directories");
+			}
+		}, "Workspace sweeper");
+		sweeper.setDaemon(true);
+		sweeper.setPriority(Thread.MIN_PRIORITY);
+		sweeper.start();
+		return sweeper;
+	}
+
+	/**
+	 * Cleans every workspace in root that nobody has open, as well as loose files from before there were workspaces
+	 *
+	 * @param root - Temp location
+	 * @param keepResumable - Milliseconds since they were last written during which partial downloads are kept
+	 * @return - Amount of workspaces cleaned
+	 */
+	static int sweepNow(File root, long keepResumable) {
+		File[] files = root.listFiles();
+		if (files == null) {
+			return 0;
+		}
+		int swept = 0;
+		for (File file : files) {
+			if (!file.isDirectory()) {
+				if (file.lastModified() < System.currentTimeMillis() - keepResumable || !EzHttp.isResumable(file)) {
+					file.delete();
+				}
+				continue;
+			}
+			if (!file.getName().startsWith(PREFIX)) {
+				continue;
+			}
+
+			File dir = file.getAbsoluteFile();
+			FileLock lock;
+			synchronized (open) {
+				if (open.containsKey(dir.getPath())) {
+					continue;
+				}
+				try {
+					lock = lock(dir);
+				} catch (IOException e) {
+					System.out.println("Could not sweep " + dir + ": " + e.getMessage());
+					continue;
+				}
+				if (lock == null) {
+					continue; //another ZTVDC is using it
+				}
+				open.put(dir.getPath(), null);
+			}
+			try {
+				clean(dir, keepResumable);
+				swept++;
+			} finally {
+				unlock(dir, lock);
+				synchronized (open) {
+					open.remove(dir.getPath());
+				}
+			}
+		}
+		return swept;
+	}
+
+	/**
+	 * @return - A lock on dir (making both if need be), or null if another process holds it
+	 */
+	private static FileLock lock(File dir) throws IOException {
+		dir.mkdirs();
+		FileChannel channel = FileChannel.open(new File(dir, LOCK).toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+		FileLock lock = channel.tryLock();
+		if (lock == null) {
+			channel.close();
+		}
+		return lock;
+	}
+
+	/**
+	 * Lets go of dir, deleting its lock and dir itself if nothing else is left in it
+	 */
+	private static void unlock(File dir, FileLock lock) {
+		File lockFile = new File(dir, LOCK);
+		String[] left = dir.list();
+		boolean empty = left != null && left.length == 1;
+		if (empty) {
+			lockFile.delete(); //while still locked, so nobody can take it in between (on windows this waits for below)
+		}
+		try {
+			lock.release();
+			lock.channel().close();
+		} catch (IOException e) {
+			System.out.println("Could not unlock " + dir + ": " + e.getMessage());
+		}
+		if (empty) {
+			lockFile.delete();
+			dir.delete();
+		}
+	}
+
+	/**
+	 * Deletes everything in dir but its lock, and partial downloads written to within the last keepResumable milliseconds
+	 */
+	private static void clean(File dir, long keepResumable) {
+		long oldest = System.currentTimeMillis() - keepResumable;
+		List<Path> paths;
+		try (Stream<Path> walk = Files.walk(dir.toPath())) {
+			paths = walk.sorted(Comparator.reverseOrder()).collect(Collectors.toList());
+		} catch (IOException e) {
+			System.out.println("Could not clean " + dir + ": " + e.getMessage());
+			return;
+		}
+		for (Path path : paths) {
+			File file = path.toFile();
+			if (file.equals(dir) || file.getName().equals(LOCK) && dir.equals(file.getParentFile())) {
+				continue;
+			}
+			//directories only go once they're empty, which the order of the walk takes care of
+			if (file.isDirectory() || !EzHttp.isResumable(file) || file.lastModified() < oldest) {
+				file.delete();
+			}
+		}
+	}
+}
@@ -0,0 +1,45 @@
+package zergtel.core.downloader;
+
+import java.net.URL;
+
+/**
+ * Extractor for youtube videos, see VGetInterface
+ * Short (youtu.be) and embed links are turned into normal watch links first, since those are all vget understands.
+ */
+public class YouTubeExtractor implements Extractor {
+    @Override
+    public String[] hosts() {
+        return new String[] {"youtube.com", "youtu.be"};
+    }
+
+    @Override
+    public String get(URL uri, DownloadSession session) throws Exception {
+        return VGetInterface.get(watchUrl(uri), session);
+    }
+
+    @Override
+    public void prefetch(URL uri) {
+        try {
+            VGetInterface.prefetch(watchUrl(uri));
+        } catch (Exception e) {
+            System.out.println("Could not prefetch " + uri + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * @param uri - Any youtube url
+     * @return - The watch?v= url of the same video, or uri itself if it isn't a short or embed link
+     */
+    static URL watchUrl(URL uri) throws Exception {
+        String path = uri.getPath();
+        if (uri.getHost().toLowerCase().endsWith("youtu.be") && path.length() > 1) {
+            //Only if the youtu.be url is simple! Does not work with feature=youtu.be, etc right now
+            return new URL("https://youtube.com/watch?v=" + path.substring(1));
+        }
+        String[] parts = path.split("/");
+        if (parts.length > 2 && parts[1].equals("embed")) {
+            return new URL("https://youtube.com/watch?v=" + parts[2]);
+        }
+        return uri;
+    }
+}
@@ -0,0 +1,79 @@
+package zergtel.core.queue;
+
+/**
+ * A single download in the JobQueue
+ *
+ * Jobs are only ever changed by their queue, which writes every change to its journal.
+ */
+public class Job {
+	public enum State {
+		QUEUED, RUNNING, DONE, FAILED
+	}
+
+	private final long id;
+	private final String url;
+	private final String downloadLocation;
+	private final long created;
+	private volatile int priority;
+	private volatile State state = State.QUEUED;
+	private volatile String result = ""; //what the download returned once done, or why it failed
+
+	Job(long id, String url, String downloadLocation, int priority, long created) {
+		this.id = id;
+		this.url = url;
+		this.downloadLocation = downloadLocation;
+		this.priority = priority;
+		this.created = created;
+	}
+
+	public long getId() {
+		return id;
+	}
+
+	public String getUrl() {
+		return url;
+	}
+
+	public String getDownloadLocation() {
+		return downloadLocation;
+	}
+
+	/**
+	 * @return - Time the job was first added, in milliseconds since the epoch
+	 */
+	public long getCreated() {
+		return created;
+	}
+
+	/**
+	 * @return - Priority of the job. Higher priorities run first, and jobs of the same priority run in the order added
+	 */
+	public int getPriority() {
+		return priority;
+	}
+
+	public State getState() {
+		return state;
+	}
+
+	/**
+	 * @return - What the download returned if the job is done, the error if it failed, or an empty string otherwise
+	 */
+	public String getResult() {
+		return result;
+	}
+
+	void setPriority(int npriority) {
+		priority = npriority;
+	}
+
+	void setState(State nstate, String nresult) {
+		state = nstate;
+		result = nresult;
+	}
+
+	@Override
+	public String toString() {
+		return "#" + id + " [" + state + ", priority " + priority + "] " + url + (result.isEmpty() ? "" : " - " + result);
+	}
+}
@@ -0,0 +1,417 @@
+package zergtel.core.queue;
+
+import zergtel.core.downloader.DownloadSession;
+import zergtel.core.downloader.Downloader;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.function.Consumer;
+
+/**
+ * A queue of downloads that survives the program closing
+ *
+ * Every change to a job (added, started, finished, failed, reprioritized) is appended as one line to a journal file, so
+ * nothing is ever rewritten in place and a crash can at worst lose the line it was in the middle of writing. Opening
+ * the queue replays the journal in a single pass. Jobs that were running when the program last closed are queued
+ * again - with resuming on in EzHttp, they carry on from the bytes they already had.
+ *
+ * Since the journal only grows, it gets compacted (rewritten with just the latest state of every job) when opening a
+ * queue whose journal has many more lines than jobs. Loading thousands of old jobs is therefore one quick read of a
+ * file of at most about two lines per job.
+ *
+ * Journal lines are tab separated, starting with the kind of record:
+ *   A id priority created url downloadLocation - a job was added
+ *   P id priority - a job's priority changed
+ *   S id state result - a job changed state
+ */
+public class JobQueue {
+	public static final File DEFAULT_JOURNAL = new File(System.getProperty("user.home"), ".ztvdc/queue.journal");
+	private static final int COMPACT_MIN = 1000; //records below which compacting isn't worth it
+
+	private final File journal;
+	private final Runner runner;
+	private final Map<Long, Job> jobs = new LinkedHashMap<>();
+	private final Map<Long, Thread> running = new HashMap<>();
+	private final PriorityBlockingQueue<Job> pending = new PriorityBlockingQueue<>(16,
+			Comparator.comparingInt((Job job) -> -job.getPriority()).thenComparingLong(Job::getId));
+	private final List<Consumer<Job>> listeners = new CopyOnWriteArrayList<>();
+	private final List<Thread> workers = new ArrayList<>();
+	private Writer out;
+	private long nextId = 1;
+	private volatile boolean started;
+
+	/**
+	 * Runs a single job
+	 */
+	interface Runner {
+		/**
+		 * @return - What to record as the result of the job
+		 */
+		String run(Job job) throws Exception;
+	}
+
+	/**
+	 * Opens a queue, loading any jobs in its journal
+	 *
+	 * @param journal - Journal file of the queue, created if it doesn't exist
+	 * @throws IOException - If the journal can't be read or opened for writing
+	 */
+	public JobQueue(File journal) throws IOException {
+		this(journal, job -> Downloader.get(job.getUrl(), new DownloadSession(job.getDownloadLocation())));
+	}
+
+	JobQueue(File journal, Runner runner) throws IOException {
+		this.journal = journal;
+		this.runner = runner;
+		journal.getAbsoluteFile().getParentFile().mkdirs();
+
+		long records = load();
+		dropTornLine();
+		if (records > COMPACT_MIN && records > 2L * jobs.size()) {
+			compact();
+		}
+		out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(journal, true), StandardCharsets.UTF_8));
+
+		//whatever was running when the program closed never finished, so it goes back in the queue
+		for (Job job : jobs.values()) {
+			if (job.getState() == Job.State.RUNNING) {
+				update(job, Job.State.QUEUED, "");
+			}
+			if (job.getState() == Job.State.QUEUED) {
+				pending.add(job);
+			}
+		}
+	}
+
+	/**
+	 * Adds a download to the queue
+	 *
+	 * @param url - Url to download, see Downloader.get
+	 * @param downloadLocation - Directory to download to
+	 * @param priority - See Job.getPriority
+	 * @return - The new job
+	 * @throws IOException - If the job couldn't be written to the journal, in which case it isn't added
+	 */
+	public synchronized Job add(String url, String downloadLocation, int priority) throws IOException {
+		Job job = new Job(nextId++, url, downloadLocation, priority, System.currentTimeMillis());
+		write("A", job.getId(), Integer.toString(priority), Long.toString(job.getCreated()), url, downloadLocation);
+		jobs.put(job.getId(), job);
+		pending.add(job);
+		notify(job);
+		return job;
+	}
+
+	/**
+	 * @return - Every job in the queue, finished or not, in the order they were added
+	 */
+	public synchronized List<Job> jobs() {
+		return new ArrayList<>(jobs.values());
+	}
+
+	public synchronized Job getJob(long id) {
+		return jobs.get(id);
+	}
+
+	/**
+	 * Changes the priority of a job. Only matters for jobs that haven't started yet
+	 */
+	public synchronized void setPriority(long id, int priority) throws IOException {
+		Job job = jobs.get(id);
+		if (job == null) {
+			return;
+		}
+		write("P", id, Integer.toString(priority));
+		boolean waiting = pending.remove(job);
+		job.setPriority(priority);
+		if (waiting) {
+			pending.add(job);
+		}
+		notify(job);
+	}
+
+	/**
+	 * Stops a job, whether it's waiting or already downloading. The job is marked as failed
+	 */
+	public synchronized void cancel(long id) throws IOException {
+		Job job = jobs.get(id);
+		if (job == null || (job.getState() != Job.State.QUEUED && job.getState() != Job.State.RUNNING)) {
+			return;
+		}
+		pending.remove(job);
+		update(job, Job.State.FAILED, "Cancelled");
+		Thread thread = running.get(id);
+		if (thread != null) {
+			thread.interrupt();
+		}
+	}
+
+	/**
+	 * Queues a failed job again
+	 */
+	public synchronized void retry(long id) throws IOException {
+		Job job = jobs.get(id);
+		if (job != null && job.getState() == Job.State.FAILED) {
+			update(job, Job.State.QUEUED, "");
+			pending.add(job);
+		}
+	}
+
+	/**
+	 * @param listener - Called (from whichever thread made the change) every time any job changes
+	 */
+	public void addListener(Consumer<Job> listener) {
+		listeners.add(listener);
+	}
+
+	/**
+	 * Starts running queued jobs in the background
+	 *
+	 * @param threads - Amount of jobs to run at once
+	 */
+	public synchronized void start(int threads) {
+		if (started) {
+			return;
+		}
+		started = true;
+		for (int i = 0; i < threads; i++) {
+			Thread worker = new Thread(this::work, "ZTVDC-queue-" + i);
+			worker.setDaemon(true);
+			workers.add(worker);
+			worker.start();
+		}
+	}
+
+	/**
+	 * Stops running jobs. Jobs that were interrupted stay running in the journal, so they restart the next time the
+	 * queue is opened
+	 */
+	public synchronized void stop() {
+		started = false;
+		for (Thread worker : workers) {
+			worker.interrupt();
+		}
+		workers.clear();
+	}
+
+	/**
+	 * Closes the journal. The queue can't be changed anymore afterwards
+	 */
+	public synchronized void close() throws IOException {
+		stop();
+		out.close();
+	}
+
+	private void work() {
+		while (started) {
+			Job job;
+			try {
+				job = pending.take();
+			} catch (InterruptedException e) {
+				return;
+			}
+
+			try {
+				synchronized (this) {
+					if (job.getState() != Job.State.QUEUED) {
+						continue;
+					}
+					update(job, Job.State.RUNNING, "");
+					running.put(job.getId(), Thread.currentThread());
+				}
+
+				String result;
+				try {
+					result = runner.run(job);
+				} catch (Exception e) {
+					synchronized (this) {
+						running.remove(job.getId());
+						Thread.interrupted();
+						//a cancelled job is already marked, and a job stopped by stop() should stay running so it restarts
+						if (started && job.getState() == Job.State.RUNNING) {
+							update(job, Job.State.FAILED, e.toString());
+						}
+					}
+					continue;
+				}
+
+				synchronized (this) {
+					running.remove(job.getId());
+					Thread.interrupted();
+					if (job.getState() == Job.State.RUNNING) {
+						update(job, Job.State.DONE, result == null ? "" : result);
+					}
+				}
+			} catch (IOException e) {
+				System.err.println("Could not write to queue journal " + journal + ": " + e.getMessage());
+			}
+		}
+	}
+
+	private synchronized void update(Job job, Job.State state, String result) throws IOException {
+		write("S", job.getId(), state.name(), result);
+		job.setState(state, result);
+		notify(job);
+	}
+
+	private void notify(Job job) {
+		for (Consumer<Job> listener : listeners) {
+			try {
+				listener.accept(job);
+			} catch (RuntimeException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Appends one record to the journal
+	 */
+	private void write(String kind, long id, String... fields) throws IOException {
+		out.write(record(kind, id, fields));
+		out.flush();
+	}
+
+	private static String record(String kind, long id, String... fields) {
+		StringBuilder line = new StringBuilder(kind).append('\t').append(id);
+		for (String field : fields) {
+			line.append('\t').append(escape(field));
+		}
+		return line.append('\n').toString();
+	}
+
+	/**
+	 * Replays the journal into jobs
+	 *
+	 * @return - Amount of records read
+	 */
+	private long load() throws IOException {
+		if (!journal.exists()) {
+			return 0;
+		}
+
+		long records = 0;
+		try (BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(journal), StandardCharsets.UTF_8), 1 << 16)) {
+			String line;
+			while ((line = in.readLine()) != null) {
+				records++;
+				String[] fields = line.split("\t", -1);
+				try {
+					long id = Long.parseLong(fields[1]);
+					switch (fields[0]) {
+						case "A":
+							jobs.put(id, new Job(id, unescape(fields[4]), unescape(fields[5]), Integer.parseInt(fields[2]), Long.parseLong(fields[3])));
+							nextId = Math.max(nextId, id + 1);
+							break;
+						case "P":
+							jobs.get(id).setPriority(Integer.parseInt(fields[2]));
+							break;
+						case "S":
+							jobs.get(id).setState(Job.State.valueOf(fields[2]), unescape(fields[3]));
+							break;
+					}
+				} catch (RuntimeException e) {
+					//most likely the last line, cut off by a crash while it was being written
+					System.err.println("Skipping broken queue journal line " + records + ": " + line);
+				}
+			}
+		}
+		return records;
+	}
+
+	/**
+	 * Cuts off a last line that a crash left half written (load has already skipped it), so that the next record
+	 * appended doesn't end up glued onto it and lost along with it
+	 */
+	private void dropTornLine() throws IOException {
+		if (!journal.exists()) {
+			return;
+		}
+		try (RandomAccessFile file = new RandomAccessFile(journal, "rw")) {
+			long end = file.length();
+			while (end > 0) {
+				file.seek(end - 1);
+				if (file.read() == '\n') {
+					break;
+				}
+				end--;
+			}
+			if (end != file.length()) {
+				System.err.println("Dropping " + (file.length() - end) + " bytes of torn queue journal line");
+				file.setLength(end);
+			}
+		}
+	}
+
+	/**
+	 * Rewrites the journal with just the current state of every job
+	 */
+	private void compact() throws IOException {
+		File tmp = new File(journal.getPath() + ".tmp");
+		try (Writer compacted = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), StandardCharsets.UTF_8))) {
+			for (Job job : jobs.values()) {
+				compacted.write(record("A", job.getId(), Integer.toString(job.getPriority()), Long.toString(job.getCreated()),
+						job.getUrl(), job.getDownloadLocation()));
+				if (job.getState() != Job.State.QUEUED) {
+					compacted.write(record("S", job.getId(), job.getState().name(), job.getResult()));
+				}
+			}
+		}
+		Files.move(tmp.toPath(), journal.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Makes a field safe to put in a tab separated line
+	 */
+	static String escape(String field) {
+		if (field == null) {
+			return "";
+		}
+		StringBuilder output = new StringBuilder(field.length());
+		for (char c : field.toCharArray()) {
+			switch (c) {
+				case '\\': output.append("\\\\"); break;
+				case '\t': output.append("\\t"); break;
+				case '\n': output.append("\\n"); break;
+				case '\r': output.append("\\r"); break;
+				default: output.append(c);
+			}
+		}
+		return output.toString();
+	}
+
+	static String unescape(String field) {
+		if (field.indexOf('\\') < 0) {
+			return field;
+		}
+		StringBuilder output = new StringBuilder(field.length());
+		for (int i = 0; i < field.length(); i++) {
+			char c = field.charAt(i);
+			if (c == '\\' && i + 1 < field.length()) {
+				char next = field.charAt(++i);
+				output.append(next == 't' ? '\t' : next == 'n' ? '\n' : next == 'r' ? '\r' : next);
+			} else {
+				output.append(c);
+			}
+		}
+		return output.toString();
+	}
+}
@@ -8,6 +8,7 @@ import com.google.api.services.youtube.model.ResourceId;
 import com.google.api.services.youtube.model.SearchListResponse;
 import com.google.api.services.youtube.model.SearchResult;
 import com.google.api.services.youtube.model.SearchResultSnippet;
+import zergtel.core.downloader.HttpPool;
 
 import java.io.IOException;
 import java.io.InputStream;
@@ -30,7 +31,12 @@ import java.util.Properties;
  */
 public class Searcher {
     private static final String PROPERTIES_FILENAME = "youtube.properties";
-    private static YouTube youtube;
+    //built once and shared, so that every search after the first reuses the same kept alive connection to google
+    private static final YouTube youtube = new YouTube.Builder(
+            new NetHttpTransport.Builder().setConnectionFactory(HttpPool::connect).build(),
+            new JacksonFactory(),
+            request -> {
+            }).setApplicationName("ZTVDC").build();
 
     /**
      * Searches youtube for a given query
@@ -74,9 +80,6 @@ public class Searcher {
      */
     private static ArrayList<Map<String, String>> search(String query, int beginIndex, int endIndex, Properties properties) {
         try {
-            youtube = new YouTube.Builder(new NetHttpTransport(), new JacksonFactory(), request -> {
-            }).setApplicationName("ZTVDC").build();
-
             YouTube.Search.List search = youtube.search().list("id,snippet");
 
             String apiKey = properties.getProperty("youtube.apikey");
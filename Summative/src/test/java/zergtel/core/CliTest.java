@@ -0,0 +1,92 @@
+package zergtel.core;
+
+import com.sun.net.httpserver.HttpServer;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+import zergtel.core.downloader.DownloadCache;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import static org.testng.Assert.*;
+
+/**
+ * Tests running batches from the command line
+ */
+public class CliTest {
+    private HttpServer server;
+    private String base;
+
+    @BeforeClass(groups = {"local"})
+    public void startServer() throws Exception {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", exchange -> {
+            String name = exchange.getRequestURI().getPath().substring(1);
+            byte[] body = name.getBytes(StandardCharsets.UTF_8);
+            if (name.startsWith("missing")) {
+                exchange.sendResponseHeaders(404, -1);
+            } else {
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            }
+            exchange.close();
+        });
+        server.start();
+        base = "http://127.0.0.1:" + server.getAddress().getPort() + "/";
+        DownloadCache.setEnabled(false);
+    }
+
+    @AfterClass(groups = {"local"})
+    public void stopServer() {
+        server.stop(0);
+        DownloadCache.setEnabled(true);
+    }
+
+    @Test(groups = {"local"})
+    public void testBatch() throws Exception {
+        File dir = Files.createTempDirectory("cli").toFile();
+        File list = new File(dir, "urls.txt");
+        Files.write(list.toPath(), Arrays.asList("# comment", base + "a.bin", "", base + "missing.bin"));
+        File out = new File(dir, "out");
+
+        ByteArrayOutputStream results = new ByteArrayOutputStream();
+        int exit = Cli.run(new String[]{"-j", "2", "-o", out.getPath(), list.getPath(), base + "b.bin"},
+                new PrintStream(results, true, "UTF-8"));
+
+        String[] lines = new String(results.toByteArray(), StandardCharsets.UTF_8).trim().split("\\R");
+        assertEquals(exit, 1);
+        assertEquals(lines.length, 3);
+        int done = 0;
+        for (String line : lines) {
+            if (line.contains("\"status\":\"done\"")) {
+                done++;
+            } else {
+                assertTrue(line.contains("missing.bin") && line.contains("\"error\""), line);
+            }
+        }
+        assertEquals(done, 2);
+        assertEquals(new String(Files.readAllBytes(new File(out, "a.bin").toPath()), StandardCharsets.UTF_8), "a.bin");
+        assertEquals(new String(Files.readAllBytes(new File(out, "b.bin").toPath()), StandardCharsets.UTF_8), "b.bin");
+        assertEquals(Files.readAllLines(new File(out, "ztvdc.manifest").toPath()).size(), 2);
+        assertEquals(out.list().length, 3, "Staging directories were left behind: " + Arrays.toString(out.list()));
+    }
+
+    @Test(groups = {"local"})
+    public void testBadArguments() throws Exception {
+        PrintStream results = new PrintStream(new ByteArrayOutputStream());
+        assertEquals(Cli.run(new String[0], results), 2);
+        assertEquals(Cli.run(new String[]{"-x", base + "a.bin"}, results), 2);
+        assertEquals(Cli.run(new String[]{"-j"}, results), 2);
+        //a directory is converted, which needs a format
+        assertEquals(Cli.run(new String[]{Files.createTempDirectory("cli").toString()}, results), 2);
+    }
+}
@@ -1,7 +1,17 @@
 package zergtel.core.converter;
 
+import org.testng.SkipException;
 import org.testng.annotations.Test;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
 import static org.testng.Assert.*;
 
 /**
@@ -9,10 +19,180 @@ import static org.testng.Assert.*;
  */
 public class ConverterTest {
 
-    @Test
+    @Test(groups = {"local"})
     public void testConvert() throws Exception {
+        //failures come back to the caller rather than as a dialog, so this has to work without a screen
+        File dir = Files.createTempDirectory("convert").toFile();
+        try {
+            new Converter(new File(dir, "no-ffmpeg")).convert(new File(dir, "in.webm"), dir.getPath(), "out.mp3");
+            fail("Converting without ffmpeg should have failed");
+        } catch (IOException e) {
+            assertFalse(new File(dir, "out.mp3").exists());
+        }
+    }
+
+    @Test(groups = {"local"})
+    public void testPipedSourceFails() throws Exception {
+        File dir = Files.createTempDirectory("cutshort").toFile();
+        File ffmpeg = FakeFfmpeg.create(dir, null, false);
+        try {
+            new Converter(ffmpeg).convert(stdin -> {
+                stdin.write(new byte[1024]);
+                stdin.close();
+                Thread.sleep(200); //ffmpeg has finished with what it was given by now
+                throw new IOException("Cut short");
+            }, dir.getPath(), "out.mp3");
+            fail("A source that fails should fail the conversion, however much of it ffmpeg got");
+        } catch (IOException e) {
+            assertEquals(e.getMessage(), "Cut short");
+        }
+    }
+
+    @Test(groups = {"local"})
+    public void testIsStreamable() throws Exception {
+        assertTrue(Converter.isStreamable("video/webm"));
+        assertTrue(Converter.isStreamable("audio/webm; codecs=\"opus\""));
+        assertTrue(Converter.isStreamable("audio/mpeg"));
+        assertFalse(Converter.isStreamable("video/mp4"), "mp4 can keep its index at the end, where a pipe can't reach");
+        assertFalse(Converter.isStreamable(null));
+    }
+
+    @Test(groups = {"local"})
+    public void testCanCopy() throws Exception {
+        assertTrue(Converter.canCopy(Arrays.asList("h264", "aac"), "video.mp4"));
+        assertTrue(Converter.canCopy(Arrays.asList("vp9", "opus"), "video.MKV"), "Matroska takes any codec");
+        assertFalse(Converter.canCopy(Arrays.asList("vp9", "opus"), "video.mp4"), "webm codecs have to be converted for mp4");
+        assertFalse(Converter.canCopy(Arrays.asList("h264", "aac"), "audio.mp3"));
+        assertFalse(Converter.canCopy(Collections.emptyList(), "video.mp4"));
+        assertFalse(Converter.canCopy(null, "video.mp4"), "Without ffprobe, everything is converted");
+    }
+
+    @Test(groups = {"local"})
+    public void testIsAudioFormat() throws Exception {
+        assertTrue(Converter.isAudioFormat("mp3"));
+        assertTrue(Converter.isAudioFormat("M4A"));
+        assertFalse(Converter.isAudioFormat("mp4"), "Videos converted to mp4 still need their video");
+    }
+
+    @Test(groups = {"local"})
+    public void testProbeWithoutFfprobe() throws Exception {
+        File dir = Files.createTempDirectory("probe").toFile();
+        assertNull(new Converter(new File(dir, "ffmpeg")).probe(new File(dir, "in.mp4")));
+    }
+
+    @Test(groups = {"local"})
+    public void testCopiesCompatibleStreams() throws Exception {
+        File dir = Files.createTempDirectory("copy").toFile();
+        File ffmpeg = FakeFfmpeg.create(dir, Arrays.asList("h264,video", "aac,audio"), false);
+        File input = sample(dir, "in.mp4");
+
+        Converter converter = new Converter(ffmpeg);
+        converter.convert(input, dir.getPath(), "out.mkv");
+
+        List<String> calls = FakeFfmpeg.calls(ffmpeg);
+        assertEquals(calls.size(), 1);
+        assertTrue(calls.get(0).contains(" -c copy "), "h264 and aac go into mkv as they are");
+        File output = new File(dir, "out.mkv");
+        assertEquals(Files.readAllBytes(output.toPath()), Files.readAllBytes(input.toPath()));
+        assertEquals(converter.probe(output), converter.probe(input));
+    }
+
+    @Test(groups = {"local"})
+    public void testConvertsWhenCopyFails() throws Exception {
+        File dir = Files.createTempDirectory("copyfails").toFile();
+        File ffmpeg = FakeFfmpeg.create(dir, Arrays.asList("h264,video", "aac,audio"), true);
+        File input = sample(dir, "in.mp4");
+
+        new Converter(ffmpeg).convert(input, dir.getPath(), "out.mkv");
 
+        List<String> calls = FakeFfmpeg.calls(ffmpeg);
+        assertEquals(calls.size(), 2, "A failed copy should be followed by a full conversion");
+        assertTrue(calls.get(0).contains(" -c copy "));
+        assertFalse(calls.get(1).contains("-c copy"));
+        assertEquals(Files.readAllBytes(new File(dir, "out.mkv").toPath()), Files.readAllBytes(input.toPath()));
     }
 
+    @Test(groups = {"local"})
+    public void testConvertsIncompatibleStreams() throws Exception {
+        File dir = Files.createTempDirectory("reencode").toFile();
+        File ffmpeg = FakeFfmpeg.create(dir, Arrays.asList("vp9,video", "opus,audio"), false);
 
+        new Converter(ffmpeg).convert(sample(dir, "in.webm"), dir.getPath(), "out.mp4");
+
+        List<String> calls = FakeFfmpeg.calls(ffmpeg);
+        assertEquals(calls.size(), 1);
+        assertFalse(calls.get(0).contains("-c copy"), "webm codecs have to be converted for mp4");
+    }
+
+    @Test(groups = {"local"})
+    public void testConvertsWithoutFfprobe() throws Exception {
+        File dir = Files.createTempDirectory("noprobe").toFile();
+        File ffmpeg = FakeFfmpeg.create(dir, null, false);
+
+        new Converter(ffmpeg).convert(sample(dir, "in.mp4"), dir.getPath(), "out.mkv");
+
+        List<String> calls = FakeFfmpeg.calls(ffmpeg);
+        assertEquals(calls.size(), 1);
+        assertFalse(calls.get(0).contains("-c copy"), "Without ffprobe, everything is converted");
+    }
+
+    @Test(groups = {"benchmark"})
+    public void testCopyFasterThanConvert() throws Exception {
+        File ffmpeg = findFfmpeg();
+        if (ffmpeg == null) {
+            throw new SkipException("Needs ffmpeg and ffprobe, either next to each other on the PATH or given by -Dffmpeg");
+        }
+
+        //mpeg4 rather than h264, since not every ffmpeg is built with x264
+        File dir = Files.createTempDirectory("remux").toFile();
+        File sample = new File(dir, "sample.mp4");
+        Converter.await(Converter.start(ffmpeg.getAbsolutePath(), "-loglevel", "fatal", "-f", "lavfi", "-i",
+                "testsrc=duration=10:size=640x360:rate=30", "-f", "lavfi", "-i", "sine=duration=10", "-c:v", "mpeg4",
+                "-c:a", "aac", sample.getAbsolutePath()), "Making the sample");
+
+        Converter converter = new Converter(ffmpeg);
+        assertEquals(converter.probe(sample), Arrays.asList("mpeg4", "aac"));
+
+        long start = System.nanoTime();
+        converter.convert(sample, dir.getPath(), "copied.mkv");
+        long copied = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        converter.convert(sample, dir.getPath(), "converted.avi");
+        long converted = System.nanoTime() - start;
+
+        assertEquals(converter.probe(new File(dir, "copied.mkv")), Arrays.asList("mpeg4", "aac"));
+        assertTrue(new File(dir, "converted.avi").length() > 0);
+        assertTrue(copied < converted, "Copying the streams should beat encoding them again");
+    }
+
+    /**
+     * @return - A made up input file, whose contents the fake ffmpeg copies into its output
+     */
+    private static File sample(File dir, String name) throws IOException {
+        File sample = new File(dir, name);
+        Files.write(sample.toPath(), ("not really " + name).getBytes(StandardCharsets.UTF_8));
+        return sample;
+    }
+
+    /**
+     * @return - The ffmpeg given by -Dffmpeg, or the first one on the PATH with an ffprobe next to it, or null if there's none
+     */
+    private static File findFfmpeg() {
+        List<File> candidates = new ArrayList<>();
+        if (System.getProperty("ffmpeg") != null) {
+            candidates.add(new File(System.getProperty("ffmpeg")));
+        }
+        for (String path : System.getenv().getOrDefault("PATH", "").split(File.pathSeparator)) {
+            candidates.add(new File(path, "ffmpeg"));
+            candidates.add(new File(path, "ffmpeg.exe"));
+        }
+        for (File candidate : candidates) {
+            File ffprobe = new File(candidate.getAbsoluteFile().getParentFile(), candidate.getName().replace("ffmpeg", "ffprobe"));
+            if (candidate.isFile() && ffprobe.isFile()) {
+                return candidate;
+            }
+        }
+        return null;
+    }
 }
\ No newline at end of file
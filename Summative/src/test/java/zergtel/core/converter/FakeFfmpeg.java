@@ -0,0 +1,76 @@
+package zergtel.core.converter;
+
+import org.testng.SkipException;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A stand in for ffmpeg (and ffprobe) for tests, so that what runs ffmpeg can be tested on machines without it
+ *
+ * The fake writes every input it's given (stdin for pipe:0), one after another, into its output file - so a "merge"
+ * comes out as the bytes of the first input followed by the bytes of the second. Every run is logged with its arguments
+ * (see calls). The output is put together under a name of its own and only moved into place at the end, so that a run
+ * that was stopped (whose cat can outlive it) can't write into the output of the next. It's a shell script, so tests
+ * using it are skipped on windows.
+ */
+public class FakeFfmpeg {
+    private static final String SCRIPT = String.join("\n",
+            "#!/bin/sh",
+            "dir=$(dirname \"$0\")",
+            "echo \"$*\" >> \"$dir/calls\"",
+            "for a; do out=\"$a\"; done",
+            "%s",
+            "part=\"$out.$$\"",
+            ": > \"$part\"",
+            "prev=",
+            "for a; do",
+            "  if [ \"$prev\" = \"-i\" ]; then",
+            "    if [ \"$a\" = \"pipe:0\" ]; then cat >> \"$part\"; else cat \"$a\" >> \"$part\"; fi",
+            "  fi",
+            "  prev=$a",
+            "done",
+            "mv \"$part\" \"$out\"",
+            "");
+
+    /**
+     * Makes a fake ffmpeg
+     *
+     * @param dir - Directory to put it in, which should be empty
+     * @param codecs - What ffprobe should say every input holds, as ffprobe's csv lines (e.g. "h264,video"), or null
+     *                 for no ffprobe at all
+     * @param failCopy - Whether the fake should fail when told to copy streams (-c copy) rather than convert them
+     * @return - The fake ffmpeg
+     */
+    public static File create(File dir, List<String> codecs, boolean failCopy) throws IOException {
+        if (File.separatorChar != '/' || !new File("/bin/sh").exists()) {
+            throw new SkipException("The fake ffmpeg is a shell script");
+        }
+        File ffmpeg = new File(dir, "ffmpeg");
+        write(ffmpeg, String.format(SCRIPT, failCopy ? "case \" $* \" in *\" -c copy \"*) exit 1;; esac" : ""));
+        if (codecs != null) {
+            write(new File(dir, "ffprobe"), "#!/bin/sh\nprintf '" + String.join("\\n", codecs) + "\\n'\n");
+        }
+        return ffmpeg;
+    }
+
+    /**
+     * @param ffmpeg - A fake ffmpeg
+     * @return - The arguments of every run of it so far, in order
+     */
+    public static List<String> calls(File ffmpeg) throws IOException {
+        File calls = new File(ffmpeg.getParentFile(), "calls");
+        return calls.exists() ? Files.readAllLines(calls.toPath(), StandardCharsets.UTF_8) : Collections.emptyList();
+    }
+
+    private static void write(File file, String script) throws IOException {
+        Files.write(file.toPath(), script.getBytes(StandardCharsets.UTF_8));
+        if (!file.setExecutable(true)) {
+            throw new IOException("Could not make " + file + " executable");
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package zergtel.core.downloader;
+
+import org.testng.annotations.Test;
+
+import java.io.FilterReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+
+import static org.testng.Assert.*;
+
+/**
+ * Tests reading the title and tracks out of bandcamp pages, and that reading stops once the tracks are found
+ */
+public class BandcampPageTest {
+    private static final String HEAD = "<!DOCTYPE html>\n<html>\n<head>\n<meta name=\"description\" content=\"trackinfo-free text\">\n"
+            + "<title>Some Album | AC/DC Tribute</title>\n</head>\n<body>\n<script type=\"text/javascript\">\n";
+
+    @Test(groups = {"local"})
+    public void testScriptPage() throws Exception {
+        String page = HEAD
+                + "var TralbumData = {\n"
+                + "    // some comment about the data\n"
+                + "    current: {\"title\": \"Some Album\", \"artist\": null},\n"
+                + "    trackinfo: [{\"title\":\"One\",\"track_num\":1,\"file\":{\"mp3-128\":\"//popplers5.bandcamp.com/download/track?id=1\"},\"duration\":201.5},"
+                + "{\"title\":\"Two\",\"file\":null},"
+                + "{\"file\":{\"mp3-v0\":\"//x\",\"mp3-128\":\"https://t4.bcbits.com/stream/3\"},\"title\":\"Three \\\"live\\\"\"}],\n"
+                + "    playing_from: \"album page\",\n"
+                + "};\n</script></body></html>";
+
+        BandcampPage parsed = BandcampPage.parse(new StringReader(page));
+        assertEquals(parsed.getTitle(), "Some Album | ACDC Tribute");
+        assertEquals(parsed.getTracks().size(), 2, "The track without a file should be skipped");
+        assertEquals(parsed.getTracks().get(0).getTitle(), "One");
+        assertEquals(parsed.getTracks().get(0).getLink(), "http://popplers5.bandcamp.com/download/track?id=1");
+        assertEquals(parsed.getTracks().get(1).getTitle(), "Three \"live\"");
+        assertEquals(parsed.getTracks().get(1).getLink(), "https://t4.bcbits.com/stream/3");
+    }
+
+    @Test(groups = {"local"})
+    public void testQuotedName() throws Exception {
+        String page = "<html><head></head><body><script>var data = {\"trackinfo\" : [ {\"title\":\"Only\",\"file\":{\"mp3-128\":\"//a/b\"}} ]};</script>";
+        BandcampPage parsed = BandcampPage.parse(new StringReader(page));
+        assertNull(parsed.getTitle());
+        assertEquals(parsed.getTracks().size(), 1);
+        assertEquals(parsed.getTracks().get(0).getLink(), "http://a/b");
+    }
+
+    @Test(groups = {"local"})
+    public void testNoTracks() throws Exception {
+        try {
+            BandcampPage.parse(new StringReader(HEAD + "</script></body></html>"));
+            fail("A page without a track list should fail");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("No track list"));
+        }
+    }
+
+    @Test(groups = {"local"})
+    public void testStopsAfterTracks() throws Exception {
+        StringBuilder page = new StringBuilder(HEAD).append("var TralbumData = {\n    trackinfo: [");
+        int count = 1000;
+        for (int i = 0; i < count; i++) {
+            page.append(i == 0 ? "" : ",").append("{\"title\":\"Track ").append(i)
+                    .append("\",\"lyrics\":\"la la la la la la la la la la\",\"file\":{\"mp3-128\":\"//popplers5.bandcamp.com/")
+                    .append(i).append("\"}}");
+        }
+        page.append("],\n};\n");
+        int tracksEnd = page.length();
+        for (int i = 0; i < 100000; i++) {
+            page.append("<div class=\"filler\">the rest of the page, which is never needed</div>\n");
+        }
+
+        CountingReader in = new CountingReader(new StringReader(page.toString()));
+        BandcampPage parsed = BandcampPage.parse(in);
+
+        assertEquals(parsed.getTracks().size(), count);
+        assertEquals(parsed.getTracks().get(count - 1).getLink(), "http://popplers5.bandcamp.com/" + (count - 1));
+        assertTrue(in.count < tracksEnd + 64 * 1024, "Read " + in.count + " characters, the tracks end at " + tracksEnd);
+    }
+
+    private static class CountingReader extends FilterReader {
+        private long count;
+
+        private CountingReader(Reader in) {
+            super(in);
+        }
+
+        @Override
+        public int read(char[] buffer, int offset, int length) throws IOException {
+            int n = super.read(buffer, offset, length);
+            count += Math.max(0, n);
+            return n;
+        }
+    }
+}
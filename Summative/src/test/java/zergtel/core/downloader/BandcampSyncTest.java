@@ -0,0 +1,111 @@
+package zergtel.core.downloader;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.testng.Assert.*;
+
+/**
+ * Tests that syncing an artist twice only downloads what changed in between
+ */
+public class BandcampSyncTest {
+    private HttpServer server;
+    private String base;
+    private final Map<String, String> albums = new ConcurrentHashMap<>(); //album path -> its trackinfo
+    private final AtomicInteger trackRequests = new AtomicInteger();
+
+    @BeforeClass(groups = {"local"})
+    public void startServer() throws Exception {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.setExecutor(Executors.newCachedThreadPool());
+        base = "http://127.0.0.1:" + server.getAddress().getPort();
+        server.createContext("/music", exchange -> respond(exchange,
+                "<ol id=\"music-grid\"><li><a href=\"/album/first\">First</a></li></ol>"
+                        + "<ol data-client-items=\"[{&quot;page_url&quot;:&quot;/album/second&quot;}]\"></ol>"));
+        server.createContext("/album", exchange -> {
+            String path = exchange.getRequestURI().getPath();
+            respond(exchange, "<html><head><title>" + path.substring(7) + "</title></head><script>var TralbumData = {\n"
+                    + "    trackinfo: [" + albums.get(path) + "],\n};</script>");
+        });
+        server.createContext("/track", exchange -> {
+            trackRequests.incrementAndGet();
+            respond(exchange, exchange.getRequestURI().getPath());
+        });
+        server.start();
+        DownloadCache.setEnabled(false);
+
+        albums.put("/album/first", track(1, "One") + "," + track(2, "Two"));
+        albums.put("/album/second", track(3, "Three"));
+    }
+
+    @AfterClass(groups = {"local"})
+    public void stopServer() {
+        server.stop(0);
+        DownloadCache.setEnabled(true);
+    }
+
+    private String track(int id, String title) {
+        return "{\"id\":" + id + ",\"title\":\"" + title + "\",\"file\":{\"mp3-128\":\"" + base + "/track/" + id + "\"}}";
+    }
+
+    private static void respond(HttpExchange exchange, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders(200, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    @Test(groups = {"local"})
+    public void testAlbumLinks() throws Exception {
+        URL music = new URL("https://artist.bandcamp.com/music");
+        List<URL> links = BandcampSync.albumLinks(music, new StringReader(
+                "<a href=\"/album/a\"><a href=\"/album/a\"></a><a href=\"https://artist.bandcamp.com/track/b?from=x\">"
+                        + "<a href=\"/merch\">\n{\"page_url\": \"\\/album\\/c\"}"));
+        assertEquals(links.toString(), "[https://artist.bandcamp.com/album/a, https://artist.bandcamp.com/track/b, "
+                + "https://artist.bandcamp.com/album/c]");
+    }
+
+    @Test(groups = {"local"})
+    public void testIncrementalSync() throws Exception {
+        File dir = Files.createTempDirectory("sync").toFile();
+        DownloadSession session = new DownloadSession(dir.getPath() + File.separator);
+        URL artist = new URL(base + "/");
+
+        BandcampSync.sync(artist, session);
+        assertEquals(trackRequests.getAndSet(0), 3);
+        assertTrue(new File(dir, "first/One.mp3").exists());
+        assertTrue(new File(dir, "second/Three.mp3").exists());
+
+        //nothing changed, so nothing is downloaded
+        String summary = BandcampSync.sync(artist, session);
+        assertEquals(trackRequests.getAndSet(0), 0);
+        assertTrue(summary.contains("0 tracks downloaded, 3 already up to date"), summary);
+
+        //a new track, a renamed one, and one whose file was deleted
+        albums.put("/album/first", track(1, "One") + "," + track(2, "Two (Remastered)") + "," + track(4, "Four"));
+        assertTrue(new File(dir, "second/Three.mp3").delete());
+        BandcampSync.sync(artist, session);
+        assertEquals(trackRequests.getAndSet(0), 3);
+        assertTrue(new File(dir, "first/Four.mp3").exists());
+        assertTrue(new File(dir, "first/Two (Remastered).mp3").exists());
+        assertTrue(new File(dir, "second/Three.mp3").exists());
+    }
+}
@@ -0,0 +1,104 @@
+package zergtel.core.downloader;
+
+import com.sun.net.httpserver.HttpServer;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.testng.Assert.*;
+
+/**
+ * Tests downloading an album from a local stand-in for bandcamp, whose tracks each take a while to arrive
+ */
+public class BandcampTest {
+    private static final int TRACKS = 8;
+
+    private HttpServer server;
+    private String base;
+    private final AtomicInteger active = new AtomicInteger();
+    private final AtomicInteger peak = new AtomicInteger();
+
+    @BeforeClass(groups = {"local"})
+    public void startServer() throws Exception {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.setExecutor(Executors.newCachedThreadPool());
+        base = "http://127.0.0.1:" + server.getAddress().getPort();
+        server.createContext("/album", exchange -> {
+            StringBuilder tracks = new StringBuilder();
+            for (int i = 0; i < TRACKS; i++) {
+                tracks.append(i == 0 ? "" : ",").append("{\"title\":\"Track ").append(i).append("\",\"file\":{\"mp3-128\":\"")
+                        .append(base).append(i == 3 ? "/track/missing" : "/track/" + i).append("\"}}");
+            }
+            byte[] page = ("<html><head><title>Test Album</title></head><body><script>var TralbumData = {\n    trackinfo: [" + tracks
+                    + "],\n};</script></body></html>").getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(200, page.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(page);
+            }
+        });
+        server.createContext("/track", exchange -> {
+            int now = active.incrementAndGet();
+            peak.accumulateAndGet(now, Math::max);
+            try {
+                Thread.sleep(300);
+            } catch (InterruptedException ignored) {
+            }
+            active.decrementAndGet();
+            String name = exchange.getRequestURI().getPath();
+            if (name.endsWith("missing")) {
+                exchange.sendResponseHeaders(404, -1);
+            } else {
+                byte[] body = name.getBytes(StandardCharsets.UTF_8);
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            }
+            exchange.close();
+        });
+        server.start();
+        DownloadCache.setEnabled(false);
+    }
+
+    @AfterClass(groups = {"local"})
+    public void stopServer() {
+        server.stop(0);
+        DownloadCache.setEnabled(true);
+        Bandcamp.setTrackConcurrency(4);
+    }
+
+    @Test(groups = {"local"})
+    public void testParallelTracks() throws Exception {
+        File dir = Files.createTempDirectory("bandcamp").toFile();
+        Bandcamp.setTrackConcurrency(3);
+        peak.set(0);
+
+        long start = System.currentTimeMillis();
+        try {
+            Bandcamp.get(new URL(base + "/album"), new DownloadSession(dir.getPath() + File.separator));
+            fail("The missing track should have failed the album");
+        } catch (IOException e) {
+            assertEquals(e.getSuppressed().length, 1);
+            assertTrue(e.getSuppressed()[0] instanceof HttpStatusException);
+        }
+        long elapsed = System.currentTimeMillis() - start;
+
+        assertEquals(peak.get(), 3, "Tracks should download exactly as many at once as the limit allows");
+        assertTrue(elapsed < TRACKS * 300, "Took " + elapsed + "ms, as long as one track at a time");
+        File album = new File(dir, "Test Album");
+        for (int i = 0; i < TRACKS; i++) {
+            File track = new File(album, "Track " + i + ".mp3");
+            assertEquals(track.exists(), i != 3, track.getName());
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package zergtel.core.downloader;
+
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+
+import static org.testng.Assert.*;
+
+/**
+ * Tests how Bandwidth shares its limits out. Whether the limits actually hold, and can be changed mid download, is timed
+ * in the benchmark group
+ */
+public class BandwidthTest {
+    private static final int SIZE = 1024 * 1024;
+
+    private RangeServer server;
+    private File dir;
+
+    @BeforeClass(groups = {"local", "benchmark"})
+    public void startServer() throws Exception {
+        server = new RangeServer(SIZE, 0);
+        DownloadCache.setEnabled(false);
+        dir = Files.createTempDirectory("bandwidth").toFile();
+    }
+
+    @AfterClass(groups = {"local", "benchmark"})
+    public void stopServer() {
+        server.stop();
+        DownloadCache.setEnabled(true);
+        Bandwidth.setGlobalLimit(0);
+    }
+
+    @Test(groups = {"benchmark"})
+    public void testGlobalLimit() throws Exception {
+        Bandwidth.setGlobalLimit(SIZE / 2);
+        long start = System.nanoTime();
+        String output = EzHttp.get(server.url(), "limited.bin", dir.getAbsolutePath());
+        long time = (System.nanoTime() - start) / 1000000;
+        Bandwidth.setGlobalLimit(0);
+
+        assertTrue(time > 1500, "1MB at 512KB/s should take about 2 seconds");
+        assertEquals(Files.readAllBytes(Paths.get(output)), server.content());
+    }
+
+    @Test(groups = {"benchmark"})
+    public void testLiveAdjustment() throws Exception {
+        Bandwidth.setGlobalLimit(SIZE / 16);
+        Thread lift = new Thread(() -> {
+            try {
+                Thread.sleep(500);
+            } catch (InterruptedException e) {
+                return;
+            }
+            Bandwidth.setGlobalLimit(0);
+        });
+        lift.start();
+
+        long start = System.nanoTime();
+        EzHttp.get(server.url(), "adjusted.bin", dir.getAbsolutePath());
+        long time = (System.nanoTime() - start) / 1000000;
+        lift.join();
+
+        assertTrue(time < 8000, "Lifting the limit should speed up a running download");
+    }
+
+    @Test(groups = {"local"})
+    public void testLeftoverShared() throws Exception {
+        Bandwidth.setGlobalLimit(900);
+        Bandwidth.Job slow = Bandwidth.start("slow.example.com", 1, 100);
+        Bandwidth.Job heavy = Bandwidth.start("example.com", 2, -1);
+        Bandwidth.Job light = Bandwidth.start("example.com", 1, -1);
+        try {
+            assertEquals(slow.getRate(), 100);
+            assertEquals(heavy.getRate(), 533, "What a capped job can't use should go to the others, by weight");
+            assertEquals(light.getRate(), 266);
+
+            light.setLimit(600);
+            assertEquals(light.getRate(), 266, "A cap above the share shouldn't change it");
+            slow.setLimit(0);
+            assertEquals(slow.getRate(), 225);
+            assertEquals(heavy.getRate(), 450);
+            assertEquals(light.getRate(), 225);
+        } finally {
+            slow.finish();
+            heavy.finish();
+            light.finish();
+            Bandwidth.setGlobalLimit(0);
+        }
+    }
+
+    @Test(groups = {"local"})
+    public void testIdleShareGoesToActive() throws Exception {
+        Bandwidth.setGlobalLimit(1000);
+        Bandwidth.Job busy = Bandwidth.start("busy.example.com", 1, -1);
+        Bandwidth.Job stalled = Bandwidth.start("stalled.example.com", 1, -1);
+        try {
+            assertEquals(busy.getRate(), 500);
+            assertEquals(stalled.getRate(), 500);
+
+            Thread.sleep(TimeUnit.NANOSECONDS.toMillis(Bandwidth.IDLE_AFTER) + 100);
+            busy.acquire(1);
+            assertEquals(busy.getRate(), 1000, "A job that stopped drawing shouldn't keep its share");
+
+            stalled.acquire(1);
+            assertEquals(busy.getRate(), 500, "A job that draws again should get its share back");
+            assertEquals(stalled.getRate(), 500);
+        } finally {
+            busy.finish();
+            stalled.finish();
+            Bandwidth.setGlobalLimit(0);
+        }
+    }
+
+    @Test(groups = {"local"})
+    public void testHostDroppedWithLastJob() {
+        Bandwidth.Job first = Bandwidth.start("pruned.example.com", 1, -1);
+        Bandwidth.Job second = Bandwidth.start("pruned.example.com", 1, -1);
+        first.finish();
+        assertTrue(Bandwidth.hasHost("pruned.example.com"), "The host still has a download running");
+        second.finish();
+        assertFalse(Bandwidth.hasHost("pruned.example.com"), "The host's bucket should go with its last download");
+    }
+}
@@ -0,0 +1,107 @@
+package zergtel.core.downloader;
+
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.testng.Assert.*;
+
+/**
+ * Tests Downloader.getAll against a fake extractor, which takes a while per url and keeps track of how many run at once
+ */
+public class BatchTest {
+    private final AtomicInteger running = new AtomicInteger();
+    private final AtomicInteger maxRunning = new AtomicInteger();
+    private final Map<String, AtomicInteger> hostRunning = new ConcurrentHashMap<>();
+    private final Map<String, Integer> maxHostRunning = new ConcurrentHashMap<>();
+
+    @BeforeClass(groups = {"local"})
+    public void register() {
+        ExtractorRegistry.register(new Extractor() {
+            @Override
+            public String[] hosts() {
+                return new String[] {"batch.test"};
+            }
+
+            @Override
+            public String get(URL uri, DownloadSession session) throws Exception {
+                AtomicInteger host = hostRunning.computeIfAbsent(uri.getHost(), h -> new AtomicInteger());
+                int now = host.incrementAndGet();
+                maxHostRunning.merge(uri.getHost(), now, Math::max);
+                maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                try {
+                    Thread.sleep(100);
+                    if (uri.getPath().startsWith("/fail")) {
+                        throw new IOException("Failed on purpose");
+                    }
+                    return uri.getPath();
+                } finally {
+                    running.decrementAndGet();
+                    host.decrementAndGet();
+                }
+            }
+        });
+    }
+
+    @AfterClass(groups = {"local"})
+    public void resetLimits() {
+        Downloader.setLimits(8, 2);
+    }
+
+    @Test(groups = {"local"})
+    public void testLimitsAndIsolation() throws Exception {
+        Downloader.setLimits(4, 2);
+        List<String> uris = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            uris.add("http://a.batch.test/" + i);
+            uris.add("http://b.batch.test/" + i);
+            uris.add("http://c" + i + ".batch.test/" + i);
+        }
+        uris.add("http://a.batch.test/fail");
+        uris.add("not a url");
+
+        Map<String, CompletableFuture<String>> results = Downloader.getAll(uris);
+        assertEquals(results.size(), uris.size());
+        CompletableFuture.allOf(results.values().toArray(new CompletableFuture<?>[0])).exceptionally(e -> null).get();
+
+        assertEquals(results.get("http://a.batch.test/3").get(), "/3");
+        assertEquals(results.get("http://c7.batch.test/7").get(), "/7");
+        try {
+            results.get("http://a.batch.test/fail").get();
+            fail("The failing url should fail");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IOException);
+        }
+        assertTrue(results.get("not a url").isCompletedExceptionally());
+
+        assertTrue(maxRunning.get() <= 4, "At most 4 at once, got " + maxRunning.get());
+        assertTrue(maxRunning.get() > 1, "Urls should run at the same time");
+        for (Map.Entry<String, Integer> host : maxHostRunning.entrySet()) {
+            assertTrue(host.getValue() <= 2, "At most 2 at once for " + host.getKey() + ", got " + host.getValue());
+        }
+    }
+
+    @Test(groups = {"local"})
+    public void testCancelWaiting() throws Exception {
+        Downloader.setLimits(1, 1);
+        List<String> uris = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            uris.add("http://d.batch.test/" + i);
+        }
+        Map<String, CompletableFuture<String>> results = Downloader.getAll(uris);
+        results.get("http://d.batch.test/4").cancel(true);
+
+        assertEquals(results.get("http://d.batch.test/3").get(), "/3");
+        assertTrue(results.get("http://d.batch.test/4").isCancelled());
+    }
+}
@@ -0,0 +1,83 @@
+package zergtel.core.downloader;
+
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+
+import static org.testng.Assert.*;
+
+/**
+ * Tests that repeat downloads are served from DownloadCache after revalidation
+ */
+public class DownloadCacheTest {
+    private static final int SIZE = 512 * 1024;
+
+    private RangeServer server;
+    private File dir;
+    private File previousDirectory;
+
+    @BeforeClass(groups = {"local"})
+    public void startServer() throws Exception {
+        server = new RangeServer(SIZE, 0);
+        dir = Files.createTempDirectory("cache").toFile();
+        previousDirectory = DownloadCache.getDirectory();
+        DownloadCache.setDirectory(new File(dir, "cache"));
+    }
+
+    @AfterClass(groups = {"local"})
+    public void stopServer() {
+        server.stop();
+        DownloadCache.setDirectory(previousDirectory);
+    }
+
+    @Test(groups = {"local"})
+    public void testNotModified() throws Exception {
+        DownloadCache.clear();
+        EzHttp.get(server.url(), "first.bin", dir.getAbsolutePath());
+
+        long before = server.served();
+        String second = EzHttp.get(server.url(), "second.bin", dir.getAbsolutePath());
+
+        assertEquals(server.served() - before, 0, "Unchanged file should come from the cache");
+        assertEquals(Files.readAllBytes(Paths.get(second)), server.content());
+    }
+
+    @Test(groups = {"local"})
+    public void testBlobKeyedByContent() throws Exception {
+        DownloadCache.clear();
+        EzHttp.get(server.url(), "keyed.bin", dir.getAbsolutePath());
+
+        String sha256 = DownloadCache.hex(MessageDigest.getInstance("SHA-256").digest(server.content()));
+        assertTrue(new File(DownloadCache.getDirectory(), sha256 + ".blob").exists(),
+                "Blobs should be shared by what hashes the same under SHA-256, not just the same CRC32");
+
+        //without ranges the digest is made on the way to disk rather than by reading the file back, and should match
+        DownloadCache.clear();
+        server.setRanges(false);
+        try {
+            EzHttp.get(server.url(), "streamed.bin", dir.getAbsolutePath());
+        } finally {
+            server.setRanges(true);
+        }
+        assertTrue(new File(DownloadCache.getDirectory(), sha256 + ".blob").exists());
+    }
+
+    @Test(groups = {"local"})
+    public void testEviction() throws Exception {
+        DownloadCache.clear();
+        long limit = DownloadCache.getLimit();
+        EzHttp.get(server.url(), "evicted.bin", dir.getAbsolutePath());
+        DownloadCache.setLimit(SIZE - 1);
+        DownloadCache.setLimit(limit);
+
+        long before = server.served();
+        EzHttp.get(server.url(), "refetched.bin", dir.getAbsolutePath());
+
+        assertTrue(server.served() - before >= SIZE, "Evicted file should be downloaded again");
+    }
+}
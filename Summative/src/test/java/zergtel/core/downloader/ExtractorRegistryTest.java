@@ -0,0 +1,58 @@
+package zergtel.core.downloader;
+
+import org.testng.annotations.Test;
+
+import java.net.URL;
+
+import static org.testng.Assert.*;
+
+/**
+ * Tests that urls end up at the right extractor, without downloading anything
+ */
+public class ExtractorRegistryTest {
+
+    @Test(groups = {"local"})
+    public void testBuiltIn() throws Exception {
+        assertTrue(ExtractorRegistry.find(new URL("https://insaneintherainmusic.bandcamp.com/album/live-at-grillbys")) instanceof BandcampExtractor);
+        assertTrue(ExtractorRegistry.find(new URL("https://www.youtube.com/watch?v=dQw4w9WgXcQ")) instanceof YouTubeExtractor);
+        assertTrue(ExtractorRegistry.find(new URL("https://youtu.be/4zLfCnGVeL4")) instanceof YouTubeExtractor);
+        assertTrue(ExtractorRegistry.find(new URL("http://simonzeng.tk/example.mp3")) instanceof HttpExtractor);
+        assertTrue(ExtractorRegistry.find(new URL("http://notbandcamp.com/example.mp3")) instanceof HttpExtractor,
+                "Domains should only match whole labels");
+        assertNull(ExtractorRegistry.find(new URL("http://simonzeng.tk/")));
+    }
+
+    @Test(groups = {"local"})
+    public void testWatchUrl() throws Exception {
+        assertEquals(YouTubeExtractor.watchUrl(new URL("https://www.youtube.com/embed/dQw4w9WgXcQ")).toString(),
+                "https://youtube.com/watch?v=dQw4w9WgXcQ");
+        assertEquals(YouTubeExtractor.watchUrl(new URL("https://youtu.be/4zLfCnGVeL4")).toString(),
+                "https://youtube.com/watch?v=4zLfCnGVeL4");
+    }
+
+    @Test(groups = {"local"})
+    public void testDeepestMatchWins() throws Exception {
+        Extractor label = new Extractor() {
+            @Override
+            public String[] hosts() {
+                return new String[] {"label.bandcamp.com"};
+            }
+
+            @Override
+            public boolean accepts(URL uri) {
+                return uri.getPath().startsWith("/album/");
+            }
+
+            @Override
+            public String get(URL uri, DownloadSession session) {
+                return "label";
+            }
+        };
+        ExtractorRegistry.register(label);
+
+        assertSame(ExtractorRegistry.find(new URL("https://label.bandcamp.com/album/first")), label);
+        assertTrue(ExtractorRegistry.find(new URL("https://label.bandcamp.com/track/first")) instanceof BandcampExtractor,
+                "Paths the deeper extractor doesn't accept should go to the shallower one");
+        assertTrue(ExtractorRegistry.find(new URL("https://other.bandcamp.com/album/first")) instanceof BandcampExtractor);
+    }
+}
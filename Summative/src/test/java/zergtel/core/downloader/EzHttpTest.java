@@ -0,0 +1,201 @@
+package zergtel.core.downloader;
+
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.URL;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Properties;
+
+import static org.testng.Assert.*;
+
+/**
+ * Tests EzHttp against a local server, so these run without any internet access
+ */
+public class EzHttpTest {
+    private static final int SIZE = 2 * 1024 * 1024;
+    private static final int SPEED = 1024 * 1024;
+
+    private RangeServer server;
+    private File dir;
+
+    @BeforeClass(groups = {"local"})
+    public void startServer() throws Exception {
+        server = new RangeServer(SIZE, SPEED);
+        DownloadCache.setEnabled(false);
+        dir = Files.createTempDirectory("ezhttp").toFile();
+    }
+
+    @AfterClass(groups = {"local"})
+    public void stopServer() {
+        server.stop();
+        DownloadCache.setEnabled(true);
+        EzHttp.setSegments(4);
+        server.setRanges(true);
+    }
+
+    @Test(groups = {"local"})
+    public void testSegmentedConnections() throws Exception {
+        EzHttp.setSegments(1);
+        server.awaitIdle();
+        String single = EzHttp.get(server.url(), "single.bin", dir.getAbsolutePath());
+        int singleConnections = server.peakConcurrent();
+
+        EzHttp.setSegments(4);
+        server.awaitIdle();
+        long ranged = server.servedRanges();
+        String segmented = EzHttp.get(server.url(), "segmented.bin", dir.getAbsolutePath());
+        int segmentedConnections = server.peakConcurrent();
+        ranged = server.servedRanges() - ranged;
+
+        assertEquals(Files.readAllBytes(Paths.get(single)), server.content());
+        assertEquals(Files.readAllBytes(Paths.get(segmented)), server.content());
+        assertEquals(singleConnections, 1, "A single segment download shouldn't split itself up");
+        assertEquals(segmentedConnections, 4, "Every segment should have been downloading at the same time");
+        assertTrue(ranged >= SIZE * 3 / 4, "All but the first segment should have come from range requests");
+    }
+
+    @Test(groups = {"local"})
+    public void testFallbackWithoutRanges() throws Exception {
+        server.setRanges(false);
+        EzHttp.setSegments(4);
+        String output = EzHttp.get(server.url(), "noranges.bin", dir.getAbsolutePath());
+        server.setRanges(true);
+
+        assertEquals(Files.readAllBytes(Paths.get(output)), server.content());
+    }
+
+    @Test(groups = {"local"})
+    public void testResume() throws Exception {
+        String output = EzHttp.get(server.url(), "resume.bin", dir.getAbsolutePath());
+
+        //pretend the download died halfway: wipe the second half, and leave a journal saying the first half is done
+        try (RandomAccessFile file = new RandomAccessFile(output, "rw")) {
+            file.seek(SIZE / 2);
+            file.write(new byte[SIZE / 2]);
+        }
+        Properties journal = new Properties();
+        journal.setProperty("url", server.url());
+        journal.setProperty("etag", RangeServer.ETAG);
+        journal.setProperty("size", Integer.toString(SIZE));
+        journal.setProperty("done", "0-" + SIZE / 2);
+        try (OutputStream out = new FileOutputStream(output + DownloadJournal.EXTENSION)) {
+            journal.store(out, null);
+        }
+
+        long before = server.served();
+        EzHttp.get(server.url(), "resume.bin", dir.getAbsolutePath());
+
+        //the first request can't know about the journal yet, so allow for whatever it sent before being hung up on
+        long served = server.served() - before;
+        assertTrue(served >= SIZE / 2 && served < SIZE * 3 / 4, "Only the missing half should be downloaded again");
+        assertEquals(Files.readAllBytes(Paths.get(output)), server.content());
+        assertFalse(new File(output + DownloadJournal.EXTENSION).exists(), "Journal should be gone once the download is done");
+    }
+
+    @Test(groups = {"local"})
+    public void testFileUrlTransfer() throws Exception {
+        File source = new File(dir, "source.bin");
+        Files.write(source.toPath(), server.content());
+
+        String output = EzHttp.get(source.toURI().toString(), "copy.bin", dir.getAbsolutePath());
+
+        assertEquals(Files.readAllBytes(Paths.get(output)), server.content());
+    }
+
+    @Test(groups = {"local"})
+    public void testManifestChecksum() throws Exception {
+        String output = EzHttp.get(server.url(), "checked.bin", dir.getAbsolutePath());
+
+        CRC32 crc = new CRC32();
+        crc.update(server.content());
+        List<String> manifest = Files.readAllLines(new File(dir, Manifest.NAME).toPath());
+        String expected = String.format("%08x", crc.getValue()) + "  " + SIZE + "  " + new File(output).getName();
+        assertTrue(manifest.contains(expected), "Manifest should hold the checksum made while downloading");
+    }
+
+    @Test(groups = {"local"})
+    public void testManifestReplacesLine() throws Exception {
+        File own = Files.createTempDirectory("manifest").toFile();
+        EzHttp.get(server.url(), "again.bin", own.getAbsolutePath());
+        EzHttp.get(server.url(), "other.bin", own.getAbsolutePath());
+        EzHttp.get(server.url(), "again.bin", own.getAbsolutePath());
+
+        List<String> manifest = Files.readAllLines(new File(own, Manifest.NAME).toPath());
+        assertEquals(manifest.size(), 2, "Downloading a file again should replace its line: " + manifest);
+        assertTrue(manifest.get(0).endsWith("  other.bin"));
+        assertTrue(manifest.get(1).endsWith("  again.bin"));
+        assertFalse(new File(own, Manifest.NAME + ".tmp").exists());
+    }
+
+    @Test(groups = {"local"})
+    public void testTruncatedRetry() throws Exception {
+        EzHttp.setSegments(1);
+        server.truncateNext(1);
+        String output = EzHttp.get(server.url(), "truncated.bin", dir.getAbsolutePath());
+        EzHttp.setSegments(4);
+
+        assertEquals(Files.readAllBytes(Paths.get(output)), server.content());
+    }
+
+    @Test(groups = {"local"})
+    public void testHedging() throws Exception {
+        RangeServer fast = new RangeServer(SIZE, 0);
+        try {
+            DownloadSession session = new DownloadSession(dir.getAbsolutePath()).withSegments(1).withHedging(256 * 1024, 300);
+            fast.slowNext(1, 32 * 1024);
+
+            String output = EzHttp.get(new URL(fast.url()), Collections.emptyList(), "hedged.bin", dir.getAbsolutePath(), session);
+
+            assertEquals(Files.readAllBytes(Paths.get(output)), fast.content());
+            //a single segment download only asks for ranges when it hedges
+            assertTrue(fast.servedRanges() > 0, "The slow connection should have been hedged");
+            assertTrue(fast.served() < SIZE * 3 / 2, "Hedged ranges shouldn't overlap");
+        } finally {
+            fast.stop();
+        }
+    }
+
+    @Test(groups = {"local"})
+    public void testHedgingByDefault() throws Exception {
+        DownloadSession session = new DownloadSession(dir.getAbsolutePath());
+        assertTrue(session.getHedgeRate() > 0, "Jobs should hedge unless told otherwise");
+        assertEquals(session.getHedgeRate(), EzHttp.getHedgeRate());
+        assertEquals(session.getHedgeDelay(), EzHttp.getHedgeDelay());
+    }
+
+    @Test(groups = {"local"})
+    public void testNoHedgingWhenThrottled() throws Exception {
+        RangeServer fast = new RangeServer(384 * 1024, 0);
+        try {
+            DownloadSession session = new DownloadSession(dir.getAbsolutePath()).withSegments(1).withHedging(256 * 1024, 200)
+                    .withLimit(128 * 1024);
+            String output = EzHttp.get(new URL(fast.url()), Collections.emptyList(), "throttled.bin", dir.getAbsolutePath(), session);
+
+            assertEquals(Files.readAllBytes(Paths.get(output)), fast.content());
+            assertEquals(fast.servedRanges(), 0, "A job slowed down by its own limit shouldn't be hedged");
+        } finally {
+            fast.stop();
+        }
+    }
+
+    @Test(groups = {"local"})
+    public void testStream() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        long streamed = EzHttp.stream(new URL(server.url()), "stream.bin", out, new DownloadSession(dir.getAbsolutePath()));
+
+        assertEquals(streamed, SIZE);
+        assertEquals(out.toByteArray(), server.content());
+        assertFalse(new File(dir, "stream.bin").exists(), "Streaming shouldn't save anything");
+    }
+}
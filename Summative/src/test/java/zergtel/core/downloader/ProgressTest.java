@@ -0,0 +1,76 @@
+package zergtel.core.downloader;
+
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.testng.Assert.*;
+
+/**
+ * Tests that progress events arrive, add up, and don't arrive too often
+ */
+public class ProgressTest {
+    private static final int SIZE = 1024 * 1024;
+    private static final int SPEED = 1024 * 1024;
+
+    private RangeServer server;
+    private File dir;
+
+    @BeforeClass(groups = {"local"})
+    public void startServer() throws Exception {
+        server = new RangeServer(SIZE, SPEED);
+        DownloadCache.setEnabled(false);
+        dir = Files.createTempDirectory("progress").toFile();
+    }
+
+    @AfterClass(groups = {"local"})
+    public void stopServer() {
+        server.stop();
+        DownloadCache.setEnabled(true);
+    }
+
+    @Test(groups = {"local"})
+    public void testEvents() throws Exception {
+        List<ProgressEvent> events = new CopyOnWriteArrayList<>();
+        List<Long> arrivals = new CopyOnWriteArrayList<>();
+        DownloadSession session = new DownloadSession(dir.getAbsolutePath()).withSegments(1).withListener(event -> {
+            arrivals.add(System.nanoTime());
+            events.add(event);
+        });
+
+        EzHttp.get(server.url(), "progress.bin", dir.getAbsolutePath(), session);
+
+        assertFalse(events.isEmpty());
+        ProgressEvent last = events.get(events.size() - 1);
+        assertTrue(last.isDone());
+        assertEquals(last.getTransferred(), SIZE);
+        assertEquals(last.getTotal(), SIZE);
+        assertEquals(last.getEta(), 0);
+
+        long previous = 0;
+        for (ProgressEvent event : events) {
+            assertTrue(event.getTransferred() >= previous, "Progress should never go backwards");
+            previous = event.getTransferred();
+        }
+        //the last event is sent as soon as the download is done, every other one at most once per interval
+        assertTrue(events.size() > 1, "A download of about a second should have sent events along the way");
+        for (int i = 1; i < arrivals.size() - 1; i++) {
+            assertTrue(arrivals.get(i) - arrivals.get(i - 1) >= Progress.INTERVAL / 2, "Events should be sampled, not sent for every chunk");
+        }
+    }
+
+    @Test(groups = {"local"})
+    public void testBrokenListener() throws Exception {
+        DownloadSession session = new DownloadSession(dir.getAbsolutePath()).withListener(event -> {
+            throw new IllegalStateException("Broken progress bar");
+        });
+
+        String output = EzHttp.get(server.url(), "broken.bin", dir.getAbsolutePath(), session);
+        assertEquals(new File(output).length(), SIZE);
+    }
+}
@@ -0,0 +1,52 @@
+package zergtel.core.downloader;
+
+import org.testng.annotations.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+import static org.testng.Assert.*;
+
+/**
+ * Tests that checksums of separate ranges combine into the checksum of the whole
+ */
+public class RangeChecksumTest {
+
+    @Test(groups = {"local"})
+    public void testCombine() throws Exception {
+        byte[] bytes = new byte[100000];
+        new Random(7).nextBytes(bytes);
+        CRC32 whole = new CRC32();
+        whole.update(bytes);
+
+        //three ranges, arriving out of order like segments do
+        RangeChecksum first = new RangeChecksum();
+        RangeChecksum second = new RangeChecksum();
+        RangeChecksum third = new RangeChecksum();
+        third.update(ByteBuffer.wrap(bytes, 70000, 30000));
+        first.update(ByteBuffer.wrap(bytes, 0, 12345));
+        second.update(ByteBuffer.wrap(bytes, 12345, 57655));
+
+        second.append(third);
+        first.append(second);
+
+        assertEquals(first.value(), whole.getValue());
+        assertEquals(first.length(), bytes.length);
+    }
+
+    @Test(groups = {"local"})
+    public void testContinueFromValue() throws Exception {
+        byte[] bytes = new byte[5000];
+        new Random(11).nextBytes(bytes);
+        CRC32 whole = new CRC32();
+        whole.update(bytes);
+        CRC32 start = new CRC32();
+        start.update(bytes, 0, 2000);
+
+        RangeChecksum resumed = RangeChecksum.of(start.getValue(), 2000);
+        resumed.update(bytes, 2000, 3000);
+
+        assertEquals(resumed.value(), whole.getValue());
+    }
+}
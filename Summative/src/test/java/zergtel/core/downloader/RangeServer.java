@@ -0,0 +1,197 @@
+package zergtel.core.downloader;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Small local http server for downloader tests
+ *
+ * Serves one block of random bytes at /file.bin, with byte range support that can be switched off, and a speed cap on
+ * every individual connection (the same kind of cap that makes segmented downloading worthwhile in the first place)
+ */
+class RangeServer {
+    private static final int CHUNK = 16 * 1024;
+    static final String ETAG = "\"ztvdc-test\"";
+
+    private final HttpServer server;
+    private final byte[] content;
+    private final int bytesPerSecond;
+    private final AtomicLong served = new AtomicLong();
+    private final AtomicLong servedRanges = new AtomicLong();
+    private final AtomicInteger open = new AtomicInteger();
+    private final AtomicInteger peak = new AtomicInteger();
+    private final AtomicInteger truncate = new AtomicInteger();
+    private final AtomicInteger slow = new AtomicInteger();
+    private final AtomicInteger fail = new AtomicInteger();
+    private volatile int failStatus;
+    private volatile int slowBytesPerSecond;
+    private boolean ranges = true;
+
+    /**
+     * @param size - Amount of bytes to serve
+     * @param bytesPerSecond - Speed cap per connection, 0 for none
+     */
+    RangeServer(int size, int bytesPerSecond) throws IOException {
+        this.content = new byte[size];
+        this.bytesPerSecond = bytesPerSecond;
+        new Random(size).nextBytes(content);
+
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.createContext("/file.bin", this::handle);
+        server.start();
+    }
+
+    String url() {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + "/file.bin";
+    }
+
+    byte[] content() {
+        return content;
+    }
+
+    void setRanges(boolean ranges) {
+        this.ranges = ranges;
+    }
+
+    /**
+     * Makes the next few responses hang up halfway through their body
+     *
+     * @param count - Amount of responses to cut short
+     */
+    void truncateNext(int count) {
+        truncate.set(count);
+    }
+
+    /**
+     * Makes the next few requests fail with an error status
+     *
+     * @param count - Amount of requests to fail
+     * @param status - Status to fail them with
+     */
+    void failNext(int count, int status) {
+        failStatus = status;
+        fail.set(count);
+    }
+
+    /**
+     * Makes the next few responses much slower than the rest, like a bad cdn edge would be
+     *
+     * @param count - Amount of responses to slow down
+     * @param bytesPerSecond - Speed of those responses
+     */
+    void slowNext(int count, int bytesPerSecond) {
+        slowBytesPerSecond = bytesPerSecond;
+        slow.set(count);
+    }
+
+    /**
+     * @return - Amount of body bytes sent since the server started
+     */
+    long served() {
+        return served.get();
+    }
+
+    /**
+     * @return - Amount of body bytes sent in answer to range requests since the server started. Unlike served, this
+     *           leaves out whatever went out on a connection the client dropped before reading it
+     */
+    long servedRanges() {
+        return servedRanges.get();
+    }
+
+    /**
+     * @return - Most responses whose body was being sent at the same time, since the last call. Segmented downloads
+     *           use the request that checked for range support as their first segment, so this counts plain requests
+     *           as well as range requests
+     */
+    int peakConcurrent() {
+        return peak.getAndSet(0);
+    }
+
+    /**
+     * Waits for responses still being sent (to clients that dropped them, say) to finish, then starts peakConcurrent over
+     */
+    void awaitIdle() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (open.get() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        peak.set(0);
+    }
+
+    void stop() {
+        server.stop(0);
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        int start = 0;
+        int end = content.length - 1;
+        int status = 200;
+
+        if (fail.getAndUpdate(n -> Math.max(0, n - 1)) > 0) {
+            exchange.sendResponseHeaders(failStatus, -1);
+            exchange.close();
+            return;
+        }
+
+        String range = exchange.getRequestHeaders().getFirst("Range");
+        exchange.getResponseHeaders().add("ETag", ETAG);
+        if (ETAG.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+            exchange.sendResponseHeaders(304, -1);
+            exchange.close();
+            return;
+        }
+        if (ranges) {
+            exchange.getResponseHeaders().add("Accept-Ranges", "bytes");
+            if (range != null && range.startsWith("bytes=")) {
+                String[] bounds = range.substring(6).split("-", -1);
+                start = Integer.parseInt(bounds[0]);
+                if (!bounds[1].isEmpty()) {
+                    end = Math.min(end, Integer.parseInt(bounds[1]));
+                }
+                status = 206;
+                exchange.getResponseHeaders().add("Content-Range", "bytes " + start + "-" + end + "/" + content.length);
+            }
+        }
+
+        exchange.sendResponseHeaders(status, end - start + 1);
+        OutputStream out = exchange.getResponseBody();
+        if (truncate.getAndUpdate(n -> Math.max(0, n - 1)) > 0) {
+            out.write(content, start, (end - start + 1) / 2);
+            out.flush();
+            //letting the exception out of the handler makes the server drop the connection mid body
+            throw new IOException("Truncated on purpose");
+        }
+
+        peak.accumulateAndGet(open.incrementAndGet(), Math::max);
+        int speed = slow.getAndUpdate(n -> Math.max(0, n - 1)) > 0 ? slowBytesPerSecond : bytesPerSecond;
+        int chunk = speed > 0 ? Math.min(CHUNK, speed / 4) : CHUNK;
+        try {
+            for (int i = start; i <= end; i += chunk) {
+                out.write(content, i, Math.min(chunk, end - i + 1));
+                out.flush();
+                served.addAndGet(Math.min(chunk, end - i + 1));
+                if (status == 206) {
+                    servedRanges.addAndGet(Math.min(chunk, end - i + 1));
+                }
+                if (speed > 0) {
+                    Thread.sleep(1000L * chunk / speed);
+                }
+            }
+            out.close();
+        } catch (InterruptedException | IOException e) {
+            //client hung up early, which segmented downloads do on purpose
+        } finally {
+            open.decrementAndGet();
+        }
+    }
+}
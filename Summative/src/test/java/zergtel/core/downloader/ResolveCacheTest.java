@@ -0,0 +1,112 @@
+package zergtel.core.downloader;
+
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.testng.Assert.*;
+
+/**
+ * Tests that looked up values are kept, shared, and let go of at the right times
+ */
+public class ResolveCacheTest {
+
+    @Test(groups = {"local"})
+    public void testKeptUntilStale() throws Exception {
+        AtomicInteger lookups = new AtomicInteger();
+        ResolveCache<String> cache = new ResolveCache<>(200, 10, value -> Long.MAX_VALUE);
+        assertEquals(cache.get("a", () -> "a" + lookups.incrementAndGet()), "a1");
+        assertEquals(cache.get("a", () -> "a" + lookups.incrementAndGet()), "a1");
+
+        Thread.sleep(300);
+        assertEquals(cache.get("a", () -> "a" + lookups.incrementAndGet()), "a2", "A stale value should be looked up again");
+
+        //a value can say it goes off sooner than the cache would keep it
+        ResolveCache<String> expiring = new ResolveCache<>(60000, 10, value -> System.currentTimeMillis() - 1);
+        expiring.get("b", () -> "b" + lookups.incrementAndGet());
+        assertEquals(expiring.get("b", () -> "fresh"), "fresh");
+    }
+
+    @Test(groups = {"local"})
+    public void testBounded() throws Exception {
+        ResolveCache<String> cache = new ResolveCache<>(60000, 2, value -> Long.MAX_VALUE);
+        cache.get("a", () -> "a");
+        cache.get("b", () -> "b");
+        cache.get("a", () -> "not looked up");
+        cache.get("c", () -> "c");
+        assertEquals(cache.size(), 2);
+        assertEquals(cache.get("a", () -> "a again"), "a", "The most recently used should stay");
+        assertEquals(cache.get("b", () -> "b again"), "b again", "The least recently used should go");
+    }
+
+    @Test(groups = {"local"})
+    public void testSharedLookup() throws Exception {
+        ResolveCache<String> cache = new ResolveCache<>(60000, 10, value -> Long.MAX_VALUE);
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        CompletableFuture<String> prefetch = CompletableFuture.supplyAsync(() -> {
+            try {
+                return cache.get("video", () -> {
+                    started.countDown();
+                    release.await();
+                    return "streams";
+                });
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+        started.await();
+
+        CompletableFuture<String> download = CompletableFuture.supplyAsync(() -> {
+            try {
+                return cache.get("video", () -> "looked up twice");
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+        Thread.sleep(100);
+        assertFalse(download.isDone(), "The download should wait for the prefetch rather than look up again");
+        release.countDown();
+        assertEquals(download.get(), "streams");
+        assertEquals(prefetch.get(), "streams");
+    }
+
+    @Test(groups = {"local"})
+    public void testFailuresAndInvalidation() throws Exception {
+        ResolveCache<String> cache = new ResolveCache<>(60000, 10, value -> Long.MAX_VALUE);
+        try {
+            cache.get("a", () -> {
+                throw new IOException("Extraction failed");
+            });
+            fail("The failure should come back to the caller");
+        } catch (IOException e) {
+            assertEquals(e.getMessage(), "Extraction failed");
+        }
+        String first = cache.get("a", () -> "a");
+        assertEquals(first, "a", "A failed lookup shouldn't be kept");
+
+        cache.invalidate("a", "some other value");
+        assertSame(cache.get("a", () -> "new"), first, "Only the value that went stale should be forgotten");
+        cache.invalidate("a", first);
+        assertEquals(cache.get("a", () -> "new"), "new");
+    }
+
+    @Test(groups = {"local"})
+    public void testErrorNotKept() throws Exception {
+        ResolveCache<String> cache = new ResolveCache<>(60000, 10, value -> Long.MAX_VALUE);
+        try {
+            cache.get("a", () -> {
+                throw new AssertionError("Broken extractor");
+            });
+            fail("The error should come back to the caller");
+        } catch (AssertionError e) {
+            assertEquals(e.getMessage(), "Broken extractor");
+        }
+        assertFalse(cache.contains("a"));
+        assertEquals(cache.get("a", () -> "a"), "a", "A lookup that died with an error shouldn't block the next one");
+        assertTrue(cache.contains("a"));
+    }
+}
@@ -0,0 +1,98 @@
+package zergtel.core.downloader;
+
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Collections;
+
+import static org.testng.Assert.*;
+
+/**
+ * Tests which errors get retried, and that retries carry on from where the last attempt stopped
+ */
+public class RetryPolicyTest {
+    private static final int SIZE = 1024 * 1024;
+    private static final RetryPolicy FAST = new RetryPolicy(3, 10, 50);
+
+    private RangeServer server;
+    private File dir;
+
+    @BeforeClass(groups = {"local"})
+    public void startServer() throws Exception {
+        server = new RangeServer(SIZE, 0);
+        DownloadCache.setEnabled(false);
+        dir = Files.createTempDirectory("retry").toFile();
+    }
+
+    @AfterClass(groups = {"local"})
+    public void stopServer() {
+        server.stop();
+        DownloadCache.setEnabled(true);
+    }
+
+    @Test(groups = {"local"})
+    public void testClassification() {
+        assertTrue(FAST.isRetryable(new SocketTimeoutException()));
+        assertTrue(FAST.isRetryable(new TruncatedDownloadException("short")));
+        assertTrue(FAST.isRetryable(new HttpStatusException(null, 503, -1)));
+        assertTrue(FAST.isRetryable(new RuntimeException(new java.net.SocketException("Connection reset"))));
+        assertFalse(FAST.isRetryable(new HttpStatusException(null, 404, -1)));
+        assertFalse(FAST.isRetryable(new InsufficientSpaceException("full")));
+        assertFalse(FAST.isRetryable(new IOException("Something else")));
+    }
+
+    @Test(groups = {"local"})
+    public void testBackoff() {
+        RetryPolicy policy = new RetryPolicy(10, 100, 1000);
+        for (int attempt = 1; attempt < 10; attempt++) {
+            long expected = Math.min(1000, 100L << (attempt - 1));
+            long delay = policy.delay(attempt, new SocketTimeoutException());
+            assertTrue(delay >= expected / 2 && delay <= expected, "Delay " + delay + " out of range for attempt " + attempt);
+        }
+        assertEquals(policy.delay(1, new HttpStatusException(null, 429, 1)), 1000, "Retry-After should be respected");
+    }
+
+    @Test(groups = {"local"})
+    public void testServerErrorRetried() throws Exception {
+        server.failNext(2, 503);
+        DownloadSession session = new DownloadSession(dir.getAbsolutePath()).withRetryPolicy(FAST);
+        String output = EzHttp.get(new URL(server.url()), Collections.emptyList(), "retried.bin", dir.getAbsolutePath(), session);
+        assertEquals(Files.readAllBytes(Paths.get(output)), server.content());
+    }
+
+    @Test(groups = {"local"})
+    public void testNotFoundNotRetried() throws Exception {
+        server.failNext(2, 404);
+        DownloadSession session = new DownloadSession(dir.getAbsolutePath()).withRetryPolicy(FAST);
+        try {
+            EzHttp.get(new URL(server.url()), Collections.emptyList(), "missing.bin", dir.getAbsolutePath(), session);
+            fail("A 404 should fail the download");
+        } catch (HttpStatusException e) {
+            assertEquals(e.getStatus(), 404);
+        } finally {
+            server.failNext(0, 0);
+        }
+    }
+
+    @Test(groups = {"local"})
+    public void testRetryKeepsProgress() throws Exception {
+        DownloadSession session = new DownloadSession(dir.getAbsolutePath()).withSegments(1).withResume(false).withRetryPolicy(FAST);
+        server.truncateNext(1);
+        //the retry opens a plain request before finding the journal and asking for the rest, and whatever the server
+        //gets out on that one before it's dropped depends on socket buffers, so only the ranged bytes are counted
+        long before = server.servedRanges();
+
+        String output = EzHttp.get(new URL(server.url()), Collections.emptyList(), "kept.bin", dir.getAbsolutePath(), session);
+
+        assertEquals(Files.readAllBytes(Paths.get(output)), server.content());
+        assertEquals(server.servedRanges() - before, SIZE - SIZE / 2, "The retry should only fetch what the first attempt didn't get");
+        assertFalse(new File(output + DownloadJournal.EXTENSION).exists());
+    }
+}
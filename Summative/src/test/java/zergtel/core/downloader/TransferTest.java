@@ -0,0 +1,46 @@
+package zergtel.core.downloader;
+
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.testng.Assert.*;
+
+/**
+ * Tests that streams are read and written a whole chunk at a time, rather than in Channels.newChannel's 8 KB pieces
+ */
+public class TransferTest {
+
+    @Test(groups = {"local"})
+    public void testWholeChunks() throws Exception {
+        byte[] content = new byte[BufferPool.DEFAULT_CHUNK_SIZE * 2];
+        new Random(0).nextBytes(content);
+        ReadableByteChannel in = Transfer.channel(new ByteArrayInputStream(content));
+        ByteArrayOutputStream written = new ByteArrayOutputStream();
+        WritableByteChannel out = Transfer.channel(written);
+
+        ByteBuffer buffer = BufferPool.acquire(false);
+        try {
+            assertTrue(buffer.hasArray(), "Streams should get heap buffers they can read into directly");
+            assertEquals(in.read(buffer), BufferPool.DEFAULT_CHUNK_SIZE);
+            buffer.flip();
+            assertEquals(out.write(buffer), BufferPool.DEFAULT_CHUNK_SIZE);
+            assertFalse(buffer.hasRemaining());
+
+            buffer.clear();
+            buffer.position(10);
+            assertEquals(in.read(buffer), BufferPool.DEFAULT_CHUNK_SIZE - 10, "Reads should start at the buffer's position");
+            buffer.flip().position(10);
+            out.write(buffer);
+        } finally {
+            BufferPool.release(buffer);
+        }
+        assertEquals(written.toByteArray(), Arrays.copyOf(content, content.length - 10));
+    }
+}
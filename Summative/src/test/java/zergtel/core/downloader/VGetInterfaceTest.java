@@ -0,0 +1,147 @@
+package zergtel.core.downloader;
+
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+import zergtel.core.converter.FakeFfmpeg;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InterruptedIOException;
+import java.net.URL;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.testng.Assert.*;
+
+/**
+ * Tests that the streams of a video get from a server into ffmpeg, piped or through temp files, against a local server
+ * and a fake ffmpeg
+ */
+public class VGetInterfaceTest {
+    private static final int VIDEO_SIZE = 512 * 1024;
+    private static final int AUDIO_SIZE = 128 * 1024;
+
+    private RangeServer video;
+    private RangeServer audio;
+
+    @BeforeClass(groups = {"local"})
+    public void startServers() throws Exception {
+        video = new RangeServer(VIDEO_SIZE, 256 * 1024); //slow enough for the merge to start while it's still arriving
+        audio = new RangeServer(AUDIO_SIZE, 0);
+        DownloadCache.setEnabled(false);
+    }
+
+    @AfterClass(groups = {"local"})
+    public void stopServers() {
+        video.stop();
+        audio.stop();
+        DownloadCache.setEnabled(true);
+    }
+
+    @Test(groups = {"local"})
+    public void testPipedConvert() throws Exception {
+        File dir = Files.createTempDirectory("piped").toFile();
+        File ffmpeg = FakeFfmpeg.create(dir, null, false);
+        File temp = new File(dir, "temp");
+
+        VGetInterface.save(Collections.singletonList(new URL(audio.url())), 0, "song", "song.mp3", session(dir, ffmpeg, temp));
+
+        assertEquals(Files.readAllBytes(new File(dir, "song.mp3").toPath()), audio.content());
+        List<String> calls = FakeFfmpeg.calls(ffmpeg);
+        assertEquals(calls.size(), 1);
+        assertTrue(calls.get(0).contains("-i pipe:0"), "The stream should have gone into ffmpeg's stdin");
+        assertEquals(leftovers(temp), 0, "Nothing should have been downloaded to the temp directory");
+    }
+
+    @Test(groups = {"local"})
+    public void testPipedMerge() throws Exception {
+        File dir = Files.createTempDirectory("merged").toFile();
+        File ffmpeg = FakeFfmpeg.create(dir, null, false);
+        File temp = new File(dir, "temp");
+        Map<String, ProgressEvent> last = new ConcurrentHashMap<>();
+        DownloadSession session = session(dir, ffmpeg, temp).withListener(event -> last.put(event.getName(), event));
+
+        VGetInterface.save(Arrays.asList(new URL(video.url()), new URL(audio.url())), 0, "clip", "clip.mp4", session);
+
+        //the fake merges by putting its inputs one after the other, the piped video first
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        expected.write(video.content());
+        expected.write(audio.content());
+        assertEquals(Files.readAllBytes(new File(dir, "clip.mp4").toPath()), expected.toByteArray());
+        assertTrue(FakeFfmpeg.calls(ffmpeg).get(0).contains("-i pipe:0 -i "));
+
+        ProgressEvent videoProgress = last.get("clip.1.stream");
+        ProgressEvent audioProgress = last.get("clip.2.stream");
+        assertNotNull(videoProgress, "Each stream should have progress of its own");
+        assertNotNull(audioProgress);
+        assertTrue(videoProgress.isDone() && audioProgress.isDone());
+        assertEquals(videoProgress.getTransferred(), VIDEO_SIZE);
+        assertEquals(audioProgress.getTransferred(), AUDIO_SIZE);
+        assertEquals(leftovers(temp), 0, "The spool and the audio should be gone once merged");
+    }
+
+    @Test(groups = {"local"})
+    public void testFallbackWhenPipeFails() throws Exception {
+        File dir = Files.createTempDirectory("fallback").toFile();
+        File ffmpeg = FakeFfmpeg.create(dir, null, false);
+        File temp = new File(dir, "temp");
+
+        audio.truncateNext(1);
+        VGetInterface.save(Collections.singletonList(new URL(audio.url())), 0, "song", "song.mp3", session(dir, ffmpeg, temp));
+
+        assertEquals(Files.readAllBytes(new File(dir, "song.mp3").toPath()), audio.content());
+        //the piped run may be stopped before the fake gets to log it, but only a fallback converts from a file
+        List<String> calls = FakeFfmpeg.calls(ffmpeg);
+        assertFalse(calls.isEmpty());
+        assertFalse(calls.get(calls.size() - 1).contains("pipe:0"),
+                "A stream cut short while piping should be downloaded again into a temp file");
+    }
+
+    @Test(groups = {"local"})
+    public void testCancelWhileMerging() throws Exception {
+        File dir = Files.createTempDirectory("cancelled").toFile();
+        File ffmpeg = FakeFfmpeg.create(dir, null, false);
+        File temp = new File(dir, "temp");
+        DownloadSession session = session(dir, ffmpeg, temp);
+
+        AtomicReference<Exception> thrown = new AtomicReference<>();
+        Thread job = new Thread(() -> {
+            try {
+                VGetInterface.save(Arrays.asList(new URL(video.url()), new URL(audio.url())), 0, "clip", "clip.mp4", session);
+            } catch (Exception e) {
+                thrown.set(e);
+            }
+        });
+        job.start();
+        Thread.sleep(700); //the audio is done by now, and ffmpeg is following the video's spool
+        assertEquals(FakeFfmpeg.calls(ffmpeg).size(), 1, "The merge should have started before the video finished");
+
+        job.interrupt();
+        job.join(5000);
+        assertFalse(job.isAlive(), "Cancelling should stop the download and the merge");
+        assertTrue(thrown.get() instanceof InterruptedException || thrown.get() instanceof InterruptedIOException,
+                "A cancelled job shouldn't fall back to temp files, got " + thrown.get());
+        assertEquals(FakeFfmpeg.calls(ffmpeg).size(), 1);
+        assertEquals(leftovers(temp), 0, "The spool and the audio should be cleaned up");
+    }
+
+    /**
+     * @return - Amount of streams and spools in temp. The manifest is left for the workspace to clean up
+     */
+    private static int leftovers(File temp) {
+        File[] files = temp.listFiles((dir, name) -> !name.equals(Manifest.NAME));
+        return files == null ? 0 : files.length;
+    }
+
+    private static DownloadSession session(File dir, File ffmpeg, File temp) {
+        temp.mkdirs();
+        return new DownloadSession(dir.getAbsolutePath()).withTempLocation(temp.getAbsolutePath())
+                .withFfmpeg(ffmpeg).withPipelined(true);
+    }
+}
@@ -0,0 +1,73 @@
+package zergtel.core.downloader;
+
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+
+import static org.testng.Assert.*;
+
+/**
+ * Tests that jobs get temp directories of their own, and that they're cleaned up by whoever finishes with them last
+ */
+public class WorkspaceTest {
+
+    @Test(groups = {"local"})
+    public void testSeparateJobs() throws Exception {
+        File root = Files.createTempDirectory("workspaces").toFile();
+        try (Workspace first = Workspace.open(root.getPath(), "http://example.com/video");
+             Workspace second = Workspace.open(root.getPath(), "http://example.com/video")) {
+            assertNotEquals(first.getPath(), second.getPath(), "Two jobs on the same url still need their own directories");
+            assertTrue(new File(first.getPath()).isDirectory());
+            assertTrue(new File(second.getPath()).isDirectory());
+        }
+        assertEquals(root.list().length, 0, "Empty workspaces should be gone once closed");
+    }
+
+    @Test(groups = {"local"})
+    public void testReferenceCounting() throws Exception {
+        File root = Files.createTempDirectory("workspaces").toFile();
+        Workspace workspace = Workspace.open(root.getPath(), "http://example.com/video");
+        File dir = new File(workspace.getPath());
+        File stream = new File(dir, "video.stream");
+        Files.write(stream.toPath(), new byte[10]);
+        File partial = new File(dir, "audio.stream");
+        Files.write(partial.toPath(), new byte[10]);
+        Files.write(new File(partial.getPath() + DownloadJournal.EXTENSION).toPath(), new byte[0]);
+
+        Workspace retained = Workspace.retain(workspace.getPath());
+        assertSame(retained, workspace);
+        workspace.close();
+        assertTrue(stream.exists(), "A download still holding the workspace should keep its files");
+
+        retained.close();
+        assertFalse(stream.exists());
+        assertTrue(partial.exists(), "Partial downloads should be kept for the job to resume");
+        assertNull(Workspace.retain(workspace.getPath()), "A closed workspace can't be held on to");
+
+        //the same job started again gets the same directory, and with it the partial download
+        try (Workspace again = Workspace.open(root.getPath(), "http://example.com/video")) {
+            assertEquals(again.getPath(), workspace.getPath());
+        }
+    }
+
+    @Test(groups = {"local"})
+    public void testSweep() throws Exception {
+        File root = Files.createTempDirectory("workspaces").toFile();
+        File orphan = new File(root, Workspace.PREFIX + "orphan");
+        assertTrue(new File(orphan, "nested").mkdirs());
+        Files.write(new File(orphan, "nested/video.stream").toPath(), new byte[10]);
+        File loose = new File(root, "old.mp4");
+        Files.write(loose.toPath(), new byte[10]);
+
+        try (Workspace running = Workspace.open(root.getPath(), "http://example.com/running")) {
+            File inUse = new File(running.getPath(), "video.stream");
+            Files.write(inUse.toPath(), new byte[10]);
+
+            assertEquals(Workspace.sweepNow(root, 0), 1);
+            assertFalse(orphan.exists());
+            assertFalse(loose.exists());
+            assertTrue(inUse.exists(), "A running job's workspace should be left alone");
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package zergtel.core.queue;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.testng.Assert.*;
+
+/**
+ * Tests the order jobs run in, and that the queue picks up where it left off after being closed
+ */
+public class JobQueueTest {
+    private File journal;
+
+    @BeforeMethod(groups = {"local"})
+    public void createJournal() throws Exception {
+        journal = new File(Files.createTempDirectory("queue").toFile(), "queue.journal");
+    }
+
+    @Test(groups = {"local"})
+    public void testPriorityOrder() throws Exception {
+        List<String> order = new CopyOnWriteArrayList<>();
+        CountDownLatch done = new CountDownLatch(4);
+        JobQueue queue = new JobQueue(journal, job -> {
+            order.add(job.getUrl());
+            return job.getUrl();
+        });
+        queue.addListener(job -> {
+            if (job.getState() == Job.State.DONE) {
+                done.countDown();
+            }
+        });
+        queue.add("low", "dir", 0);
+        queue.add("high", "dir", 5);
+        queue.add("low2", "dir", 0);
+        Job raised = queue.add("raised", "dir", 0);
+        queue.setPriority(raised.getId(), 10);
+
+        queue.start(1);
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        queue.close();
+        assertEquals(order.toString(), "[raised, high, low, low2]");
+        for (Job job : queue.jobs()) {
+            assertEquals(job.getState(), Job.State.DONE);
+            assertEquals(job.getResult(), job.getUrl());
+        }
+    }
+
+    @Test(groups = {"local"})
+    public void testRestart() throws Exception {
+        CountDownLatch started = new CountDownLatch(1);
+        JobQueue queue = new JobQueue(journal, job -> {
+            if (job.getUrl().equals("broken")) {
+                throw new Exception("broken\tjob");
+            }
+            started.countDown();
+            Thread.sleep(60000); //"closed" partway through
+            return "never";
+        });
+        Job broken = queue.add("broken", "dir", 10);
+        Job interrupted = queue.add("http://a.test/file name\twith tab", "dir", 0);
+        queue.start(1);
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        assertEquals(queue.getJob(interrupted.getId()).getState(), Job.State.RUNNING);
+        queue.close();
+
+        List<String> ran = new CopyOnWriteArrayList<>();
+        JobQueue reopened = new JobQueue(journal, job -> {
+            ran.add(job.getUrl());
+            return "done";
+        });
+        assertEquals(reopened.getJob(broken.getId()).getState(), Job.State.FAILED);
+        assertEquals(reopened.getJob(broken.getId()).getResult(), "java.lang.Exception: broken\tjob");
+        assertEquals(reopened.getJob(interrupted.getId()).getState(), Job.State.QUEUED);
+
+        Job added = reopened.add("new", "dir", 0);
+        assertTrue(added.getId() > interrupted.getId());
+        CountDownLatch done = new CountDownLatch(2);
+        reopened.addListener(job -> {
+            if (job.getState() == Job.State.DONE) {
+                done.countDown();
+            }
+        });
+        reopened.start(1);
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        reopened.close();
+        assertEquals(ran.toString(), "[http://a.test/file name\twith tab, new]");
+    }
+
+    @Test(groups = {"local"})
+    public void testTornLine() throws Exception {
+        JobQueue queue = new JobQueue(journal, job -> "done");
+        Job kept = queue.add("kept", "dir", 0);
+        queue.close();
+        //a crash halfway through writing the next record
+        Files.write(journal.toPath(), "A\t7\t0\t12".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+
+        JobQueue reopened = new JobQueue(journal, job -> "done");
+        Job added = reopened.add("added after the crash", "dir", 3);
+        reopened.setPriority(added.getId(), 4);
+        reopened.close();
+
+        JobQueue again = new JobQueue(journal, job -> "done");
+        assertEquals(again.jobs().size(), 2);
+        assertEquals(again.getJob(kept.getId()).getUrl(), "kept");
+        assertEquals(again.getJob(added.getId()).getUrl(), "added after the crash");
+        assertEquals(again.getJob(added.getId()).getPriority(), 4);
+        again.close();
+    }
+
+    @Test(groups = {"local"})
+    public void testCancel() throws Exception {
+        JobQueue queue = new JobQueue(journal, job -> "done");
+        Job job = queue.add("cancelled", "dir", 0);
+        queue.cancel(job.getId());
+        queue.close();
+        assertEquals(new JobQueue(journal, j -> "done").getJob(job.getId()).getResult(), "Cancelled");
+    }
+
+    @Test(groups = {"local"})
+    public void testCompactLargeJournal() throws Exception {
+        int count = 10000;
+        JobQueue queue = new JobQueue(journal, job -> "done");
+        for (int i = 0; i < count; i++) {
+            Job job = queue.add("http://a.test/" + i, "dir", i % 3);
+            queue.setPriority(job.getId(), 1);
+            queue.cancel(job.getId());
+            if (i % 2 == 0) {
+                queue.retry(job.getId());
+            }
+        }
+        queue.close();
+        long before = journal.length();
+
+        JobQueue reopened = new JobQueue(journal, job -> "done");
+        reopened.close();
+
+        assertEquals(reopened.jobs().size(), count);
+        assertTrue(journal.length() < before, "Journal wasn't compacted");
+        assertEquals(Files.readAllLines(journal.toPath()).size(), count + count / 2);
+        assertEquals(reopened.getJob(1).getState(), Job.State.QUEUED);
+        assertEquals(reopened.getJob(2).getState(), Job.State.FAILED);
+        assertEquals(reopened.getJob(2).getPriority(), 1);
+    }
+}